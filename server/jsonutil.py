@@ -12,7 +12,10 @@ format of the numeric value of an entity; each other key must be the name of
 a property of that entity's Model, and the corresponding value must be a string
 that can be deserialized into a value of that property's type.
 """
+import gzip
 import re
+import StringIO
+import zlib
 
 import restutil
 #from django.utils import simplejson
@@ -55,9 +58,11 @@ def send_json(response_obj, jdata):
     response_obj: an HTTP response object
     jdata: a dict or list in correct 'JSONable' form
   Side effects:
-    sends the JSON form of jdata on response.out
+    sends the JSON form of jdata on response.out, with an Accept-Encoding
+    header telling clients they may gzip what they send
   """
   response_obj.headers['Content-Type'] = 'application/json'
+  response_obj.headers['Accept-Encoding'] = 'gzip'
   simplejson.dump(jdata, response_obj.out)
 
 
@@ -69,7 +74,27 @@ def receive_json(request_obj):
   Returns:
     the JSONable-form result of loading the request's body
   """
-  return simplejson.loads(request_obj.body)
+  return simplejson.loads(request_body(request_obj))
+
+
+def request_body(request_obj):
+  """ Get the body of an HTTP-request object, gunzipped if need be.
+
+  Args:
+    request_obj: an HTTP request object
+  Returns:
+    the body as a string, decompressed if its Content-Encoding is gzip
+  Raises:
+    IOError if the body claims to be gzipped but is not
+  """
+  body = request_obj.body
+  encoding = request_obj.headers.get('Content-Encoding', '')
+  if encoding.strip().lower() == 'gzip':
+    try:
+      body = gzip.GzipFile(fileobj=StringIO.StringIO(body)).read()
+    except (zlib.error, EOFError), e:
+      raise IOError('Bad gzip body: %s' % e)
+  return body
 
 
 def make_jobj(entity):
@@ -8,6 +8,7 @@ import time
 
 import wsgiref.handlers
 from google.appengine.api import users
+from google.appengine.ext import db
 from google.appengine.ext import webapp
 import models
 import cookutil
@@ -123,7 +124,7 @@ class CrudRestHandler(webapp.RequestHandler, cookutil.CookieMixin):
       return
     jobj = jsonutil.receive_json(self.request)
     if hasattr(model, 'check_existing'):
-      existing = model.check_existing(jobj)
+      existing = model.check_existing(jobj, user)
       if existing:
         new_entity_path = "/%s/%d" % (self._classname, jsonutil.id_of(existing)['id'])
         self.response.headers['Location'] = new_entity_path
@@ -192,6 +193,271 @@ class LastSampleResource(webapp.RequestHandler, cookutil.CookieMixin):
       return jsonutil.send_json(self.response, {})
 
 
+BINARY_SAMPLES = 'application/x-affect-samples'
+SAMPLE_QUANTUM = 4096.0
+
+def decode_samples(data):
+  """ Decode a batch in the client's SampleBinaryWriter format into a
+  list of sample jobjs. Raises ValueError if it is malformed. """
+  pos = [0]
+  def byte():
+    if pos[0] >= len(data):
+      raise ValueError('Truncated binary samples')
+    pos[0] += 1
+    return ord(data[pos[0] - 1])
+  def varint():
+    value, shift = 0, 0
+    while True:
+      b = byte()
+      value |= (b & 0x7F) << shift
+      if not b & 0x80:
+        return value
+      shift += 7
+      if shift >= 64:
+        raise ValueError('Varint too long')
+  def unzigzag(n):
+    return (n >> 1) ^ -(n & 1)
+
+  if data[:3] != 'AS\x01':
+    raise ValueError('Not binary samples')
+  pos[0] = 3
+  jobjs = []
+  created = 0
+  for i in xrange(varint()):
+    created += unzigzag(varint())
+    scheduled = varint()
+    emotion = unzigzag(varint()) / SAMPLE_QUANTUM
+    intensity = unzigzag(varint()) / SAMPLE_QUANTUM
+    length = varint()
+    comment = None
+    if length:
+      end = pos[0] + length - 1
+      if end > len(data):
+        raise ValueError('Truncated comment')
+      comment = data[pos[0]:end].decode('utf-8')
+      pos[0] = end
+    jobjs.append({'emotion': emotion, 'intensity': intensity,
+                  'created': created,
+                  'scheduled': created + unzigzag(scheduled - 1)
+                               if scheduled else None,
+                  'comment': comment})
+  return jobjs
+
+
+class BatchSampleResource(webapp.RequestHandler, cookutil.CookieMixin):
+  "Provide the resource to handle /batch requests"
+
+  def post(self):
+    """ Create many Samples from one request.
+
+    Request body is a JSON list of sample jobjs (without ids), or the
+    same samples as BINARY_SAMPLES, which is about a tenth the size;
+    either may be gzipped, with Content-Encoding: gzip.
+    Response is JSON {"results": [...]} with one {"created", "status",
+    "id"} entry per sample, in request order; status is "created",
+    "duplicate" (the user has a sample with that created date) or "error",
+    and id is the stored sample's, left out if there is none. The
+    Accept-Post header tells clients the binary form is welcome.
+
+    A JSON sample may carry "op": "update" to replace a stored sample
+    (status "updated", or "created" if none is stored), or "op": "delete",
+    needing only "created", to delete it (status "deleted", or "missing").
+    The sample changed is the one with the item's "id", if it has one and
+    the user owns it, and otherwise the user's sample with its created
+    date; an id stays the same when the created date is edited.
+    """
+    user = users.get_current_user()
+    if user is None:
+      return self.redirect(users.create_login_url(self.request.uri))
+
+    self.response.headers['Accept-Post'] = 'application/json, ' + BINARY_SAMPLES
+    content_type = self.request.headers.get('Content-Type', '')
+    if content_type.split(';')[0].strip() == BINARY_SAMPLES:
+      try:
+        jobjs = decode_samples(jsonutil.request_body(self.request))
+      except (ValueError, UnicodeDecodeError, IOError), e:
+        self.response.set_status(400, 'Bad binary samples: %s' % e)
+        return
+    else:
+      jobjs = jsonutil.receive_json(self.request)
+    if not isinstance(jobjs, list):
+      self.response.set_status(400, 'Expected a list of samples.')
+      return
+    results = []
+    for jobj in jobjs:
+      result = {'created': jobj.get('created')}
+      result['status'], sample_id = self._apply(jobj, user)
+      if sample_id is not None:
+        result['id'] = sample_id
+      results.append(result)
+    logging.info('Batch of %d samples posted', len(results))
+    return jsonutil.send_json(self.response, {'results': results})
+
+  def _apply(self, jobj, user):
+    """ Apply one batch item; returns its status and the id of the
+    sample left stored, or None. """
+    try:
+      op = jobj.pop('op', None)
+      sample_id = jobj.pop('id', None)
+      existing = None
+      if sample_id is not None:
+        existing = models.Sample.get_by_id(int(sample_id))
+        if existing is not None and existing.user != user:
+          existing = None
+      if existing is None:
+        existing = models.Sample.check_existing(jobj, user)
+      if op == 'delete':
+        if not existing:
+          return 'missing', None
+        existing.delete()
+        return 'deleted', None
+      if existing:
+        if op == 'update':
+          jsonutil.update_entity(existing, jobj)
+          return 'updated', restutil.id_of(existing)
+        return 'duplicate', restutil.id_of(existing)
+      created = jsonutil.make_entity(models.Sample, jobj, user=user)
+      return 'created', created['id']
+    except Exception, e:
+      logging.warning('Batch sample %r failed: %s', jobj, e)
+      return 'error', None
+
+
+HASH_MODULUS = 2147483647
+HASH_MULTIPLIER = 48271
+MAX_DIGEST_BUCKETS = 10000
+
+def sample_hash(created):
+  """ A quadratic hash of a created date modulo 2^31 - 1, as the client's
+  SampleDigest and its provider's SQL compute it. """
+  x = created % HASH_MODULUS
+  return ((x * x) % HASH_MODULUS * HASH_MULTIPLIER + x) % HASH_MODULUS
+
+
+class DigestResource(webapp.RequestHandler, cookutil.CookieMixin):
+  "Provide the resource to handle /digest requests"
+
+  def get(self):
+    """ Summarise the user's samples created in a range, for reconciling.
+
+    Query parameters from and to give the range [from, to) and span the
+    width of each bucket, aligned to the epoch, all in milliseconds; so
+    days are UTC days. Response is JSON {"span": span, "buckets": [...]}
+    with one {"start", "count", "hash"} entry per non-empty bucket in
+    order; hash is the sum of sample_hash over the bucket's created dates,
+    in hex.
+    """
+    user = users.get_current_user()
+    if user is None:
+      return self.redirect(users.create_login_url(self.request.uri))
+
+    try:
+      start = int(self.request.get('from'))
+      end = int(self.request.get('to'))
+      span = int(self.request.get('span'))
+    except ValueError:
+      self.response.set_status(400, 'Expected from, to and span.')
+      return
+    if span <= 0 or end < start or (end - start) / span > MAX_DIGEST_BUCKETS:
+      self.response.set_status(400, 'Too many buckets.')
+      return
+
+    q = models.Sample.all().filter("user =", user)
+    q.filter("created >=", start).filter("created <", end)
+    buckets = {}
+    for sample in q:
+      bucket = sample.created - sample.created % span
+      count, digest = buckets.get(bucket, (0, 0))
+      buckets[bucket] = (count + 1, digest + sample_hash(sample.created))
+    return jsonutil.send_json(self.response, {
+        'span': span,
+        'buckets': [{'start': b, 'count': buckets[b][0],
+                     'hash': '%x' % buckets[b][1]}
+                    for b in sorted(buckets)]})
+
+
+MAX_PULL_PAGE = 500
+
+def make_cursor(sample):
+  """ The pull cursor just after a sample: its arrival time and key. """
+  return '%d:%s' % (sample.arrived, sample.key())
+
+
+def parse_cursor(cursor):
+  """ The arrival time and key in a pull cursor, or (-1, None) for none.
+
+  Raises ValueError or db.BadKeyError for a malformed cursor.
+  """
+  if not cursor:
+    return -1, None
+  arrived, key = cursor.split(':', 1)
+  return int(arrived), db.Key(key)
+
+
+class PullResource(webapp.RequestHandler, cookutil.CookieMixin):
+  "Provide the resource to handle /samples requests"
+
+  def get(self):
+    """ Page through the user's samples in the order they arrived here,
+    for pulling them onto another device.
+
+    Query parameter after gives the cursor to start after, the "next" of
+    the previous page, left out to start at the beginning; limit gives the
+    page size. Response is JSON {"samples": [...], "more": bool, "next":
+    cursor}, each sample with its id. Paging by arrival rather than created date finds samples
+    uploaded late with older created dates; the key breaks ties between
+    samples that arrived in the same millisecond. The ETag covers the
+    created dates in the page, so a client that has seen this page gets a
+    304 for an If-None-Match.
+    """
+    user = users.get_current_user()
+    if user is None:
+      return self.redirect(users.create_login_url(self.request.uri))
+
+    cursor = self.request.get('after', '')
+    try:
+      arrived, key = parse_cursor(cursor)
+      limit = min(int(self.request.get('limit', '100')), MAX_PULL_PAGE)
+    except (ValueError, db.BadKeyError):
+      self.response.set_status(400, 'Expected after and limit.')
+      return
+    if limit <= 0:
+      self.response.set_status(400, 'Expected a positive limit.')
+      return
+
+    results = []
+    if key is not None:
+      # The rest of the millisecond the cursor stopped in
+      q = models.Sample.all().filter("user =", user)
+      q.filter("arrived =", arrived).filter("__key__ >", key).order("__key__")
+      results = q.fetch(limit + 1)
+    if len(results) <= limit:
+      q = models.Sample.all().filter("user =", user)
+      q.filter("arrived >", arrived).order("arrived").order("__key__")
+      results += q.fetch(limit + 1 - len(results))
+    more = len(results) > limit
+    results = results[:limit]
+    if results:
+      cursor = make_cursor(results[-1])
+    digest = 0
+    for sample in results:
+      digest ^= sample_hash(sample.created)
+    etag = '"%x-%d-%d"' % (digest, len(results), more)
+    self.response.headers['ETag'] = etag
+
+    seen = self.request.headers.get('If-None-Match', '')
+    if etag in [tag.strip() for tag in seen.split(',')]:
+      self.response.set_status(304)
+      return
+    return jsonutil.send_json(self.response, {
+        'samples': [{'id': restutil.id_of(s),
+                     'emotion': s.emotion, 'intensity': s.intensity,
+                     'created': s.created, 'scheduled': s.scheduled,
+                     'comment': s.comment} for s in results],
+        'more': more,
+        'next': cursor})
+
+
 class ExportResource(webapp.RequestHandler, cookutil.CookieMixin):
   "Provide the resource to handle /export requests"
   
@@ -220,12 +486,18 @@ class ExportResource(webapp.RequestHandler, cookutil.CookieMixin):
       
 def application():
   return webapp.WSGIApplication([('/latest', LastSampleResource),
+                                 ('/batch', BatchSampleResource),
+                                 ('/digest', DigestResource),
+                                 ('/samples', PullResource),
                                  ('/export', ExportResource),
                                  ('/.*', CrudRestHandler)],
                                 debug=True)
 def main():
   logging.info('main.py main()')
   application =  webapp.WSGIApplication([('/latest', LastSampleResource),
+                                         ('/batch', BatchSampleResource),
+                                         ('/digest', DigestResource),
+                                         ('/samples', PullResource),
                                          ('/export', ExportResource),
                                          ('/.*', CrudRestHandler)],
                                         debug=True)
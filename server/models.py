@@ -2,6 +2,7 @@
 Data model in Google Appengine DB terms.
 """
 import logging
+import time
 from google.appengine.ext import db
 
 import jsonutil
@@ -20,6 +21,7 @@ class Sample(db.Model):
     creation_date
     scheduled_date
     comment
+    arrived
   """
   
   user = db.UserProperty()
@@ -40,12 +42,27 @@ class Sample(db.Model):
                               multiline=True,
                               verbose_name="Comment")                                 
 
+  # When the server first stored the sample, in milliseconds; pulls page
+  # through samples in this order, so late uploads of old samples are
+  # still found
+  arrived = db.IntegerProperty(required=False,
+                               verbose_name="Arrived")
+
+  def put(self):
+    if self.arrived is None:
+      self.arrived = int(time.time() * 1000)
+    return db.Model.put(self)
+
   @classmethod
-  def check_existing(cls, jsonobj):
+  def check_existing(cls, jsonobj, user):
+    """
+    Find the user's sample with the created date of jsonobj, if any;
+    another user's sample with the same date is not a duplicate.
+    """
     key = jsonobj.get('created')
 
     logging.info('querying models for %d' % key)
-    query = cls.all().filter('created =', key)
+    query = cls.all().filter('user =', user).filter('created =', key)
     results = query.fetch(1)
     if len(results):
       return results[0]
@@ -57,7 +74,7 @@ class Sample(db.Model):
     Get the ordered list of fields for use in export
     """
     props = cls.properties().values()
-    props = [p for p in props if not p.name == 'user']
+    props = [p for p in props if not p.name in ('user', 'arrived')]
     props.sort(key=lambda p:p.creation_counter)
     return props
 
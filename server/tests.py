@@ -1,10 +1,13 @@
 """
 Tests for AffectSampler AppEngine server component.
 """
+import gzip
 import os
+import StringIO
 import unittest
 import webtest
 
+import main
 from main import application
 
 class TestAffectServer(unittest.TestCase):
@@ -130,6 +133,246 @@ class TestAffectServer(unittest.TestCase):
         self.assertEqual(loc, response.headers['location'])
 
 
+    def test_batch(self):
+        """
+        Check a batch POST creates new samples, reports the ones
+        already stored as duplicates, and needs a login.
+        """
+        self.test_post_one()
+        other = self.SAMPLE.replace('1256423837200', '1256423837300')
+        body = '[%s,%s]' % (self.SAMPLE, other)
+
+        url = "/batch"
+        response = self.app.post(url, body)
+        self.assertTrue("200" in response.status, response.body)
+        results = response.json['results']
+        self.assertEqual([(1256423837200, 'duplicate'),
+                          (1256423837300, 'created')],
+                         [(r['created'], r['status']) for r in results])
+        # With the ids the samples are stored under
+        self.assertNotEqual(results[0]['id'], results[1]['id'])
+        response = self.app.get("/samples")
+        self.assertEqual([r['id'] for r in results],
+                         [s['id'] for s in response.json['samples']])
+
+        response = self.app.get("/latest")
+        self.assertEqual({'created':1256423837300}, response.json)
+
+        self.logout()
+        response = self.app.post(url, body)
+        self.assertTrue("302" in response.status)
+
+    def test_batch_other_user(self):
+        """
+        Check another user's sample with the same created date is not
+        taken for a duplicate, nor changed by an update or deletion.
+        """
+        self.test_post_one()
+        response = self.app.post("/batch", '[%s]' % self.SAMPLE)
+        theirs = response.json['results'][0]['id']
+
+        os.environ['USER_EMAIL'] = 'other@example.com'
+        response = self.app.post("/batch", '[%s]' % self.SAMPLE)
+        self.assertEqual('created', response.json['results'][0]['status'])
+        mine = response.json['results'][0]['id']
+        self.assertNotEqual(theirs, mine)
+
+        body = '[{"id":%d,"created":1256423837200,"op":"delete"}]' % theirs
+        response = self.app.post("/batch", body)
+        # Found by its created date among this user's samples instead
+        self.assertEqual('deleted', response.json['results'][0]['status'])
+        response = self.app.post("/batch", body)
+        self.assertEqual('missing', response.json['results'][0]['status'])
+
+        self.login()
+        response = self.app.get("/samples")
+        self.assertEqual([theirs], [s['id'] for s in response.json['samples']])
+
+    def encode_samples(self, samples):
+        "Encode (created, scheduled, emotion, intensity, comment) tuples"
+        def varint(n):
+            out = ''
+            while n > 0x7F:
+                out += chr((n & 0x7F) | 0x80)
+                n >>= 7
+            return out + chr(n)
+        def zigzag(n):
+            return n * 2 if n >= 0 else -n * 2 - 1
+        data = 'AS\x01' + varint(len(samples))
+        previous = 0
+        for created, scheduled, emotion, intensity, comment in samples:
+            data += varint(zigzag(created - previous))
+            previous = created
+            data += varint(zigzag(scheduled - created) + 1 if scheduled else 0)
+            data += varint(zigzag(int(round(emotion * 4096))))
+            data += varint(zigzag(int(round(intensity * 4096))))
+            if comment is None:
+                data += varint(0)
+            else:
+                utf8 = comment.encode('utf-8')
+                data += varint(len(utf8) + 1) + utf8
+        return data
+
+    def test_batch_binary(self):
+        """
+        Check a batch in the binary format creates the same samples,
+        and that batch responses advertise the format.
+        """
+        self.test_post_one()
+        body = self.encode_samples([
+            (1256423837200, 0, 0.25, 0.5, None),
+            (1256423837300, 1256423837000, -0.125, 1.0, u'caf\xe9')])
+
+        response = self.app.post("/batch", body, headers={
+            'Content-Type': 'application/x-affect-samples'})
+        self.assertTrue("200" in response.status, response.body)
+        self.assertTrue('application/x-affect-samples' in
+                        response.headers['accept-post'])
+        self.assertEqual(['duplicate', 'created'],
+                         [r['status'] for r in response.json['results']])
+
+        # The second to arrive, after the one posted first
+        response = self.app.get("/samples")
+        sample = response.json['samples'][1]
+        self.assertTrue('id' in sample)
+        del sample['id']
+        self.assertEqual({'emotion': -0.125, 'intensity': 1.0,
+                          'created': 1256423837300,
+                          'scheduled': 1256423837000,
+                          'comment': u'caf\xe9'}, sample)
+
+        self.app.post("/batch", 'AS\x01\x05', headers={
+            'Content-Type': 'application/x-affect-samples'}, status=400)
+
+    def test_batch_gzip(self):
+        """
+        Check gzipped batches are read as if they were plain, and that
+        JSON responses say gzip is welcome.
+        """
+        self.test_post_one()
+        other = self.SAMPLE.replace('1256423837200', '1256423837300')
+        buf = StringIO.StringIO()
+        zipped = gzip.GzipFile(fileobj=buf, mode='wb')
+        zipped.write('[%s,%s]' % (self.SAMPLE, other))
+        zipped.close()
+
+        response = self.app.post("/batch", buf.getvalue(), headers={
+            'Content-Encoding': 'gzip'})
+        self.assertTrue("200" in response.status, response.body)
+        self.assertEqual('gzip', response.headers['accept-encoding'])
+        self.assertEqual(['duplicate', 'created'],
+                         [r['status'] for r in response.json['results']])
+
+        self.app.post("/batch", 'not gzip', headers={
+            'Content-Encoding': 'gzip',
+            'Content-Type': 'application/x-affect-samples'}, status=400)
+
+    def test_batch_ops(self):
+        """
+        Check batch items with an op update and delete the samples with
+        their ids, or without one their created dates, and say when
+        there was none to change.
+        """
+        self.test_post_one()
+        edited = self.SAMPLE.replace('"comment":""',
+                                     '"comment":"edited","op":"update"')
+        other = edited.replace('1256423837200', '1256423837300')
+        body = '[%s,%s]' % (edited, other)
+
+        response = self.app.post("/batch", body)
+        self.assertTrue("200" in response.status, response.body)
+        self.assertEqual(['updated', 'created'],
+                         [r['status'] for r in response.json['results']])
+        response = self.app.get("/samples")
+        self.assertEqual(['edited', 'edited'],
+                         [s['comment'] for s in response.json['samples']])
+
+        body = '[{"created":1256423837300,"op":"delete"},' \
+               '{"created":1256423837400,"op":"delete"}]'
+        response = self.app.post("/batch", body)
+        self.assertEqual(['deleted', 'missing'],
+                         [r['status'] for r in response.json['results']])
+        response = self.app.get("/latest")
+        self.assertEqual({'created':1256423837200}, response.json)
+
+        # An update by id may move the sample's created date
+        response = self.app.get("/samples")
+        sample_id = response.json['samples'][0]['id']
+        moved = self.SAMPLE.replace('1256423837200', '1256423837500')
+        moved = moved.replace('"comment":""',
+                              '"comment":"moved","op":"update","id":%d'
+                              % sample_id)
+        response = self.app.post("/batch", '[%s]' % moved)
+        self.assertEqual([{'created': 1256423837500, 'status': 'updated',
+                           'id': sample_id}], response.json['results'])
+        response = self.app.get("/samples")
+        self.assertEqual([(sample_id, 1256423837500, 'moved')],
+                         [(s['id'], s['created'], s['comment'])
+                          for s in response.json['samples']])(self):
+        """
+        Check the digest buckets the user's samples by span with a
+        count and the sum of their hashes, as the client computes them.
+        """
+        self.test_post_one()
+        other = self.SAMPLE.replace('1256423837200', '1256427437300')
+        self.app.post("/Sample/", other)
+
+        url = "/digest?from=1256421600000&to=1256428800000&span=3600000"
+        response = self.app.get(url)
+        self.assertTrue("200" in response.status, response.body)
+        self.assertEqual({'span': 3600000, 'buckets': [
+            {'start': 1256421600000, 'count': 1, 'hash': '3ad56047'},
+            {'start': 1256425200000, 'count': 1,
+             'hash': '%x' % main.sample_hash(1256427437300)}]},
+                         response.json)
+        self.assertEqual(48272, main.sample_hash(1))
+
+        self.app.get("/digest?from=0&to=1&span=0", status=400)
+
+        self.logout()
+        response = self.app.get(url)
+        self.assertTrue("302" in response.status)
+
+    def test_pull(self):
+        """
+        Check samples come back in pages in the order they arrived,
+        including late uploads of older samples, and a repeated request
+        with the page's ETag gets a 304.
+        """
+        self.test_post_one()
+        other = self.SAMPLE.replace('1256423837200', '1256423837300')
+        self.app.post("/Sample/", other)
+
+        response = self.app.get("/samples?limit=1")
+        self.assertTrue("200" in response.status, response.body)
+        self.assertEqual(True, response.json['more'])
+        self.assertEqual([1256423837200],
+                         [s['created'] for s in response.json['samples']])
+
+        url = "/samples?after=%s&limit=10" % response.json['next']
+        response = self.app.get(url)
+        self.assertEqual(False, response.json['more'])
+        self.assertEqual(0.31779998540878296,
+                         response.json['samples'][0]['emotion'])
+        etag = response.headers['etag']
+        cursor = response.json['next']
+
+        response = self.app.get(url, headers={'If-None-Match': etag},
+                                status=304)
+        self.assertEqual('', response.body)
+
+        late = self.SAMPLE.replace('1256423837200', '1256423837100')
+        self.app.post("/Sample/", late)
+        response = self.app.get("/samples?after=%s&limit=10" % cursor)
+        self.assertEqual([1256423837100],
+                         [s['created'] for s in response.json['samples']])
+
+        self.app.get("/samples?after=nonsense", status=400)
+
+        self.logout()
+        response = self.app.get(url)
+        self.assertTrue("302" in response.status)
+
     def test_export(self):
         """
         Check if (and only if) logged in we can retrieve the previous
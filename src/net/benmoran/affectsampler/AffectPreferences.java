@@ -37,6 +37,7 @@ public class AffectPreferences extends PreferenceActivity {
 	protected void onStop() {
 		SampleScheduler sched = new SampleScheduler(this);
 		sched.scheduleNextSample();
+		AutoSync.update(this);
 		super.onStop();
 	}
 
@@ -18,9 +18,14 @@ package net.benmoran.affectsampler;
 
 
 import java.util.HashMap;
+import java.util.List;
 
 import net.benmoran.provider.AffectSampleStore;
+import net.benmoran.provider.AffectSampleStore.AffectRollups;
 import net.benmoran.provider.AffectSampleStore.AffectSamples;
+import net.benmoran.provider.AffectSampleStore.Outbox;
+import net.benmoran.provider.AffectSampleStore.SampleDigests;
+import net.benmoran.provider.AffectSampleStore.SyncState;
 import android.content.ContentProvider;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -31,6 +36,7 @@ import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
@@ -45,16 +51,98 @@ public class AffectProvider extends ContentProvider {
     private static final String TAG = "AffectProvider";
 
     private static final String DATABASE_NAME = "affect.db";
-    private static final int DATABASE_VERSION = 2;
-    private static final String SAMPLES_TABLE_NAME = "samples";
+    private static final int DATABASE_VERSION = 9;
+    static final String SAMPLES_TABLE_NAME = "samples";
+    private static final String SAMPLES_CREATED_INDEX = "samples_created_idx";
+    private static final String SAMPLES_SCHEDULED_INDEX = "samples_scheduled_idx";
+    private static final String SAMPLES_SYNCED_INDEX = "samples_synced_idx";
+    private static final String SYNC_STATE_TABLE_NAME = "sync_state";
+    private static final String SYNC_SESSIONS_TABLE_NAME = "sync_sessions";
+    private static final String OUTBOX_TABLE_NAME = "outbox";
 
     private static HashMap<String, String> sSamplesProjectionMap;
+    private static HashMap<String, String> sRollupsProjectionMap;
+    private static HashMap<String, String> sOutboxProjectionMap;
 
     private static final int SAMPLES = 1;
     private static final int SAMPLE_ID = 2;
+    private static final int SAMPLES_RANGE = 3;
+    private static final int SAMPLES_AFTER = 4;
+    private static final int ROLLUPS = 5;
+    private static final int SYNC_STATE = 6;
+    private static final int SAMPLES_MERGE = 7;
+    private static final int OUTBOX = 8;
+    private static final int SAMPLES_DIGEST = 9;
+    private static final int SAMPLES_REMOTE_IDS = 10;
+
+    /**
+     * Keyset order for samples/after pages; it matches the created index, with
+     * _id breaking ties between samples created in the same millisecond.
+     */
+    private static final String KEYSET_SORT_ORDER = AffectSamples.CREATED_DATE + " ASC, "
+            + AffectSamples._ID + " ASC";
 
     private static final UriMatcher sUriMatcher;
 
+    /**
+     * Column order bound by {@link #bindSample}; the statement is compiled
+     * once per bulk insert and re-executed for every row.
+     */
+    private static final String INSERT_SAMPLE_SQL = "INSERT INTO " + SAMPLES_TABLE_NAME + " ("
+            + AffectSamples.EMOTION + ","
+            + AffectSamples.INTENSITY + ","
+            + AffectSamples.COMMENT + ","
+            + AffectSamples.SCHEDULED_DATE + ","
+            + AffectSamples.CREATED_DATE
+            + ") VALUES (?,?,?,?,?)";
+
+    /**
+     * {@link #INSERT_SAMPLE_SQL} with the synced date bound sixth and the
+     * server's id seventh, for samples merged from the server.
+     */
+    private static final String INSERT_MERGED_SQL = "INSERT INTO " + SAMPLES_TABLE_NAME + " ("
+            + AffectSamples.EMOTION + ","
+            + AffectSamples.INTENSITY + ","
+            + AffectSamples.COMMENT + ","
+            + AffectSamples.SCHEDULED_DATE + ","
+            + AffectSamples.CREATED_DATE + ","
+            + AffectSamples.SYNCED_DATE + ","
+            + AffectSamples.REMOTE_ID
+            + ") VALUES (?,?,?,?,?,?,?)";
+
+    /**
+     * Records the server's id for a sample, bound first, by its _id.
+     */
+    private static final String SET_REMOTE_ID_SQL = "UPDATE " + SAMPLES_TABLE_NAME + " SET "
+            + AffectSamples.REMOTE_ID + "=? WHERE " + AffectSamples._ID + "=?";
+
+    /**
+     * Whether a sample with the bound created date is already held; a query
+     * rather than the insert's result, as executeInsert() can't tell a
+     * skipped row from an inserted one here.
+     */
+    private static final String COUNT_CREATED_SQL = "SELECT COUNT(*) FROM " + SAMPLES_TABLE_NAME
+            + " WHERE " + AffectSamples.CREATED_DATE + "=?";
+
+    /**
+     * Appends an entry to the outbox; compiled once per change and executed
+     * for every sample it touches.
+     */
+    private static final String LOG_CHANGE_SQL = "INSERT INTO " + OUTBOX_TABLE_NAME + " ("
+            + Outbox.SAMPLE_ID + ","
+            + Outbox.OP + ","
+            + Outbox.CREATED_DATE + ","
+            + Outbox.CHANGED_DATE + ","
+            + Outbox.REMOTE_ID
+            + ") VALUES (?,?,?,?,?)";
+
+    /**
+     * Outbox entries with their samples, if still held.
+     */
+    private static final String OUTBOX_JOIN = OUTBOX_TABLE_NAME + " LEFT OUTER JOIN "
+            + SAMPLES_TABLE_NAME + " ON (" + OUTBOX_TABLE_NAME + "." + Outbox.SAMPLE_ID + "="
+            + SAMPLES_TABLE_NAME + "." + AffectSamples._ID + ")";
+
     /**
      * This class helps open, create, and upgrade the database file.
      */
@@ -72,16 +160,106 @@ public class AffectProvider extends ContentProvider {
                     + AffectSamples.INTENSITY + " double,"
                     + AffectSamples.COMMENT + " TEXT,"
                     + AffectSamples.SCHEDULED_DATE + " INTEGER,"
-                    + AffectSamples.CREATED_DATE + " INTEGER"
+                    + AffectSamples.CREATED_DATE + " INTEGER,"
+                    + AffectSamples.SYNCED_DATE + " INTEGER,"
+                    + AffectSamples.REMOTE_ID + " INTEGER"
+                    + ");");
+            createSampleIndexes(db);
+            createSyncedIndex(db);
+            Rollups.createTable(db);
+            createSyncStateTable(db);
+            createOutboxTable(db);
+        }
+
+        /**
+         * Charts and sync order and range on created; scheduled is indexed
+         * for the scheduled-vs-created comparisons.
+         */
+        private void createSampleIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + SAMPLES_CREATED_INDEX + " ON "
+                    + SAMPLES_TABLE_NAME + " (" + AffectSamples.CREATED_DATE + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + SAMPLES_SCHEDULED_INDEX + " ON "
+                    + SAMPLES_TABLE_NAME + " (" + AffectSamples.SCHEDULED_DATE + ");");
+        }
+
+        /**
+         * Unsynced samples have a null synced date, so they sort together at
+         * the head of this index in created order. (SQLite on API 3 predates
+         * partial indexes.)
+         */
+        private void createSyncedIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + SAMPLES_SYNCED_INDEX + " ON "
+                    + SAMPLES_TABLE_NAME + " (" + AffectSamples.SYNCED_DATE + ","
+                    + AffectSamples.CREATED_DATE + ");");
+        }
+
+        private void createSyncStateTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + SYNC_STATE_TABLE_NAME + " ("
+                    + SyncState.KEY + " TEXT PRIMARY KEY,"
+                    + SyncState.VALUE + " TEXT"
+                    + ");");
+        }
+
+        private void createOutboxTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + OUTBOX_TABLE_NAME + " ("
+                    + Outbox._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + Outbox.SAMPLE_ID + " INTEGER,"
+                    + Outbox.OP + " INTEGER,"
+                    + Outbox.CREATED_DATE + " INTEGER,"
+                    + Outbox.CHANGED_DATE + " INTEGER,"
+                    + Outbox.REMOTE_ID + " INTEGER"
                     + ");");
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS " + SAMPLES_TABLE_NAME);
-            onCreate(db);
+            if (oldVersion < 2) {
+                Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                        + newVersion + ", which will destroy all old data");
+                db.execSQL("DROP TABLE IF EXISTS " + SAMPLES_TABLE_NAME);
+                onCreate(db);
+                return;
+            }
+
+            // From version 2 onwards each step migrates in place and keeps the samples
+            Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+            if (oldVersion < 3) {
+                createSampleIndexes(db);
+            }
+            if (oldVersion < 4) {
+                Rollups.createTable(db);
+                Rollups rollups = new Rollups(db);
+                rollups.rebuild();
+                rollups.close();
+            }
+            if (oldVersion < 5) {
+                // Existing samples start out unsynced; with no watermark yet,
+                // the first sync reconciles them with the server's digests
+                db.execSQL("ALTER TABLE " + SAMPLES_TABLE_NAME + " ADD COLUMN "
+                        + AffectSamples.SYNCED_DATE + " INTEGER;");
+                createSyncedIndex(db);
+                createSyncStateTable(db);
+            }
+            if (oldVersion < 7) {
+                // Samples from before the outbox still upload as unsynced;
+                // only changes from now on are logged
+                createOutboxTable(db);
+            }
+            if (oldVersion < 8) {
+                // Samples synced before now are known to the server by their
+                // created dates alone
+                db.execSQL("ALTER TABLE " + SAMPLES_TABLE_NAME + " ADD COLUMN "
+                        + AffectSamples.REMOTE_ID + " INTEGER;");
+                if (oldVersion == 7) {
+                    db.execSQL("ALTER TABLE " + OUTBOX_TABLE_NAME + " ADD COLUMN "
+                            + Outbox.REMOTE_ID + " INTEGER;");
+                }
+            }
+            if (oldVersion < 9) {
+                // Versions 6 to 8 kept a journal of sync sessions; the synced
+                // column is what a sync resumes from
+                db.execSQL("DROP TABLE IF EXISTS " + SYNC_SESSIONS_TABLE_NAME);
+            }
         }
     }
 
@@ -97,6 +275,12 @@ public class AffectProvider extends ContentProvider {
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        List<String> segments = uri.getPathSegments();
+        Uri notificationUri = uri;
+        String where = null;
+        String[] whereArgs = null;
+        String groupBy = null;
+        String orderBy = sortOrder;
 
         switch (sUriMatcher.match(uri)) {
         case SAMPLES:
@@ -110,36 +294,182 @@ public class AffectProvider extends ContentProvider {
             qb.appendWhere(AffectSamples._ID + "=" + uri.getPathSegments().get(1));
             break;
 
+        case SAMPLES_RANGE:
+            qb.setTables(SAMPLES_TABLE_NAME);
+            qb.setProjectionMap(sSamplesProjectionMap);
+            where = AffectSamples.CREATED_DATE + ">=? AND " + AffectSamples.CREATED_DATE + "<?";
+            whereArgs = new String[] { segments.get(2), segments.get(3) };
+            notificationUri = AffectSamples.CONTENT_URI;
+            break;
+
+        case SAMPLES_AFTER:
+            qb.setTables(SAMPLES_TABLE_NAME);
+            qb.setProjectionMap(sSamplesProjectionMap);
+            String created = segments.get(2);
+            String afterId = uri.getQueryParameter(AffectSamples.AFTER_ID_PARAM);
+            if (afterId == null) {
+                where = AffectSamples.CREATED_DATE + ">?";
+                whereArgs = new String[] { created };
+            } else {
+                // The leading >= keeps this a range scan on the created index
+                where = AffectSamples.CREATED_DATE + ">=? AND (" + AffectSamples.CREATED_DATE
+                        + ">? OR " + AffectSamples._ID + ">?)";
+                whereArgs = new String[] { created, created, parseNumber(uri, afterId) };
+            }
+            orderBy = KEYSET_SORT_ORDER;
+            notificationUri = AffectSamples.CONTENT_URI;
+            break;
+
+        case ROLLUPS:
+            String granularity = segments.get(2);
+            if (!Rollups.isGranularity(granularity)) {
+                throw new IllegalArgumentException("Unknown granularity in URI " + uri);
+            }
+            qb.setTables(Rollups.TABLE_NAME);
+            qb.setProjectionMap(sRollupsProjectionMap);
+            where = AffectRollups.GRANULARITY + "=?";
+            whereArgs = new String[] { granularity };
+            if (TextUtils.isEmpty(orderBy)) {
+                orderBy = AffectRollups.DEFAULT_SORT_ORDER;
+            }
+            // Rollups change whenever the samples do
+            notificationUri = AffectSamples.CONTENT_URI;
+            break;
+
+        case SAMPLES_DIGEST:
+            String span = parseNumber(uri, segments.get(4));
+            if (Long.parseLong(span) <= 0) {
+                throw new IllegalArgumentException("Bad span in URI " + uri);
+            }
+            qb.setTables(SAMPLES_TABLE_NAME);
+            qb.setProjectionMap(digestProjectionMap(span));
+            where = AffectSamples.CREATED_DATE + ">=? AND " + AffectSamples.CREATED_DATE + "<?";
+            whereArgs = new String[] { segments.get(2), segments.get(3) };
+            groupBy = SampleDigests.BUCKET;
+            if (TextUtils.isEmpty(orderBy)) {
+                orderBy = SampleDigests.DEFAULT_SORT_ORDER;
+            }
+            notificationUri = AffectSamples.CONTENT_URI;
+            break;
+
+        case SYNC_STATE:
+            qb.setTables(SYNC_STATE_TABLE_NAME);
+            if (TextUtils.isEmpty(orderBy)) {
+                orderBy = SyncState.KEY;
+            }
+            break;
+
+        case OUTBOX:
+            qb.setTables(OUTBOX_JOIN);
+            qb.setProjectionMap(sOutboxProjectionMap);
+            String afterEntry = uri.getQueryParameter(Outbox.AFTER_ID_PARAM);
+            if (afterEntry != null) {
+                where = OUTBOX_TABLE_NAME + "." + Outbox._ID + ">?";
+                whereArgs = new String[] { parseNumber(uri, afterEntry) };
+            }
+            if (TextUtils.isEmpty(orderBy)) {
+                orderBy = Outbox.DEFAULT_SORT_ORDER;
+            }
+            break;
+
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
         // If no sort order is specified use the default
-        String orderBy;
-        if (TextUtils.isEmpty(sortOrder)) {
+        if (TextUtils.isEmpty(orderBy)) {
             orderBy = AffectSampleStore.AffectSamples.DEFAULT_SORT_ORDER;
-        } else {
-            orderBy = sortOrder;
+        }
+
+        String limit = uri.getQueryParameter(AffectSamples.LIMIT_PARAM);
+        if (limit != null) {
+            limit = parseNumber(uri, limit);
         }
 
         // Get the database and run the query
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
+        Cursor c = qb.query(db, projection, concatenateWhere(where, selection),
+                appendSelectionArgs(whereArgs, selectionArgs), groupBy, null, orderBy, limit);
 
         // Tell the cursor what uri to watch, so it knows when its source data changes
-        c.setNotificationUri(getContext().getContentResolver(), uri);
+        c.setNotificationUri(getContext().getContentResolver(), notificationUri);
         return c;
     }
 
+    /**
+     * The digest columns for buckets of span milliseconds, already validated
+     * as a number: each bucket's start, sample count and sum of hashes.
+     */
+    private static HashMap<String, String> digestProjectionMap(String span) {
+        String created = AffectSamples.CREATED_DATE;
+        HashMap<String, String> map = new HashMap<String, String>();
+        map.put(SampleDigests.BUCKET, created + " - " + created + " % " + span + " AS "
+                + SampleDigests.BUCKET);
+        map.put(SampleDigests.SAMPLE_COUNT, "COUNT(*) AS " + SampleDigests.SAMPLE_COUNT);
+        map.put(SampleDigests.HASH, "SUM(" + SampleDigest.hashSQL(created) + ") AS "
+                + SampleDigests.HASH);
+        return map;
+    }
+
+    /**
+     * Validates a numeric URI parameter before it is bound or used as a LIMIT.
+     */
+    private static String parseNumber(Uri uri, String value) {
+        try {
+            return Long.toString(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad number " + value + " in URI " + uri);
+        }
+    }
+
+    private static String concatenateWhere(String a, String b) {
+        if (TextUtils.isEmpty(a)) {
+            return b;
+        }
+        if (TextUtils.isEmpty(b)) {
+            return a;
+        }
+        return "(" + a + ") AND (" + b + ")";
+    }
+
+    private static String[] appendSelectionArgs(String[] originalValues, String[] newValues) {
+        if (originalValues == null || originalValues.length == 0) {
+            return newValues;
+        }
+        if (newValues == null || newValues.length == 0) {
+            return originalValues;
+        }
+        String[] result = new String[originalValues.length + newValues.length];
+        System.arraycopy(originalValues, 0, result, 0, originalValues.length);
+        System.arraycopy(newValues, 0, result, originalValues.length, newValues.length);
+        return result;
+    }
+
     @Override
     public String getType(Uri uri) {
         switch (sUriMatcher.match(uri)) {
         case SAMPLES:
+        case SAMPLES_RANGE:
+        case SAMPLES_AFTER:
+        case SAMPLES_MERGE:
+        case SAMPLES_REMOTE_IDS:
             return AffectSamples.CONTENT_TYPE;
 
         case SAMPLE_ID:
             return AffectSamples.CONTENT_ITEM_TYPE;
 
+        case ROLLUPS:
+            return AffectRollups.CONTENT_TYPE;
+
+        case SAMPLES_DIGEST:
+            return SampleDigests.CONTENT_TYPE;
+
+        case SYNC_STATE:
+            return SyncState.CONTENT_TYPE;
+
+        case OUTBOX:
+            return Outbox.CONTENT_TYPE;
+
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -148,7 +478,11 @@ public class AffectProvider extends ContentProvider {
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
         // Validate the requested uri
-        if (sUriMatcher.match(uri) != SAMPLES) {
+        int match = sUriMatcher.match(uri);
+        if (match == SYNC_STATE) {
+            return putSyncState(uri, initialValues);
+        }
+        if (match != SAMPLES) {
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
@@ -173,7 +507,28 @@ public class AffectProvider extends ContentProvider {
         }
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        long rowId = db.insert(SAMPLES_TABLE_NAME, AffectSamples.COMMENT, values);
+        Rollups rollups = new Rollups(db);
+        SQLiteStatement log = db.compileStatement(LOG_CHANGE_SQL);
+        long rowId;
+        db.beginTransaction();
+        try {
+            rowId = db.insert(SAMPLES_TABLE_NAME, AffectSamples.COMMENT, values);
+            if (rowId > 0) {
+                Long created = values.getAsLong(AffectSamples.CREATED_DATE);
+                if (created != null) {
+                    rollups.add(created.longValue(), values.get(AffectSamples.EMOTION),
+                            values.get(AffectSamples.INTENSITY));
+                    rollups.recomputeInvalid();
+                }
+                logChange(log, rowId, Outbox.OP_INSERT, values.get(AffectSamples.CREATED_DATE),
+                        now.longValue(), values.get(AffectSamples.REMOTE_ID));
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            db.endTransaction();
+            log.close();
+            rollups.close();
+        }
         if (rowId > 0) {
             Uri sampleUri = ContentUris.withAppendedId(AffectSampleStore.AffectSamples.CONTENT_URI, rowId);
             getContext().getContentResolver().notifyChange(sampleUri, null);
@@ -183,23 +538,239 @@ public class AffectProvider extends ContentProvider {
         throw new SQLException("Failed to insert row into " + uri);
     }
 
+    /**
+     * Outbox entries are only ever read and truncated by the synchronizer.
+     */
+    private int truncateOutbox(String where, String[] whereArgs) {
+        return mOpenHelper.getWritableDatabase().delete(OUTBOX_TABLE_NAME, where, whereArgs);
+    }
+
+    private Uri putSyncState(Uri uri, ContentValues values) {
+        if (values == null || !values.containsKey(SyncState.KEY)) {
+            throw new IllegalArgumentException("No key for " + uri);
+        }
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        if (db.replace(SYNC_STATE_TABLE_NAME, SyncState.VALUE, values) < 0) {
+            throw new SQLException("Failed to insert row into " + uri);
+        }
+        return Uri.withAppendedPath(SyncState.CONTENT_URI, values.getAsString(SyncState.KEY));
+    }
+
+    /**
+     * Inserts all the rows in a single transaction through one compiled
+     * statement, and notifies observers once at the end rather than per row.
+     * This is the batch entry point for imports, restores and test loads;
+     * applyBatch() only arrives with API level 5. Rows sent to the merge URI
+     * also carry their synced date, and are skipped if a sample with their
+     * created date is already held; being the server's already, they are not
+     * logged in the outbox. Rows sent to the remote ids URI update samples
+     * rather than insert them.
+     */
     @Override
-    public int delete(Uri uri, String where, String[] whereArgs) {
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        int match = sUriMatcher.match(uri);
+        if (match == SAMPLES_REMOTE_IDS) {
+            return setRemoteIds(values);
+        }
+        if (match != SAMPLES && match != SAMPLES_MERGE) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        boolean merge = (match == SAMPLES_MERGE);
+
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        int count;
-        switch (sUriMatcher.match(uri)) {
-        case SAMPLES:
-            count = db.delete(SAMPLES_TABLE_NAME, where, whereArgs);
-            break;
+        SQLiteStatement insert = db.compileStatement(merge ? INSERT_MERGED_SQL
+                : INSERT_SAMPLE_SQL);
+        SQLiteStatement held = merge ? db.compileStatement(COUNT_CREATED_SQL) : null;
+        SQLiteStatement log = merge ? null : db.compileStatement(LOG_CHANGE_SQL);
+        Rollups rollups = new Rollups(db);
+        long now = System.currentTimeMillis();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                if (merge && isHeld(held, values[i])) {
+                    continue;
+                }
+                long created = bindSample(insert, values[i]);
+                if (merge) {
+                    bindValue(insert, 6, values[i].get(AffectSamples.SYNCED_DATE));
+                    bindValue(insert, 7, values[i].get(AffectSamples.REMOTE_ID));
+                }
+                long rowId = insert.executeInsert();
+                if (rowId > 0) {
+                    rollups.add(created, values[i].get(AffectSamples.EMOTION),
+                            values[i].get(AffectSamples.INTENSITY));
+                    if (log != null) {
+                        logChange(log, rowId, Outbox.OP_INSERT, Long.valueOf(created), now,
+                                null);
+                    }
+                    count++;
+                }
+            }
+            rollups.recomputeInvalid();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+            if (held != null) {
+                held.close();
+            }
+            if (log != null) {
+                log.close();
+            }
+            rollups.close();
+        }
 
-        case SAMPLE_ID:
-            String noteId = uri.getPathSegments().get(1);
-            count = db.delete(SAMPLES_TABLE_NAME, AffectSamples._ID + "=" + noteId
-                    + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""), whereArgs);
-            break;
+        if (count > 0) {
+            getContext().getContentResolver().notifyChange(AffectSamples.CONTENT_URI, null);
+        }
+        return count;
+    }
 
-        default:
-            throw new IllegalArgumentException("Unknown URI " + uri);
+    /**
+     * Records the server's ids for samples it has acknowledged, in one
+     * transaction. Like the synced date, they are the synchronizer's
+     * bookkeeping: not logged, and nobody observes them, so no notification.
+     */
+    private int setRemoteIds(ContentValues[] values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        SQLiteStatement update = db.compileStatement(SET_REMOTE_ID_SQL);
+        int count = 0;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                update.clearBindings();
+                bindValue(update, 1, values[i].get(AffectSamples.REMOTE_ID));
+                bindValue(update, 2, values[i].get(AffectSamples._ID));
+                update.execute();
+                count++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
+        }
+        return count;
+    }
+
+    /**
+     * Binds one row to {@link #INSERT_SAMPLE_SQL}, applying the same defaults
+     * as {@link #insert} without copying the caller's values.
+     *
+     * @return the created date bound
+     */
+    private static long bindSample(SQLiteStatement insert, ContentValues values) {
+        insert.clearBindings();
+        bindValue(insert, 1, values.get(AffectSamples.EMOTION));
+        bindValue(insert, 2, values.get(AffectSamples.INTENSITY));
+
+        if (values.containsKey(AffectSamples.COMMENT)) {
+            bindValue(insert, 3, values.get(AffectSamples.COMMENT));
+        } else {
+            insert.bindString(3, "");
+        }
+
+        // Don't set SCHEDULED_DATE if it is null - that means user manually started the sample
+        bindValue(insert, 4, values.get(AffectSamples.SCHEDULED_DATE));
+
+        Long created = values.getAsLong(AffectSamples.CREATED_DATE);
+        long createdDate = (created != null) ? created.longValue() : System.currentTimeMillis();
+        insert.bindLong(5, createdDate);
+        return createdDate;
+    }
+
+    private static boolean isHeld(SQLiteStatement held, ContentValues values) {
+        Long created = values.getAsLong(AffectSamples.CREATED_DATE);
+        if (created == null) {
+            return false;
+        }
+        held.bindLong(1, created.longValue());
+        return held.simpleQueryForLong() > 0;
+    }
+
+    private static void logChange(SQLiteStatement log, long sampleId, int op, Object created,
+            long changed, Object remoteId) {
+        log.bindLong(1, sampleId);
+        log.bindLong(2, op);
+        bindValue(log, 3, created);
+        log.bindLong(4, changed);
+        bindValue(log, 5, remoteId);
+        log.executeInsert();
+    }
+
+    /**
+     * Logs op for every sample the selection matches, ahead of changing them
+     * in the same transaction, so each entry keeps the server's id for the
+     * sample, and the created date it knows the sample by without one.
+     */
+    private static void logMatching(SQLiteDatabase db, int op, String selection,
+            String[] selectionArgs) {
+        Cursor c = db.query(SAMPLES_TABLE_NAME, new String[] { AffectSamples._ID,
+                AffectSamples.CREATED_DATE, AffectSamples.REMOTE_ID }, selection, selectionArgs,
+                null, null, null);
+        if (c.getCount() == 0) {
+            c.close();
+            return;
+        }
+        SQLiteStatement log = db.compileStatement(LOG_CHANGE_SQL);
+        long now = System.currentTimeMillis();
+        try {
+            for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+                logChange(log, c.getLong(0), op, c.isNull(1) ? null : Long.valueOf(c.getLong(1)),
+                        now, c.isNull(2) ? null : Long.valueOf(c.getLong(2)));
+            }
+        } finally {
+            log.close();
+            c.close();
+        }
+    }
+
+    /**
+     * Whether an update changes the samples themselves, rather than only
+     * the synchronizer's bookkeeping in the synced date and remote id.
+     */
+    private static boolean isLogged(ContentValues values) {
+        int bookkeeping = (values.containsKey(AffectSamples.SYNCED_DATE) ? 1 : 0)
+                + (values.containsKey(AffectSamples.REMOTE_ID) ? 1 : 0);
+        return values.size() > bookkeeping;
+    }
+
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    @Override
+    public int delete(Uri uri, String where, String[] whereArgs) {
+        switch (sUriMatcher.match(uri)) {
+        case SYNC_STATE:
+            return mOpenHelper.getWritableDatabase().delete(SYNC_STATE_TABLE_NAME, where,
+                    whereArgs);
+
+        case OUTBOX:
+            return truncateOutbox(where, whereArgs);
+        }
+        String selection = sampleSelection(uri, where);
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Rollups rollups = new Rollups(db);
+        int count;
+        db.beginTransaction();
+        try {
+            rollups.invalidateMatching(selection, whereArgs);
+            logMatching(db, Outbox.OP_DELETE, selection, whereArgs);
+            count = db.delete(SAMPLES_TABLE_NAME, selection, whereArgs);
+            rollups.recomputeInvalid();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            rollups.close();
         }
 
         getContext().getContentResolver().notifyChange(uri, null);
@@ -208,31 +779,87 @@ public class AffectProvider extends ContentProvider {
 
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+        String selection = sampleSelection(uri, where);
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean logged = isLogged(values);
         int count;
+        if (!logged && !Rollups.affectedBy(values)) {
+            // Only the synced date; nothing else follows from it
+            count = db.update(SAMPLES_TABLE_NAME, values, selection, whereArgs);
+        } else {
+            Rollups rollups = Rollups.affectedBy(values) ? new Rollups(db) : null;
+            db.beginTransaction();
+            try {
+                if (rollups != null) {
+                    rollups.invalidateMatching(selection, whereArgs);
+                }
+                if (logged) {
+                    logMatching(db, Outbox.OP_UPDATE, selection, whereArgs);
+                }
+                count = db.update(SAMPLES_TABLE_NAME, values, selection, whereArgs);
+                if (rollups != null) {
+                    Long created = values.getAsLong(AffectSamples.CREATED_DATE);
+                    if (created != null) {
+                        // Every updated row moved to this one created date
+                        rollups.invalidate(created.longValue());
+                    }
+                    rollups.recomputeInvalid();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                if (rollups != null) {
+                    rollups.close();
+                }
+            }
+        }
+
+        getContext().getContentResolver().notifyChange(uri, null);
+        return count;
+    }
+
+    private static String qualify(String table, String column) {
+        return table + "." + column + " AS " + column;
+    }
+
+    /**
+     * The column from the first table, or from the second where that's null.
+     */
+    private static String coalesce(String table, String fallback, String column) {
+        return "COALESCE(" + table + "." + column + "," + fallback + "." + column + ") AS "
+                + column;
+    }
+
+    /**
+     * The selection on the samples table for an update or delete of the uri.
+     */
+    private static String sampleSelection(Uri uri, String where) {
         switch (sUriMatcher.match(uri)) {
         case SAMPLES:
-            count = db.update(SAMPLES_TABLE_NAME, values, where, whereArgs);
-            break;
+            return where;
 
         case SAMPLE_ID:
             String noteId = uri.getPathSegments().get(1);
-            count = db.update(SAMPLES_TABLE_NAME, values, AffectSamples._ID + "=" + noteId
-                    + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""), whereArgs);
-            break;
+            return AffectSamples._ID + "=" + noteId
+                    + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : "");
 
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
-
-        getContext().getContentResolver().notifyChange(uri, null);
-        return count;
     }
 
     static {
         sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         sUriMatcher.addURI(AffectSampleStore.AUTHORITY, "samples", SAMPLES);
         sUriMatcher.addURI(AffectSampleStore.AUTHORITY, "samples/#", SAMPLE_ID);
+        sUriMatcher.addURI(AffectSampleStore.AUTHORITY, "samples/range/#/#", SAMPLES_RANGE);
+        sUriMatcher.addURI(AffectSampleStore.AUTHORITY, "samples/after/#", SAMPLES_AFTER);
+        sUriMatcher.addURI(AffectSampleStore.AUTHORITY, "samples/merge", SAMPLES_MERGE);
+        sUriMatcher.addURI(AffectSampleStore.AUTHORITY, "samples/remote_ids", SAMPLES_REMOTE_IDS);
+        sUriMatcher.addURI(AffectSampleStore.AUTHORITY, "samples/rollup/*", ROLLUPS);
+        sUriMatcher.addURI(AffectSampleStore.AUTHORITY, "samples/digest/#/#/#", SAMPLES_DIGEST);
+        sUriMatcher.addURI(AffectSampleStore.AUTHORITY, "sync_state", SYNC_STATE);
+        sUriMatcher.addURI(AffectSampleStore.AUTHORITY, "outbox", OUTBOX);
 
         sSamplesProjectionMap = new HashMap<String, String>();
         sSamplesProjectionMap.put(AffectSamples._ID, AffectSamples._ID);
@@ -241,5 +868,44 @@ public class AffectProvider extends ContentProvider {
         sSamplesProjectionMap.put(AffectSamples.COMMENT, AffectSamples.COMMENT);
         sSamplesProjectionMap.put(AffectSamples.SCHEDULED_DATE, AffectSamples.SCHEDULED_DATE);
         sSamplesProjectionMap.put(AffectSamples.CREATED_DATE, AffectSamples.CREATED_DATE);
+        sSamplesProjectionMap.put(AffectSamples.SYNCED_DATE, AffectSamples.SYNCED_DATE);
+        sSamplesProjectionMap.put(AffectSamples.REMOTE_ID, AffectSamples.REMOTE_ID);
+
+        sRollupsProjectionMap = new HashMap<String, String>();
+        sRollupsProjectionMap.put(AffectRollups.GRANULARITY, AffectRollups.GRANULARITY);
+        sRollupsProjectionMap.put(AffectRollups.BUCKET, AffectRollups.BUCKET);
+        sRollupsProjectionMap.put(AffectRollups.SAMPLE_COUNT, AffectRollups.SAMPLE_COUNT);
+        sRollupsProjectionMap.put(AffectRollups.EMOTION_SUM, AffectRollups.EMOTION_SUM);
+        sRollupsProjectionMap.put(AffectRollups.EMOTION_SUMSQ, AffectRollups.EMOTION_SUMSQ);
+        sRollupsProjectionMap.put(AffectRollups.EMOTION_MIN, AffectRollups.EMOTION_MIN);
+        sRollupsProjectionMap.put(AffectRollups.EMOTION_MAX, AffectRollups.EMOTION_MAX);
+        sRollupsProjectionMap.put(AffectRollups.INTENSITY_SUM, AffectRollups.INTENSITY_SUM);
+        sRollupsProjectionMap.put(AffectRollups.INTENSITY_SUMSQ, AffectRollups.INTENSITY_SUMSQ);
+        sRollupsProjectionMap.put(AffectRollups.INTENSITY_MIN, AffectRollups.INTENSITY_MIN);
+        sRollupsProjectionMap.put(AffectRollups.INTENSITY_MAX, AffectRollups.INTENSITY_MAX);
+
+        // The entry's own columns, then its sample's
+        sOutboxProjectionMap = new HashMap<String, String>();
+        sOutboxProjectionMap.put(Outbox._ID, qualify(OUTBOX_TABLE_NAME, Outbox._ID));
+        sOutboxProjectionMap.put(Outbox.SAMPLE_ID, qualify(OUTBOX_TABLE_NAME, Outbox.SAMPLE_ID));
+        sOutboxProjectionMap.put(Outbox.OP, qualify(OUTBOX_TABLE_NAME, Outbox.OP));
+        sOutboxProjectionMap.put(Outbox.CREATED_DATE,
+                coalesce(SAMPLES_TABLE_NAME, OUTBOX_TABLE_NAME, Outbox.CREATED_DATE));
+        sOutboxProjectionMap.put(Outbox.REMOTE_ID,
+                coalesce(SAMPLES_TABLE_NAME, OUTBOX_TABLE_NAME, Outbox.REMOTE_ID));
+        sOutboxProjectionMap.put(Outbox.CHANGED_DATE,
+                qualify(OUTBOX_TABLE_NAME, Outbox.CHANGED_DATE));
+        sOutboxProjectionMap.put(Outbox.SAMPLE_HELD, "(" + SAMPLES_TABLE_NAME + "."
+                + AffectSamples._ID + " IS NOT NULL) AS " + Outbox.SAMPLE_HELD);
+        sOutboxProjectionMap.put(AffectSamples.EMOTION,
+                qualify(SAMPLES_TABLE_NAME, AffectSamples.EMOTION));
+        sOutboxProjectionMap.put(AffectSamples.INTENSITY,
+                qualify(SAMPLES_TABLE_NAME, AffectSamples.INTENSITY));
+        sOutboxProjectionMap.put(AffectSamples.COMMENT,
+                qualify(SAMPLES_TABLE_NAME, AffectSamples.COMMENT));
+        sOutboxProjectionMap.put(AffectSamples.SCHEDULED_DATE,
+                qualify(SAMPLES_TABLE_NAME, AffectSamples.SCHEDULED_DATE));
+        sOutboxProjectionMap.put(AffectSamples.SYNCED_DATE,
+                qualify(SAMPLES_TABLE_NAME, AffectSamples.SYNCED_DATE));
     }
 }
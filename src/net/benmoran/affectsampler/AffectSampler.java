@@ -21,13 +21,14 @@ import net.benmoran.affectsampler.charts.IChart;
 import net.benmoran.affectsampler.charts.TimeSeriesChart;
 import net.benmoran.provider.AffectSampleStore.AffectSamples;
 import android.app.Activity;
-import android.content.ContentValues;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -37,22 +38,32 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 public class AffectSampler extends Activity implements SyncCaller {
+	private static final String TAG = "AffectSampler";
+
 	public static final int MENU_SETTINGS = 0;
 	public static final int MENU_QUIT = 1;
 
+	// Built when first chosen from the menu, to keep achartengine out of
+	// the launch
 	private IChart mChart;
 	private Button btnSave;
 	private Button btnCancel;
 	protected Timestamp mScheduled;
+	private StartupTimer mStartup;
+	// When Save was tapped, until the activity has stopped
+	private long mTapped;
 
 	/** Called when the activity is first created. */
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
+		mStartup = new StartupTimer(TAG);
 		super.onCreate(savedInstanceState);
+		// Opens, and if need be upgrades, the database on the writer's thread
+		// while the layout inflates, so saving finds it ready
+		SampleWriter.getInstance(this).warmUp();
 
 		setContentView(R.layout.main);
-
-		mChart = new TimeSeriesChart();
+		mStartup.mark("layout");
 
 		btnSave = (Button) findViewById(R.id.ButtonSave);
 		btnSave.setOnClickListener(new View.OnClickListener() {
@@ -74,6 +85,37 @@ public class AffectSampler extends Activity implements SyncCaller {
 			long scheduled = extras.getLong(SampleScheduler.SCHEDULED_AT, -1);
 			mScheduled = (scheduled > 0) ? new Timestamp(scheduled) : null;
 		}
+
+		// Told of background syncs too, while showing
+		SyncCoordinator.getInstance().addCaller(this);
+		AutoSync.update(this);
+		mStartup.mark("create");
+	}
+
+	@Override
+	public void onWindowFocusChanged(boolean hasFocus) {
+		super.onWindowFocusChanged(hasFocus);
+		if (hasFocus) {
+			// Drawn and taking input: the sample can be answered now
+			mStartup.finish("shown");
+		}
+	}
+
+	@Override
+	protected void onStop() {
+		super.onStop();
+		if (mTapped > 0) {
+			// Through onPause to here, the whole of dismissing the sample
+			Log.i(TAG, "Sample taken and dismissed in "
+					+ (SystemClock.uptimeMillis() - mTapped) + "ms");
+			mTapped = 0;
+		}
+	}
+
+	@Override
+	protected void onDestroy() {
+		SyncCoordinator.getInstance().removeCaller(this);
+		super.onDestroy();
 	}
 
 	private void saveSample() {
@@ -81,21 +123,17 @@ public class AffectSampler extends Activity implements SyncCaller {
 		HorizontalSlider hzIntensity = (HorizontalSlider) findViewById(R.id.slideIntensity);
 		TextView txtComment = (TextView) findViewById(R.id.textComment);
 
-		ContentValues values = new ContentValues();
-		values.put(AffectSamples.EMOTION, hzEmotion.getValue());
-		values.put(AffectSamples.INTENSITY, hzIntensity.getValue());
-		values.put(AffectSamples.COMMENT, txtComment.getText().toString());
-		if (mScheduled != null) {
-			values.put(AffectSamples.SCHEDULED_DATE, mScheduled.getTime());
-		}
-		getContentResolver().insert(AffectSamples.CONTENT_URI, values);
-		scheduleAndQuit();
+		mTapped = SystemClock.uptimeMillis();
+		// The writer inserts it and schedules the next alarm off this thread
+		SampleWriter.getInstance(this).save(new SampleWriter.Sample(hzEmotion
+				.getValue(), hzIntensity.getValue(), txtComment.getText()
+				.toString(), (mScheduled != null) ? mScheduled.getTime() : 0,
+				System.currentTimeMillis()));
+		finish();
 	}
 
 	private void scheduleAndQuit() {
-		SampleScheduler sched = new SampleScheduler(this);
-		sched.scheduleNextSample();
-
+		SampleWriter.getInstance(this).reschedule();
 		finish();
 	}
 
@@ -110,13 +148,17 @@ public class AffectSampler extends Activity implements SyncCaller {
 	public boolean onOptionsItemSelected(MenuItem item) {
 		switch (item.getItemId()) {
 		case R.id.chart_menu_item:
-			Uri samples = AffectSamples.CONTENT_URI;
+			Uri samples = AffectSamples.withLimit(AffectSamples.CONTENT_URI,
+					TimeSeriesChart.MAX_VALUES);
 			String[] projection = new String[] { AffectSamples.CREATED_DATE,
 					AffectSamples.EMOTION, AffectSamples.INTENSITY };
 
 			Cursor cursor = managedQuery(samples, projection, null, null,
-					AffectSamples.CREATED_DATE + " ASC");
+					AffectSamples.CREATED_DATE + " DESC");
 
+			if (mChart == null) {
+				mChart = new TimeSeriesChart();
+			}
 			Intent intent = mChart.execute(this, cursor);
 			startActivity(intent);
 			return (true);
@@ -143,8 +185,9 @@ public class AffectSampler extends Activity implements SyncCaller {
 
 		String user = settings.getString(getString(R.string.username), null);
 		String pass = settings.getString(getString(R.string.password), null);
-		SyncParams params = new SyncParams(user, pass, null, getContentResolver());
-		new SyncTask(this).execute(params);
+		SyncParams params = new SyncParams(user, pass, null,
+				getContentResolver(), new PreferencesAuthCache(this));
+		SyncCoordinator.getInstance().requestSync(params);
 	}
 
 	public void onError(Exception e) {
@@ -15,6 +15,9 @@
  */
 package net.benmoran.affectsampler;
 
+import java.io.IOException;
+import java.io.Writer;
+
 import net.benmoran.provider.AffectSampleStore.AffectSamples;
 
 import org.json.JSONArray;
@@ -22,6 +25,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
 
@@ -38,39 +42,89 @@ public class AffectSerializer {
 	}
 	
 	public JSONArray toJSONArray() throws JSONException {	
+		Cursor cursor = querySamples();
+		JSONArray arr = new JSONArray();
+
+		for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+			arr.put(toJSONObject(cursor));
+		}
+		cursor.close();
+		return arr;
+	}
+
+	/**
+	 * Streams every sample to out as a JSON array, in created order, without
+	 * holding them all in memory. The caller should buffer out.
+	 * 
+	 * @return the number of samples written
+	 */
+	public int writeJSON(Writer out) throws IOException {
+		Cursor cursor = querySamples();
+		try {
+			return new SampleJSONWriter().writeArray(cursor, out);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private Cursor querySamples() {
 		Uri samples = AffectSamples.CONTENT_URI;
-		String[] projection = new String[] { AffectSamples.COMMENT,
-				AffectSamples.SCHEDULED_DATE, AffectSamples.CREATED_DATE,
-				AffectSamples.EMOTION, AffectSamples.INTENSITY };
+		return mContentResolver.query(samples, PROJECTION, null, null,
+				AffectSamples.CREATED_DATE + " ASC");
+	}
 
-		Cursor cursor = mContentResolver.query(samples,
-				projection, null, null, AffectSamples.CREATED_DATE + " ASC");
-		JSONArray arr = new JSONArray();
+	/**
+	 * The columns read by {@link #toJSONObject}.
+	 */
+	public static final String[] PROJECTION = new String[] { AffectSamples.COMMENT,
+			AffectSamples.SCHEDULED_DATE, AffectSamples.CREATED_DATE,
+			AffectSamples.EMOTION, AffectSamples.INTENSITY };
+
+	/**
+	 * Converts the sample at the cursor's current position, which must
+	 * include the {@link #PROJECTION} columns.
+	 */
+	public static JSONObject toJSONObject(Cursor cursor) throws JSONException {
 		int emIndex = cursor.getColumnIndex(AffectSamples.EMOTION);
 		int inIndex = cursor.getColumnIndex(AffectSamples.INTENSITY);
 		int cdIndex = cursor.getColumnIndex(AffectSamples.CREATED_DATE);
 		int sdIndex = cursor.getColumnIndex(AffectSamples.SCHEDULED_DATE);
 		int coIndex = cursor.getColumnIndex(AffectSamples.COMMENT);
 
-		for (cursor.moveToPosition(0); !cursor.isLast(); cursor.moveToNext()) {
-			JSONObject o = new JSONObject();
-			o.put(AffectSamples.EMOTION, cursor.getDouble(emIndex));
-			o.put(AffectSamples.INTENSITY, cursor.getDouble(inIndex));
-			if (cursor.getLong(sdIndex) > 0) {
-				o.put(AffectSamples.SCHEDULED_DATE, cursor.getLong(sdIndex));
-			} else {
-				o.put(AffectSamples.SCHEDULED_DATE, null);
-			}
-
-			o.put(AffectSamples.CREATED_DATE, cursor.getLong(cdIndex));
-			if (cursor.getString(coIndex) != null) {
-				o.put(AffectSamples.COMMENT, cursor.getString(coIndex));
-			} else {
-				o.put(AffectSamples.COMMENT, null);
-			}
-			arr.put(o);
+		JSONObject o = new JSONObject();
+		o.put(AffectSamples.EMOTION, cursor.getDouble(emIndex));
+		o.put(AffectSamples.INTENSITY, cursor.getDouble(inIndex));
+		if (cursor.getLong(sdIndex) > 0) {
+			o.put(AffectSamples.SCHEDULED_DATE, cursor.getLong(sdIndex));
+		} else {
+			o.put(AffectSamples.SCHEDULED_DATE, null);
 		}
-		cursor.close();
-		return arr;
+
+		o.put(AffectSamples.CREATED_DATE, cursor.getLong(cdIndex));
+		if (cursor.getString(coIndex) != null) {
+			o.put(AffectSamples.COMMENT, cursor.getString(coIndex));
+		} else {
+			o.put(AffectSamples.COMMENT, null);
+		}
+		return o;
+	}
+
+	/**
+	 * The inverse of {@link #toJSONObject}, for samples from the server.
+	 */
+	public static ContentValues toContentValues(JSONObject o)
+			throws JSONException {
+		ContentValues values = new ContentValues();
+		values.put(AffectSamples.EMOTION, o.getDouble(AffectSamples.EMOTION));
+		values.put(AffectSamples.INTENSITY, o.getDouble(AffectSamples.INTENSITY));
+		values.put(AffectSamples.CREATED_DATE, o.getLong(AffectSamples.CREATED_DATE));
+		long scheduled = o.optLong(AffectSamples.SCHEDULED_DATE);
+		if (scheduled > 0) {
+			values.put(AffectSamples.SCHEDULED_DATE, scheduled);
+		}
+		if (!o.isNull(AffectSamples.COMMENT)) {
+			values.put(AffectSamples.COMMENT, o.getString(AffectSamples.COMMENT));
+		}
+		return values;
 	}
 }
@@ -30,6 +30,7 @@ public class AlarmSetStartupReceiver extends BroadcastReceiver {
 		if ("android.intent.action.BOOT_COMPLETED".equals(intent.getAction())) {
 			SampleScheduler sched = new SampleScheduler(context);
 			sched.scheduleNextSample();
+			AutoSync.update(context);
 		} else {
 			Log.e(TAG, "Received unexpected intent " + intent.toString());
 		}
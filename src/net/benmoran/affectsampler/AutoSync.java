@@ -0,0 +1,210 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Watches the samples, when the user has opted in to auto sync, and starts
+ * the SyncService a little after they change rather than for every one.
+ * Changes within {@link #DEBOUNCE_MILLIS} of each other make one sync,
+ * sent no later than {@link #MAX_WAIT_MILLIS} after the first and no
+ * sooner than {@link #MIN_INTERVAL_MILLIS} after the last. A sync is only
+ * started on a connected network with battery to spare, and otherwise
+ * tried again later. Whether there is anything to sync, and whether now is
+ * a good time, is worked out off the main thread.
+ * 
+ * Syncing changes the samples too, marking them synced; those changes
+ * find nothing unsynced or left in the outbox, and start nothing.
+ */
+public class AutoSync extends ContentObserver {
+
+	private static final String TAG = "AutoSync";
+
+	public static final long DEBOUNCE_MILLIS = 60 * 1000;
+	public static final long MAX_WAIT_MILLIS = 5 * 60 * 1000;
+	public static final long MIN_INTERVAL_MILLIS = 5 * 60 * 1000;
+
+	/**
+	 * Below this much charge, samples wait for the charger.
+	 */
+	public static final int MIN_BATTERY_PERCENT = 20;
+
+	private static AutoSync sInstance;
+
+	// Asks the provider and the system services, which may block, off the
+	// main thread
+	private static final ExecutorService sChecker = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					return new Thread(r, TAG);
+				}
+			});
+
+	private final Context mContext;
+	private final Handler mHandler;
+	// On the main thread only: when the first change not yet synced was
+	// seen, and when the last sync was started, by elapsed realtime; 0 for
+	// never
+	private long mPendingSince;
+	private long mLastSync;
+
+	private final Runnable mSync = new Runnable() {
+		public void run() {
+			syncIfAllowed();
+		}
+	};
+
+	private AutoSync(Context context, Handler handler) {
+		super(handler);
+		mContext = context;
+		mHandler = handler;
+	}
+
+	/**
+	 * Starts or stops watching as the auto sync preference says. Called on
+	 * the main thread.
+	 */
+	public static synchronized void update(Context context) {
+		boolean enabled = PreferenceManager.getDefaultSharedPreferences(
+				context).getBoolean(context.getString(R.string.auto_sync), false);
+		if (enabled && sInstance == null) {
+			Context app = context.getApplicationContext();
+			sInstance = new AutoSync(app, new Handler(Looper.getMainLooper()));
+			app.getContentResolver().registerContentObserver(
+					AffectSamples.CONTENT_URI, true, sInstance);
+			Log.i(TAG, "Watching for new samples");
+		} else if (!enabled && sInstance != null) {
+			sInstance.mContext.getContentResolver().unregisterContentObserver(
+					sInstance);
+			sInstance.mHandler.removeCallbacks(sInstance.mSync);
+			sInstance = null;
+			Log.i(TAG, "Stopped watching");
+		}
+	}
+
+	@Override
+	public void onChange(boolean selfChange) {
+		long now = SystemClock.elapsedRealtime();
+		if (mPendingSince == 0) {
+			mPendingSince = now;
+		}
+		schedule(getDelay(now, mPendingSince, mLastSync));
+	}
+
+	private void schedule(long delay) {
+		mHandler.removeCallbacks(mSync);
+		mHandler.postDelayed(mSync, delay);
+	}
+
+	private void syncIfAllowed() {
+		sChecker.execute(new Runnable() {
+			public void run() {
+				SyncStore store = new SyncStore(mContext.getContentResolver());
+				// Edits and deletions of synced samples wait in the outbox
+				final boolean pending = store.hasUnsynced() || store.hasOutbox();
+				final boolean allowed = pending && isAllowed(mContext);
+				mHandler.post(new Runnable() {
+					public void run() {
+						syncIfAllowed(pending, allowed);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Back on the main thread with what the checker found.
+	 */
+	private void syncIfAllowed(boolean pending, boolean allowed) {
+		if (sInstance != this) {
+			// Stopped watching while checking
+			return;
+		}
+		if (!pending) {
+			mPendingSince = 0;
+			return;
+		}
+		if (!allowed) {
+			Log.i(TAG, "Not a good time to sync; trying again later");
+			schedule(MIN_INTERVAL_MILLIS);
+			return;
+		}
+		mPendingSince = 0;
+		mLastSync = SystemClock.elapsedRealtime();
+		mContext.startService(new Intent(mContext, SyncService.class));
+	}
+
+	/**
+	 * How long from now to wait before syncing: until changes stop for
+	 * DEBOUNCE_MILLIS, but no later than MAX_WAIT_MILLIS after the first,
+	 * then no sooner than MIN_INTERVAL_MILLIS after the last sync.
+	 * 
+	 * @param lastSync
+	 *            when the last sync was started, or 0 if none has been
+	 */
+	static long getDelay(long now, long pendingSince, long lastSync) {
+		long at = Math.min(now + DEBOUNCE_MILLIS, pendingSince
+				+ MAX_WAIT_MILLIS);
+		if (lastSync > 0) {
+			at = Math.max(at, lastSync + MIN_INTERVAL_MILLIS);
+		}
+		return Math.max(0, at - now);
+	}
+
+	/**
+	 * True if the network is connected and the battery is charging or has
+	 * charge to spare.
+	 */
+	static boolean isAllowed(Context context) {
+		ConnectivityManager connectivity = (ConnectivityManager) context
+				.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo network = connectivity.getActiveNetworkInfo();
+		if (network == null || !network.isConnected()) {
+			return false;
+		}
+		// The battery broadcast is sticky, so this reads its last state
+		Intent battery = context.registerReceiver(null, new IntentFilter(
+				Intent.ACTION_BATTERY_CHANGED));
+		if (battery == null) {
+			return true;
+		}
+		return isBatteryAllowed(battery.getIntExtra("level", -1), battery
+				.getIntExtra("scale", -1), battery.getIntExtra("plugged", 0));
+	}
+
+	static boolean isBatteryAllowed(int level, int scale, int plugged) {
+		if (plugged != 0 || level < 0 || scale <= 0) {
+			return true;
+		}
+		return level * 100 >= MIN_BATTERY_PERCENT * scale;
+	}
+}
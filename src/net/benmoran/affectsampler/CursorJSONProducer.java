@@ -0,0 +1,43 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import net.benmoran.affectsampler.datastore.JSONProducer;
+import android.database.Cursor;
+
+/**
+ * Produces every row of a samples cursor as a JSON array, rewinding the
+ * cursor each time it is written. The cursor must stay open until the
+ * request has been sent.
+ */
+public class CursorJSONProducer implements JSONProducer {
+
+	private final Cursor mCursor;
+	private final SampleJSONWriter mWriter;
+
+	public CursorJSONProducer(Cursor cursor, SampleJSONWriter writer) {
+		mCursor = cursor;
+		mWriter = writer;
+	}
+
+	public void writeJSON(Writer out) throws IOException {
+		mWriter.writeArray(mCursor, out);
+	}
+
+}
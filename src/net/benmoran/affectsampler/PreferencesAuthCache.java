@@ -0,0 +1,107 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import net.benmoran.affectsampler.datastore.AuthCache;
+
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.cookie.BasicClientCookie;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * An {@link AuthCache} kept in private shared preferences, holding one
+ * account at a time. Cookies are stored a line each, their fields tab
+ * separated.
+ */
+public class PreferencesAuthCache implements AuthCache {
+
+	private static final String PREFS_NAME = "auth";
+	private static final String ACCOUNT = "account";
+	private static final String AUTH_TOKEN = "auth_token";
+	private static final String COOKIES = "cookies";
+
+	private final SharedPreferences mPrefs;
+
+	public PreferencesAuthCache(Context context) {
+		this(context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+	}
+
+	public PreferencesAuthCache(SharedPreferences prefs) {
+		mPrefs = prefs;
+	}
+
+	private boolean holds(String account) {
+		return account != null && account.equals(mPrefs.getString(ACCOUNT, null));
+	}
+
+	public synchronized String getAuthToken(String account) {
+		return holds(account) ? mPrefs.getString(AUTH_TOKEN, null) : null;
+	}
+
+	public synchronized List<Cookie> getCookies(String account) {
+		List<Cookie> cookies = new ArrayList<Cookie>();
+		if (!holds(account)) {
+			return cookies;
+		}
+		String stored = mPrefs.getString(COOKIES, "");
+		for (String line : stored.split("\n")) {
+			String[] fields = line.split("\t", -1);
+			if (fields.length != 6) {
+				continue;
+			}
+			BasicClientCookie cookie = new BasicClientCookie(fields[0], fields[1]);
+			cookie.setDomain(fields[2]);
+			cookie.setPath(fields[3]);
+			if (fields[4].length() > 0) {
+				cookie.setExpiryDate(new Date(Long.parseLong(fields[4])));
+			}
+			cookie.setSecure(Boolean.valueOf(fields[5]).booleanValue());
+			cookies.add(cookie);
+		}
+		return cookies;
+	}
+
+	public synchronized void put(String account, String authToken,
+			List<Cookie> cookies) {
+		StringBuilder stored = new StringBuilder();
+		for (Cookie cookie : cookies) {
+			Date expiry = cookie.getExpiryDate();
+			stored.append(cookie.getName()).append('\t')
+					.append(cookie.getValue()).append('\t')
+					.append(cookie.getDomain()).append('\t')
+					.append(cookie.getPath()).append('\t')
+					.append(expiry != null ? Long.toString(expiry.getTime()) : "")
+					.append('\t').append(cookie.isSecure()).append('\n');
+		}
+		mPrefs.edit().putString(ACCOUNT, account)
+				.putString(AUTH_TOKEN, authToken)
+				.putString(COOKIES, stored.toString()).commit();
+	}
+
+	public synchronized void clear(String account) {
+		if (holds(account)) {
+			mPrefs.edit().remove(ACCOUNT).remove(AUTH_TOKEN).remove(COOKIES)
+					.commit();
+		}
+	}
+
+}
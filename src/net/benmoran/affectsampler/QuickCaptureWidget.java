@@ -0,0 +1,116 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.widget.RemoteViews;
+import android.widget.Toast;
+
+/**
+ * A home screen widget for answering a prompt with one tap, without
+ * starting the AffectSampler activity: each button is a preset bucket of
+ * emotion and intensity, saved through the {@link SampleWriter}. While a
+ * prompt is showing the buttons carry its scheduled time, as the
+ * notification's intent does, so the sample records when it was asked for.
+ */
+public class QuickCaptureWidget extends AppWidgetProvider {
+
+	public static final String QUICK_SAMPLE = "net.benmoran.affectsampler.QUICK_SAMPLE";
+	static final String EMOTION = "net.benmoran.affectsampler.EMOTION";
+	static final String INTENSITY = "net.benmoran.affectsampler.INTENSITY";
+
+	// The middle of each third of the emotion axis, and of each half of the
+	// intensity axis, intense first as the rows are laid out
+	static final double[] EMOTIONS = { 1.0 / 6, 0.5, 5.0 / 6 };
+	static final double[] INTENSITIES = { 0.75, 0.25 };
+
+	private static final int[][] BUTTONS = {
+			{ R.id.QuickIntenseBad, R.id.QuickIntenseOk, R.id.QuickIntenseGood },
+			{ R.id.QuickCalmBad, R.id.QuickCalmOk, R.id.QuickCalmGood } };
+
+	/**
+	 * Points every widget's buttons at the given prompt.
+	 *
+	 * @param scheduledAt
+	 *            the scheduled time of the prompt showing, or -1 if none is
+	 */
+	public static void update(Context context, long scheduledAt) {
+		AppWidgetManager.getInstance(context).updateAppWidget(
+				new ComponentName(context, QuickCaptureWidget.class),
+				buildViews(context, scheduledAt));
+	}
+
+	@Override
+	public void onUpdate(Context context, AppWidgetManager appWidgetManager,
+			int[] appWidgetIds) {
+		appWidgetManager.updateAppWidget(appWidgetIds, buildViews(context, -1));
+	}
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		if (!QUICK_SAMPLE.equals(intent.getAction())) {
+			super.onReceive(context, intent);
+			return;
+		}
+		// Written before returning, as nothing keeps the process alive once
+		// the broadcast is handled
+		SampleWriter.getInstance(context).saveNow(
+				toSample(intent, System.currentTimeMillis()));
+		((NotificationManager) context
+				.getSystemService(Context.NOTIFICATION_SERVICE))
+				.cancel(SampleNotificationReceiver.SAMPLE_NOTIFICATION);
+		Toast.makeText(context, R.string.quick_saved, Toast.LENGTH_SHORT).show();
+	}
+
+	static SampleWriter.Sample toSample(Intent intent, long now) {
+		long scheduledAt = intent.getLongExtra(SampleScheduler.SCHEDULED_AT, -1);
+		return new SampleWriter.Sample(intent.getDoubleExtra(EMOTION, 0.5),
+				intent.getDoubleExtra(INTENSITY, 0.5), "",
+				(scheduledAt > 0) ? scheduledAt : 0, now);
+	}
+
+	static Intent makeIntent(Context context, int row, int column,
+			long scheduledAt) {
+		Intent intent = new Intent(QUICK_SAMPLE, Uri.parse("affectsampler://quick/"
+				+ row + "/" + column), context, QuickCaptureWidget.class);
+		intent.putExtra(EMOTION, EMOTIONS[column]);
+		intent.putExtra(INTENSITY, INTENSITIES[row]);
+		intent.putExtra(SampleScheduler.SCHEDULED_AT, scheduledAt);
+		return intent;
+	}
+
+	private static RemoteViews buildViews(Context context, long scheduledAt) {
+		RemoteViews views = new RemoteViews(context.getPackageName(),
+				R.layout.quick_capture);
+		for (int row = 0; row < BUTTONS.length; row++) {
+			for (int column = 0; column < BUTTONS[row].length; column++) {
+				// Each button's intent differs in its data, so each gets a
+				// PendingIntent of its own; the extras are replaced in place
+				views.setOnClickPendingIntent(BUTTONS[row][column], PendingIntent
+						.getBroadcast(context, 0, makeIntent(context, row, column,
+								scheduledAt), PendingIntent.FLAG_UPDATE_CURRENT));
+			}
+		}
+		return views;
+	}
+}
@@ -0,0 +1,287 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.TimeZone;
+
+import net.benmoran.provider.AffectSampleStore.AffectRollups;
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Maintains the hourly and daily rollup table for AffectProvider. An
+ * instance lives for one write transaction: inserts are folded into their
+ * buckets incrementally, while updates and deletes invalidate buckets that
+ * are recomputed from the samples in them before the transaction commits.
+ */
+final class Rollups {
+
+	static final String TABLE_NAME = "rollups";
+
+	private static final long HOUR_MS = 60L * 60L * 1000L;
+
+	private static final String ROLLUP_COLUMNS = AffectRollups.GRANULARITY + ","
+			+ AffectRollups.BUCKET + "," + AffectRollups.SAMPLE_COUNT + ","
+			+ AffectRollups.EMOTION_SUM + "," + AffectRollups.EMOTION_SUMSQ + ","
+			+ AffectRollups.EMOTION_MIN + "," + AffectRollups.EMOTION_MAX + ","
+			+ AffectRollups.INTENSITY_SUM + "," + AffectRollups.INTENSITY_SUMSQ + ","
+			+ AffectRollups.INTENSITY_MIN + "," + AffectRollups.INTENSITY_MAX;
+
+	private static final String CREATE_BUCKET_SQL = "INSERT OR IGNORE INTO " + TABLE_NAME
+			+ " (" + ROLLUP_COLUMNS + ") VALUES (?,?,0,0,0,?,?,0,0,?,?)";
+
+	private static final String ADD_TO_BUCKET_SQL = "UPDATE " + TABLE_NAME + " SET "
+			+ AffectRollups.SAMPLE_COUNT + "=" + AffectRollups.SAMPLE_COUNT + "+1,"
+			+ AffectRollups.EMOTION_SUM + "=" + AffectRollups.EMOTION_SUM + "+?,"
+			+ AffectRollups.EMOTION_SUMSQ + "=" + AffectRollups.EMOTION_SUMSQ + "+?,"
+			+ AffectRollups.EMOTION_MIN + "=min(" + AffectRollups.EMOTION_MIN + ",?),"
+			+ AffectRollups.EMOTION_MAX + "=max(" + AffectRollups.EMOTION_MAX + ",?),"
+			+ AffectRollups.INTENSITY_SUM + "=" + AffectRollups.INTENSITY_SUM + "+?,"
+			+ AffectRollups.INTENSITY_SUMSQ + "=" + AffectRollups.INTENSITY_SUMSQ + "+?,"
+			+ AffectRollups.INTENSITY_MIN + "=min(" + AffectRollups.INTENSITY_MIN + ",?),"
+			+ AffectRollups.INTENSITY_MAX + "=max(" + AffectRollups.INTENSITY_MAX + ",?)"
+			+ " WHERE " + AffectRollups.GRANULARITY + "=? AND " + AffectRollups.BUCKET + "=?";
+
+	private static final String RECOMPUTE_BUCKET_SQL = "INSERT OR REPLACE INTO " + TABLE_NAME
+			+ " (" + ROLLUP_COLUMNS + ") SELECT ?,?,COUNT(*),"
+			+ "SUM(" + AffectSamples.EMOTION + "),"
+			+ "SUM(" + AffectSamples.EMOTION + "*" + AffectSamples.EMOTION + "),"
+			+ "MIN(" + AffectSamples.EMOTION + "),MAX(" + AffectSamples.EMOTION + "),"
+			+ "SUM(" + AffectSamples.INTENSITY + "),"
+			+ "SUM(" + AffectSamples.INTENSITY + "*" + AffectSamples.INTENSITY + "),"
+			+ "MIN(" + AffectSamples.INTENSITY + "),MAX(" + AffectSamples.INTENSITY + ")"
+			+ " FROM " + AffectProvider.SAMPLES_TABLE_NAME
+			+ " WHERE " + AffectSamples.CREATED_DATE + ">=? AND "
+			+ AffectSamples.CREATED_DATE + "<?";
+
+	private static final String DROP_EMPTY_BUCKET_SQL = "DELETE FROM " + TABLE_NAME
+			+ " WHERE " + AffectRollups.GRANULARITY + "=? AND " + AffectRollups.BUCKET
+			+ "=? AND " + AffectRollups.SAMPLE_COUNT + "=0";
+
+	private final SQLiteDatabase mDb;
+	private final TimeZone mTimeZone = TimeZone.getDefault();
+	private final Calendar mCalendar = Calendar.getInstance(mTimeZone);
+	private SQLiteStatement mCreateBucket;
+	private SQLiteStatement mAddToBucket;
+
+	// The local day last looked up, so runs of samples skip the Calendar
+	private long mDayStart = 0;
+	private long mDayEnd = 0;
+
+	private final HashSet<Long> mInvalidHours = new HashSet<Long>();
+	private final HashSet<Long> mInvalidDays = new HashSet<Long>();
+
+	Rollups(SQLiteDatabase db) {
+		mDb = db;
+	}
+
+	static void createTable(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " ("
+				+ AffectRollups.GRANULARITY + " TEXT NOT NULL,"
+				+ AffectRollups.BUCKET + " INTEGER NOT NULL,"
+				+ AffectRollups.SAMPLE_COUNT + " INTEGER,"
+				+ AffectRollups.EMOTION_SUM + " double,"
+				+ AffectRollups.EMOTION_SUMSQ + " double,"
+				+ AffectRollups.EMOTION_MIN + " double,"
+				+ AffectRollups.EMOTION_MAX + " double,"
+				+ AffectRollups.INTENSITY_SUM + " double,"
+				+ AffectRollups.INTENSITY_SUMSQ + " double,"
+				+ AffectRollups.INTENSITY_MIN + " double,"
+				+ AffectRollups.INTENSITY_MAX + " double,"
+				+ "PRIMARY KEY (" + AffectRollups.GRANULARITY + ","
+				+ AffectRollups.BUCKET + "));");
+	}
+
+	/**
+	 * True if a change to these columns has to be reflected in the rollups.
+	 */
+	static boolean affectedBy(ContentValues values) {
+		return values.containsKey(AffectSamples.CREATED_DATE)
+				|| values.containsKey(AffectSamples.EMOTION)
+				|| values.containsKey(AffectSamples.INTENSITY);
+	}
+
+	static boolean isGranularity(String granularity) {
+		return AffectRollups.HOUR.equals(granularity)
+				|| AffectRollups.DAY.equals(granularity);
+	}
+
+	/**
+	 * Folds a newly inserted sample into its hour and day buckets.
+	 */
+	void add(long created, Object emotion, Object intensity) {
+		if (!(emotion instanceof Number) || !(intensity instanceof Number)) {
+			// min() and sums don't take nulls; let SQL aggregate the bucket instead
+			invalidate(created);
+			return;
+		}
+		double em = ((Number) emotion).doubleValue();
+		double in = ((Number) intensity).doubleValue();
+		addToBucket(AffectRollups.HOUR, hourStart(created), em, in);
+		addToBucket(AffectRollups.DAY, dayStart(created), em, in);
+	}
+
+	private void addToBucket(String granularity, long bucket, double em, double in) {
+		if (mCreateBucket == null) {
+			mCreateBucket = mDb.compileStatement(CREATE_BUCKET_SQL);
+			mAddToBucket = mDb.compileStatement(ADD_TO_BUCKET_SQL);
+		}
+		mCreateBucket.bindString(1, granularity);
+		mCreateBucket.bindLong(2, bucket);
+		mCreateBucket.bindDouble(3, em);
+		mCreateBucket.bindDouble(4, em);
+		mCreateBucket.bindDouble(5, in);
+		mCreateBucket.bindDouble(6, in);
+		mCreateBucket.execute();
+
+		mAddToBucket.bindDouble(1, em);
+		mAddToBucket.bindDouble(2, em * em);
+		mAddToBucket.bindDouble(3, em);
+		mAddToBucket.bindDouble(4, em);
+		mAddToBucket.bindDouble(5, in);
+		mAddToBucket.bindDouble(6, in * in);
+		mAddToBucket.bindDouble(7, in);
+		mAddToBucket.bindDouble(8, in);
+		mAddToBucket.bindString(9, granularity);
+		mAddToBucket.bindLong(10, bucket);
+		mAddToBucket.execute();
+	}
+
+	/**
+	 * Marks the buckets holding a sample created at this time for
+	 * recomputation by {@link #recomputeInvalid}.
+	 */
+	void invalidate(long created) {
+		mInvalidHours.add(Long.valueOf(hourStart(created)));
+		mInvalidDays.add(Long.valueOf(dayStart(created)));
+	}
+
+	/**
+	 * Invalidates the buckets of every sample matched by the selection, ahead
+	 * of an update or delete of those samples.
+	 */
+	void invalidateMatching(String selection, String[] selectionArgs) {
+		Cursor c = mDb.query(AffectProvider.SAMPLES_TABLE_NAME,
+				new String[] { AffectSamples.CREATED_DATE }, selection,
+				selectionArgs, null, null, null);
+		try {
+			for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+				if (!c.isNull(0)) {
+					invalidate(c.getLong(0));
+				}
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	void recomputeInvalid() {
+		if (mInvalidHours.isEmpty() && mInvalidDays.isEmpty()) {
+			return;
+		}
+		SQLiteStatement recompute = mDb.compileStatement(RECOMPUTE_BUCKET_SQL);
+		SQLiteStatement dropEmpty = mDb.compileStatement(DROP_EMPTY_BUCKET_SQL);
+		try {
+			for (Iterator<Long> it = mInvalidHours.iterator(); it.hasNext();) {
+				long start = it.next().longValue();
+				recompute(recompute, dropEmpty, AffectRollups.HOUR, start, start + HOUR_MS);
+			}
+			for (Iterator<Long> it = mInvalidDays.iterator(); it.hasNext();) {
+				long start = it.next().longValue();
+				dayStart(start);
+				recompute(recompute, dropEmpty, AffectRollups.DAY, start, mDayEnd);
+			}
+		} finally {
+			recompute.close();
+			dropEmpty.close();
+		}
+		mInvalidHours.clear();
+		mInvalidDays.clear();
+	}
+
+	private static void recompute(SQLiteStatement recompute, SQLiteStatement dropEmpty,
+			String granularity, long start, long end) {
+		recompute.bindString(1, granularity);
+		recompute.bindLong(2, start);
+		recompute.bindLong(3, start);
+		recompute.bindLong(4, end);
+		recompute.execute();
+
+		dropEmpty.bindString(1, granularity);
+		dropEmpty.bindLong(2, start);
+		dropEmpty.execute();
+	}
+
+	/**
+	 * Recomputes the whole table from the samples, for schema upgrades.
+	 */
+	void rebuild() {
+		mDb.execSQL("DELETE FROM " + TABLE_NAME);
+		Cursor c = mDb.query(AffectProvider.SAMPLES_TABLE_NAME, new String[] {
+				AffectSamples.CREATED_DATE, AffectSamples.EMOTION,
+				AffectSamples.INTENSITY }, AffectSamples.CREATED_DATE + " IS NOT NULL",
+				null, null, null, AffectSamples.CREATED_DATE + " ASC");
+		try {
+			for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+				if (c.isNull(1) || c.isNull(2)) {
+					invalidate(c.getLong(0));
+				} else {
+					addToBucket(AffectRollups.HOUR, hourStart(c.getLong(0)),
+							c.getDouble(1), c.getDouble(2));
+					addToBucket(AffectRollups.DAY, dayStart(c.getLong(0)),
+							c.getDouble(1), c.getDouble(2));
+				}
+			}
+		} finally {
+			c.close();
+		}
+		recomputeInvalid();
+	}
+
+	void close() {
+		if (mCreateBucket != null) {
+			mCreateBucket.close();
+			mAddToBucket.close();
+			mCreateBucket = null;
+			mAddToBucket = null;
+		}
+	}
+
+	long hourStart(long time) {
+		long local = time + mTimeZone.getOffset(time);
+		return time - (((local % HOUR_MS) + HOUR_MS) % HOUR_MS);
+	}
+
+	long dayStart(long time) {
+		if (time < mDayStart || time >= mDayEnd) {
+			mCalendar.setTimeInMillis(time);
+			mCalendar.set(Calendar.HOUR_OF_DAY, 0);
+			mCalendar.set(Calendar.MINUTE, 0);
+			mCalendar.set(Calendar.SECOND, 0);
+			mCalendar.set(Calendar.MILLISECOND, 0);
+			mDayStart = mCalendar.getTimeInMillis();
+			mCalendar.add(Calendar.DATE, 1);
+			mDayEnd = mCalendar.getTimeInMillis();
+		}
+		return mDayStart;
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reads what {@link SampleBinaryWriter} writes back into sample
+ * JSONObjects of the shape {@link AffectSerializer#toJSONObject} builds,
+ * emotion and intensity rounded to the writer's quantum.
+ */
+public class SampleBinaryReader {
+
+	private SampleBinaryReader() {
+	}
+
+	public static JSONArray read(InputStream in) throws IOException {
+		if (in.read() != SampleBinaryWriter.MAGIC_0
+				|| in.read() != SampleBinaryWriter.MAGIC_1) {
+			throw new IOException("Not a binary sample stream");
+		}
+		int version = in.read();
+		if (version != SampleBinaryWriter.VERSION) {
+			throw new IOException("Unknown binary sample version " + version);
+		}
+		long count = readVarint(in);
+		JSONArray samples = new JSONArray();
+		long created = 0;
+		try {
+			for (long i = 0; i < count; i++) {
+				created += unzigzag(readVarint(in));
+				long scheduled = readVarint(in);
+				double emotion = unzigzag(readVarint(in))
+						/ (double) SampleBinaryWriter.QUANTUM;
+				double intensity = unzigzag(readVarint(in))
+						/ (double) SampleBinaryWriter.QUANTUM;
+				long length = readVarint(in);
+
+				JSONObject o = new JSONObject();
+				o.put(AffectSamples.EMOTION, emotion);
+				o.put(AffectSamples.INTENSITY, intensity);
+				o.put(AffectSamples.SCHEDULED_DATE, (scheduled > 0) ? Long
+						.valueOf(created + unzigzag(scheduled - 1)) : null);
+				o.put(AffectSamples.CREATED_DATE, created);
+				o.put(AffectSamples.COMMENT, (length > 0) ? readUTF8(in,
+						(int) (length - 1)) : null);
+				samples.put(o);
+			}
+		} catch (JSONException e) {
+			throw new IOException(e.getMessage());
+		}
+		return samples;
+	}
+
+	static long unzigzag(long n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	static long readVarint(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Varint too long");
+	}
+
+	private static String readUTF8(InputStream in, int length)
+			throws IOException {
+		byte[] bytes = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int n = in.read(bytes, read, length - read);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			read += n;
+		}
+		return new String(bytes, "UTF-8");
+	}
+}
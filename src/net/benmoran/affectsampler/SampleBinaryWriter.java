@@ -0,0 +1,166 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+/**
+ * Writes samples from a Cursor in the compact binary form /batch takes as
+ * {@link #CONTENT_TYPE}, about a tenth the size of the JSON. All integers
+ * are unsigned LEB128 varints; signed ones are zigzag encoded first.
+ *
+ * <pre>
+ * 'A' 'S' version(1)
+ * count
+ * per sample, in created order:
+ *   zigzag(created - previous created), the first from 0
+ *   0 if not scheduled, else zigzag(scheduled - created) + 1
+ *   zigzag(round(emotion * QUANTUM))
+ *   zigzag(round(intensity * QUANTUM))
+ *   0 if no comment, else its UTF-8 length + 1, then the UTF-8 bytes
+ * </pre>
+ *
+ * Not thread safe; use one writer per thread.
+ */
+public class SampleBinaryWriter {
+
+	public static final String CONTENT_TYPE = "application/x-affect-samples";
+
+	/**
+	 * Steps per unit of emotion and intensity: finer than any touch on the
+	 * sampling grid can place them.
+	 */
+	public static final int QUANTUM = 4096;
+
+	static final int MAGIC_0 = 'A';
+	static final int MAGIC_1 = 'S';
+	static final int VERSION = 1;
+
+	private final CharArrayBuffer mBuffer = new CharArrayBuffer(128);
+	private byte[] mUTF8 = new byte[128];
+
+	private Cursor mCursor;
+	private int mEmIndex;
+	private int mInIndex;
+	private int mCdIndex;
+	private int mSdIndex;
+	private int mCoIndex;
+
+	/**
+	 * Writes every row of the cursor, from the first, which must include the
+	 * {@link AffectSerializer#PROJECTION} columns and be in created order.
+	 *
+	 * @return the number of samples written
+	 */
+	public int write(Cursor cursor, OutputStream out) throws IOException {
+		if (cursor != mCursor) {
+			mCursor = cursor;
+			mEmIndex = cursor.getColumnIndex(AffectSamples.EMOTION);
+			mInIndex = cursor.getColumnIndex(AffectSamples.INTENSITY);
+			mCdIndex = cursor.getColumnIndex(AffectSamples.CREATED_DATE);
+			mSdIndex = cursor.getColumnIndex(AffectSamples.SCHEDULED_DATE);
+			mCoIndex = cursor.getColumnIndex(AffectSamples.COMMENT);
+		}
+
+		out.write(MAGIC_0);
+		out.write(MAGIC_1);
+		out.write(VERSION);
+		int count = cursor.getCount();
+		writeVarint(count, out);
+		long previous = 0;
+		for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+			long created = cursor.getLong(mCdIndex);
+			writeVarint(zigzag(created - previous), out);
+			previous = created;
+
+			long scheduled = cursor.getLong(mSdIndex);
+			writeVarint((scheduled > 0) ? zigzag(scheduled - created) + 1 : 0, out);
+			writeVarint(zigzag(quantize(cursor.getDouble(mEmIndex))), out);
+			writeVarint(zigzag(quantize(cursor.getDouble(mInIndex))), out);
+
+			if (cursor.isNull(mCoIndex)) {
+				writeVarint(0, out);
+			} else {
+				cursor.copyStringToBuffer(mCoIndex, mBuffer);
+				int length = encodeUTF8(mBuffer.data, mBuffer.sizeCopied);
+				writeVarint(length + 1, out);
+				out.write(mUTF8, 0, length);
+			}
+		}
+		return count;
+	}
+
+	private static long quantize(double value) {
+		return Math.round(value * QUANTUM);
+	}
+
+	static long zigzag(long n) {
+		return (n << 1) ^ (n >> 63);
+	}
+
+	static void writeVarint(long value, OutputStream out) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * Encodes the chars as UTF-8 into mUTF8, growing it as needed, without
+	 * making a String of them.
+	 *
+	 * @return the number of bytes
+	 */
+	private int encodeUTF8(char[] chars, int length) {
+		if (mUTF8.length < length * 3) {
+			mUTF8 = new byte[length * 3];
+		}
+		byte[] bytes = mUTF8;
+		int n = 0;
+		for (int i = 0; i < length; i++) {
+			int c = chars[i];
+			if (Character.isHighSurrogate((char) c) && i + 1 < length
+					&& Character.isLowSurrogate(chars[i + 1])) {
+				c = Character.toCodePoint((char) c, chars[++i]);
+			} else if (Character.isHighSurrogate((char) c)
+					|| Character.isLowSurrogate((char) c)) {
+				c = '?';
+			}
+			if (c < 0x80) {
+				bytes[n++] = (byte) c;
+			} else if (c < 0x800) {
+				bytes[n++] = (byte) (0xC0 | (c >> 6));
+				bytes[n++] = (byte) (0x80 | (c & 0x3F));
+			} else if (c < 0x10000) {
+				bytes[n++] = (byte) (0xE0 | (c >> 12));
+				bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				bytes[n++] = (byte) (0x80 | (c & 0x3F));
+			} else {
+				bytes[n++] = (byte) (0xF0 | (c >> 18));
+				bytes[n++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+				bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				bytes[n++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return n;
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A summary of the created dates held in a time range, split into buckets
+ * of a fixed span aligned to the epoch: for each non-empty bucket, the
+ * number of samples and the sum of a hash of each created date. Two sides
+ * holding the same samples in a bucket have equal buckets, so comparing
+ * digests finds the ranges worth looking at more closely.
+ *
+ * Buckets being aligned to the epoch, a day bucket is a UTC day, not the
+ * local day of the rollups, so that the server cuts the same buckets. The
+ * hash only needs integer arithmetic, so the provider can sum it in SQL
+ * and /digest in server/main.py in Python; sums travel as unpadded
+ * lowercase hex.
+ */
+public class SampleDigest {
+
+	public static final long HOUR_MILLIS = 60 * 60 * 1000L;
+	public static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+	// The Mersenne prime 2^31 - 1, so a square of a residue fits in a long,
+	// and the multiplier of the MINSTD generator
+	private static final long MODULUS = 2147483647L;
+	private static final long MULTIPLIER = 48271L;
+
+	private static class Bucket {
+		int count;
+		long hash;
+	}
+
+	private final long mSpan;
+	private final TreeMap<Long, Bucket> mBuckets = new TreeMap<Long, Bucket>();
+
+	public SampleDigest(long span) {
+		mSpan = span;
+	}
+
+	/**
+	 * Reads the body of a /digest response.
+	 */
+	public static SampleDigest fromJSON(JSONObject json) throws JSONException {
+		SampleDigest digest = new SampleDigest(json.getLong("span"));
+		JSONArray buckets = json.getJSONArray("buckets");
+		for (int i = 0; i < buckets.length(); i++) {
+			JSONObject item = buckets.getJSONObject(i);
+			Bucket bucket = new Bucket();
+			bucket.count = item.getInt("count");
+			bucket.hash = parseHex(item.getString("hash"));
+			digest.mBuckets.put(Long.valueOf(item.getLong("start")), bucket);
+		}
+		return digest;
+	}
+
+	public JSONObject toJSON() throws JSONException {
+		JSONArray buckets = new JSONArray();
+		for (Map.Entry<Long, Bucket> entry : mBuckets.entrySet()) {
+			buckets.put(new JSONObject().put("start", entry.getKey().longValue())
+					.put("count", entry.getValue().count).put("hash",
+							Long.toHexString(entry.getValue().hash)));
+		}
+		return new JSONObject().put("span", mSpan).put("buckets", buckets);
+	}
+
+	public void add(long created) {
+		Long start = Long.valueOf(bucketStart(created, mSpan));
+		Bucket bucket = mBuckets.get(start);
+		if (bucket == null) {
+			bucket = new Bucket();
+			mBuckets.put(start, bucket);
+		}
+		bucket.count++;
+		bucket.hash += hash(created);
+	}
+
+	/**
+	 * Sets a bucket already counted and hashed, such as a row of the
+	 * provider's digest.
+	 */
+	public void put(long start, int count, long hash) {
+		Bucket bucket = new Bucket();
+		bucket.count = count;
+		bucket.hash = hash;
+		mBuckets.put(Long.valueOf(start), bucket);
+	}
+
+	public long getSpan() {
+		return mSpan;
+	}
+
+	public boolean isEmpty() {
+		return mBuckets.isEmpty();
+	}
+
+	/**
+	 * The start of the first non-empty bucket; the digest must not be
+	 * empty.
+	 */
+	public long getFirstStart() {
+		return mBuckets.firstKey().longValue();
+	}
+
+	/**
+	 * The start of the last non-empty bucket; the digest must not be empty.
+	 */
+	public long getLastStart() {
+		return mBuckets.lastKey().longValue();
+	}
+
+	/**
+	 * The starts of the buckets this digest holds samples in that other
+	 * doesn't match, in order. Buckets only other has samples in are left
+	 * out: there is nothing here to send for them.
+	 */
+	public List<Long> differingFrom(SampleDigest other) {
+		List<Long> starts = new ArrayList<Long>();
+		for (Map.Entry<Long, Bucket> entry : mBuckets.entrySet()) {
+			Bucket theirs = other.mBuckets.get(entry.getKey());
+			Bucket ours = entry.getValue();
+			if (theirs == null || theirs.count != ours.count
+					|| theirs.hash != ours.hash) {
+				starts.add(entry.getKey());
+			}
+		}
+		return starts;
+	}
+
+	public static long bucketStart(long created, long span) {
+		return created - created % span;
+	}
+
+	/**
+	 * A quadratic hash of the created date, which must not be negative,
+	 * modulo 2^31 - 1; as /digest in server/main.py computes it.
+	 */
+	public static long hash(long created) {
+		long x = created % MODULUS;
+		return ((x * x) % MODULUS * MULTIPLIER + x) % MODULUS;
+	}
+
+	/**
+	 * The same hash as an SQLite expression over the named column; every
+	 * step stays within SQLite's 64-bit integers.
+	 */
+	public static String hashSQL(String column) {
+		String x = "(" + column + " % " + MODULUS + ")";
+		return "((" + x + " * " + x + ") % " + MODULUS + " * " + MULTIPLIER
+				+ " + " + x + ") % " + MODULUS;
+	}
+
+	/**
+	 * Parses up to 16 hex digits as an unsigned 64-bit value.
+	 */
+	private static long parseHex(String hex) throws JSONException {
+		if (hex.length() > 16) {
+			throw new JSONException("Hash too long: " + hex);
+		}
+		long value = 0;
+		for (int i = 0; i < hex.length(); i++) {
+			int digit = Character.digit(hex.charAt(i), 16);
+			if (digit < 0) {
+				throw new JSONException("Not a hex hash: " + hex);
+			}
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+}
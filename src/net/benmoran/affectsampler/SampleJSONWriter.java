@@ -0,0 +1,179 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+/**
+ * Writes samples as JSON straight from a Cursor, in the same shape as
+ * {@link AffectSerializer#toJSONObject}, without building JSONObjects.
+ * Comments are copied through one reused buffer, so writing any number of
+ * rows needs no more memory than the longest comment.
+ *
+ * Not thread safe; use one writer per thread.
+ */
+public class SampleJSONWriter {
+
+	private final CharArrayBuffer mBuffer = new CharArrayBuffer(128);
+
+	private Cursor mCursor;
+	private int mEmIndex;
+	private int mInIndex;
+	private int mCdIndex;
+	private int mSdIndex;
+	private int mCoIndex;
+
+	/**
+	 * Writes every row of the cursor, from the first, as a JSON array.
+	 *
+	 * @return the number of samples written
+	 */
+	public int writeArray(Cursor cursor, Writer out) throws IOException {
+		out.write('[');
+		int count = 0;
+		for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+			if (count++ > 0) {
+				out.write(',');
+			}
+			writeObject(cursor, out);
+		}
+		out.write(']');
+		return count;
+	}
+
+	/**
+	 * Writes the sample at the cursor's current position, which must
+	 * include the {@link AffectSerializer#PROJECTION} columns.
+	 */
+	public void writeObject(Cursor cursor, Writer out) throws IOException {
+		writeObject(cursor, out, null, -1);
+	}
+
+	/**
+	 * Writes the sample at the cursor's current position with an "op"
+	 * member, as /batch takes for changes to samples it already holds, and
+	 * the server's "id" for the sample; no op if op is null, and no id if
+	 * remoteId is negative.
+	 */
+	public void writeObject(Cursor cursor, Writer out, String op,
+			long remoteId) throws IOException {
+		if (cursor != mCursor) {
+			mCursor = cursor;
+			mEmIndex = cursor.getColumnIndex(AffectSamples.EMOTION);
+			mInIndex = cursor.getColumnIndex(AffectSamples.INTENSITY);
+			mCdIndex = cursor.getColumnIndex(AffectSamples.CREATED_DATE);
+			mSdIndex = cursor.getColumnIndex(AffectSamples.SCHEDULED_DATE);
+			mCoIndex = cursor.getColumnIndex(AffectSamples.COMMENT);
+		}
+
+		out.write("{\"" + AffectSamples.EMOTION + "\":");
+		writeNumber(cursor.getDouble(mEmIndex), out);
+		out.write(",\"" + AffectSamples.INTENSITY + "\":");
+		writeNumber(cursor.getDouble(mInIndex), out);
+		out.write(",\"" + AffectSamples.SCHEDULED_DATE + "\":");
+		long scheduled = cursor.getLong(mSdIndex);
+		if (scheduled > 0) {
+			out.write(Long.toString(scheduled));
+		} else {
+			out.write("null");
+		}
+		out.write(",\"" + AffectSamples.CREATED_DATE + "\":");
+		out.write(Long.toString(cursor.getLong(mCdIndex)));
+		out.write(",\"" + AffectSamples.COMMENT + "\":");
+		if (cursor.isNull(mCoIndex)) {
+			out.write("null");
+		} else {
+			cursor.copyStringToBuffer(mCoIndex, mBuffer);
+			writeString(mBuffer.data, mBuffer.sizeCopied, out);
+		}
+		if (op != null) {
+			out.write(",\"op\":\"" + op + "\"");
+		}
+		if (remoteId >= 0) {
+			out.write(",\"id\":" + remoteId);
+		}
+		out.write('}');
+	}
+
+	/**
+	 * Writes whole numbers without a fraction, as JSONObject does.
+	 */
+	private static void writeNumber(double d, Writer out) throws IOException {
+		if (Double.isNaN(d) || Double.isInfinite(d)) {
+			out.write("null");
+		} else if (d == (long) d) {
+			out.write(Long.toString((long) d));
+		} else {
+			out.write(Double.toString(d));
+		}
+	}
+
+	private static void writeString(char[] chars, int length, Writer out)
+			throws IOException {
+		out.write('"');
+		int start = 0;
+		for (int i = 0; i < length; i++) {
+			char c = chars[i];
+			String escape;
+			switch (c) {
+			case '"':
+				escape = "\\\"";
+				break;
+			case '\\':
+				escape = "\\\\";
+				break;
+			case '\b':
+				escape = "\\b";
+				break;
+			case '\f':
+				escape = "\\f";
+				break;
+			case '\n':
+				escape = "\\n";
+				break;
+			case '\r':
+				escape = "\\r";
+				break;
+			case '\t':
+				escape = "\\t";
+				break;
+			case '/':
+				// Keep "</" out of the output, as JSONObject does
+				escape = (i > 0 && chars[i - 1] == '<') ? "\\/" : null;
+				break;
+			default:
+				if (c < ' ' || c == '\u2028' || c == '\u2029') {
+					String hex = Integer.toHexString(c);
+					escape = "\\u0000".substring(0, 6 - hex.length()) + hex;
+				} else {
+					escape = null;
+				}
+			}
+			if (escape != null) {
+				out.write(chars, start, i - start);
+				out.write(escape);
+				start = i + 1;
+			}
+		}
+		out.write(chars, start, length - start);
+		out.write('"');
+	}
+}
@@ -54,6 +54,8 @@ public class SampleNotificationReceiver extends BroadcastReceiver {
 
 			notificationManager.notify(SAMPLE_NOTIFICATION, notification);
 			// which will open AffectSampler, with the scheduledAt passed through
+			// and the widget can answer it too, without opening anything
+			QuickCaptureWidget.update(context, scheduledAt);
 			
 		} else {
 			Log.e(TAG, "Received unexpected intent " + intent.toString());
@@ -19,7 +19,6 @@ import java.sql.Time;
 import java.sql.Timestamp;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.Random;
 
@@ -28,6 +27,9 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.widget.Toast;
 
@@ -56,6 +58,24 @@ public class SampleScheduler {
 
 	private static Random sRandom = new Random();
 
+	// The preferences and plan shared by schedulers made from a Context, so
+	// a receiver scheduling the next alarm neither parses the preferences
+	// nor works out the day's slots again. Guarded by SampleScheduler.class
+	private static PrefsVO sPrefs;
+	private static SchedulePlan sPlan;
+	private static SharedPreferences sSettings;
+
+	// Held here, as the preferences keep only a weak reference to it
+	private static final OnSharedPreferenceChangeListener sInvalidator = new OnSharedPreferenceChangeListener() {
+		public void onSharedPreferenceChanged(SharedPreferences settings,
+				String key) {
+			invalidate();
+		}
+	};
+
+	private final boolean mShared;
+	private SchedulePlan mPlan;
+
 	//
 	// private static Date parseDate(String dateStr) throws ParseException {
 	// SimpleDateFormat formatter = new SimpleDateFormat("dd-MMM-yy HH:mm");
@@ -90,13 +110,39 @@ public class SampleScheduler {
 		return prefs;
 	}
 
+	private static synchronized PrefsVO sharedPrefs(Context context) {
+		if (sSettings == null) {
+			sSettings = PreferenceManager.getDefaultSharedPreferences(context);
+			sSettings.registerOnSharedPreferenceChangeListener(sInvalidator);
+		}
+		if (sPrefs == null) {
+			sPrefs = readPrefs(context);
+			sPlan = null;
+		}
+		return sPrefs;
+	}
+
+	/**
+	 * Drops the shared preferences and plan, to be read and planned again on
+	 * next use.
+	 */
+	static synchronized void invalidate() {
+		sPrefs = null;
+		sPlan = null;
+	}
+
 	public SampleScheduler(Context context) {
-		this(context, readPrefs(context));
+		this(context, sharedPrefs(context), true);
 	}
 
 	public SampleScheduler(Context context, PrefsVO prefs) {
+		this(context, prefs, false);
+	}
+
+	private SampleScheduler(Context context, PrefsVO prefs, boolean shared) {
 		mContext = context;
 		mPrefs = prefs;
+		mShared = shared;
 	}
 
 	//
@@ -113,52 +159,43 @@ public class SampleScheduler {
 	// return intervals;
 	// }
 
-	private Calendar timeOnDay(Time time, Timestamp day) {
-		Calendar timeCal = Calendar.getInstance();
-		timeCal.setTime(time);
-		Calendar dayCal = Calendar.getInstance();
-		dayCal.setTime(day);
-		int hours = timeCal.get(Calendar.HOUR_OF_DAY);
-		int mins = timeCal.get(Calendar.MINUTE);
-		int secs = timeCal.get(Calendar.SECOND);
-
-		dayCal.set(Calendar.HOUR_OF_DAY, hours);
-		dayCal.set(Calendar.MINUTE, mins);
-		dayCal.set(Calendar.SECOND, secs);
-		return dayCal;
-	}
-	
-	public Interval getNextInterval(Timestamp probeTime) {
-		Calendar start = timeOnDay(mPrefs.startTime, probeTime);
-		Calendar end = timeOnDay(mPrefs.endTime, probeTime);		
-		
-		long startMs = start.getTimeInMillis();
-		long endMs = end.getTimeInMillis();
-		long duration = (endMs - startMs) / mPrefs.samplesPerDay;
-
-		if (probeTime.getTime() >= (endMs - duration)) {
-			start.add(Calendar.DATE, 1);
-			end.add(Calendar.DATE, 1);
-			startMs = start.getTimeInMillis();
-			endMs = end.getTimeInMillis();
-
+	private SchedulePlan planFor(long time) {
+		if (mShared) {
+			synchronized (SampleScheduler.class) {
+				if (sPlan == null || !sPlan.covers(time)) {
+					sPlan = SchedulePlan.build(mPrefs, time);
+				}
+				return sPlan;
+			}
 		}
-
-		int seq = (int) Math.max((probeTime.getTime() - startMs) / duration, -1);
-		seq++;
-		Timestamp startTime = new Timestamp(startMs + duration * (seq));
-		Timestamp endTime = new Timestamp(startMs + duration * (seq+1));		
-		return new Interval(startTime, endTime, seq);
+		if (mPlan == null || !mPlan.covers(time)) {
+			mPlan = SchedulePlan.build(mPrefs, time);
+		}
+		return mPlan;
 	}
 
-	private boolean noAlarms() {
-		return (mPrefs.samplesPerDay == 0);
+	/**
+	 * @return the first slot starting after the probe time, or null if no
+	 *         samples are wanted
+	 */
+	public Interval getNextInterval(Timestamp probeTime) {
+		SchedulePlan plan = planFor(probeTime.getTime());
+		int slot = plan.nextSlotAfter(probeTime.getTime());
+		if (slot < 0) {
+			return null;
+		}
+		return new Interval(new Timestamp(plan.getSlotStart(slot)),
+				new Timestamp(plan.getSlotEnd(slot)), plan.getSequenceID(slot));
 	}
 
+	/**
+	 * Draws a new random time in the next interval; the alarm itself goes
+	 * off at the time the plan drew for it.
+	 */
 	public Timestamp getNextSampleTime(Timestamp probeTime) {
-		if (noAlarms())
-			return null;
 		Interval interval = getNextInterval(probeTime);
+		if (interval == null)
+			return null;
 		return new Timestamp(randomLong(interval.startTime.getTime(),
 				interval.endTime.getTime()));
 	}
@@ -175,8 +212,8 @@ public class SampleScheduler {
 	}
 
 	/**
-	 * Schedules alarm for getNextTime, clearing any previous alarms (or cancels
-	 * any previous if freq=0 in prefsObj).
+	 * Schedules alarm for the plan's time in the next interval, clearing any
+	 * previous alarms (or cancels any previous if freq=0 in prefsObj).
 	 * 
 	 * @return the time that was scheduled, or null if cancelled.
 	 **/
@@ -184,16 +221,17 @@ public class SampleScheduler {
 
 		// TODO: Test this
 		Intent intent = new Intent(SCHEDULED_SAMPLE);
-		Timestamp schedule = getNextSampleTime(probeTime);
-		intent.putExtra(SCHEDULED_AT, noAlarms() ? -1 : schedule.getTime());
+		long schedule = planFor(probeTime.getTime()).nextSampleAfter(
+				probeTime.getTime());
+		intent.putExtra(SCHEDULED_AT, schedule);
 		PendingIntent pendingIntent = PendingIntent.getBroadcast(mContext,
 				REQUEST_CODE, intent, 0);
 
-		if (noAlarms()) {
+		if (schedule < 0) {
 			cancelAlarm(pendingIntent);
 			return null;
 		} else {
-			return setAlarm(pendingIntent, schedule);
+			return setAlarm(pendingIntent, new Timestamp(schedule));
 		}
 	}
 
@@ -203,8 +241,7 @@ public class SampleScheduler {
 
 		alarmManager.set(AlarmManager.RTC_WAKEUP, schedule.getTime(),
 				pendingIntent);
-		Toast.makeText(mContext, "Alarm set " + schedule.toString(),
-				Toast.LENGTH_LONG).show();
+		showToast("Alarm set " + schedule.toString());
 		return schedule;
 	}
 
@@ -212,6 +249,16 @@ public class SampleScheduler {
 		AlarmManager alarmManager = (AlarmManager) mContext
 				.getSystemService(Context.ALARM_SERVICE);
 		alarmManager.cancel(pendingIntent);
-		Toast.makeText(mContext, "Alarm cancelled", Toast.LENGTH_LONG).show();
+		showToast("Alarm cancelled");
+	}
+
+	private void showToast(final String text) {
+		// Scheduling may run on the SampleWriter's thread, which has no looper
+		// for a toast of its own
+		new Handler(Looper.getMainLooper()).post(new Runnable() {
+			public void run() {
+				Toast.makeText(mContext, text, Toast.LENGTH_LONG).show();
+			}
+		});
 	}
 }
@@ -0,0 +1,252 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Saves samples and schedules the next alarm on a thread of its own, so
+ * the sampling activity can take a sample and finish without waiting on
+ * the database or the preferences. Samples saved while a write is waiting
+ * to start go together in its one bulk insert, and the alarm is scheduled
+ * once after it. Queued samples are only held in memory, so while any are
+ * the writer keeps {@link SampleWriterService} started, and the process
+ * with it.
+ */
+public class SampleWriter {
+
+	private static final String TAG = "SampleWriter";
+
+	/**
+	 * A sample as the user gave it, with its created date fixed when it was
+	 * taken rather than when it is written.
+	 */
+	public static final class Sample {
+		private final double mEmotion;
+		private final double mIntensity;
+		private final String mComment;
+		private final long mScheduled;
+		private final long mCreated;
+
+		/**
+		 * @param scheduled
+		 *            when the sample was asked for, or 0 if the user started
+		 *            it
+		 */
+		public Sample(double emotion, double intensity, String comment,
+				long scheduled, long created) {
+			mEmotion = emotion;
+			mIntensity = intensity;
+			mComment = comment;
+			mScheduled = scheduled;
+			mCreated = created;
+		}
+
+		ContentValues toContentValues() {
+			ContentValues values = new ContentValues();
+			values.put(AffectSamples.EMOTION, mEmotion);
+			values.put(AffectSamples.INTENSITY, mIntensity);
+			values.put(AffectSamples.COMMENT, mComment);
+			if (mScheduled > 0) {
+				values.put(AffectSamples.SCHEDULED_DATE, mScheduled);
+			}
+			values.put(AffectSamples.CREATED_DATE, mCreated);
+			return values;
+		}
+	}
+
+	private static SampleWriter sInstance;
+
+	private final Context mContext;
+	private final ContentResolver mContentResolver;
+	private final ExecutorService mExecutor;
+	private final Intent mService;
+
+	// Guarded by this: what the next write is to do, and whether it has been
+	// submitted
+	private List<Sample> mPending = new ArrayList<Sample>();
+	private boolean mReschedule;
+	private boolean mSubmitted;
+
+	public static synchronized SampleWriter getInstance(Context context) {
+		if (sInstance == null) {
+			Context app = context.getApplicationContext();
+			sInstance = new SampleWriter(app, app.getContentResolver());
+		}
+		return sInstance;
+	}
+
+	SampleWriter(Context context, ContentResolver contentResolver) {
+		mContext = context;
+		mContentResolver = contentResolver;
+		mService = new Intent(context, SampleWriterService.class);
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, TAG);
+			}
+		});
+	}
+
+	/**
+	 * Queues the sample to be inserted, then the next alarm scheduled.
+	 */
+	public synchronized void save(Sample sample) {
+		mPending.add(sample);
+		mReschedule = true;
+		submit();
+	}
+
+	/**
+	 * Inserts the sample, then schedules the next alarm, on the caller's
+	 * thread, for callers whose process may be killed as soon as they
+	 * return, such as broadcast receivers. One insert is quick enough there.
+	 */
+	public void saveNow(Sample sample) {
+		long start = SystemClock.uptimeMillis();
+		mContentResolver.insert(AffectSamples.CONTENT_URI, sample
+				.toContentValues());
+		scheduleNextSample();
+		Log.i(TAG, "Wrote 1 sample now and rescheduled in "
+				+ (SystemClock.uptimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Queues the next alarm to be scheduled, as when a sample is dismissed.
+	 */
+	public synchronized void reschedule() {
+		mReschedule = true;
+		submit();
+	}
+
+	/**
+	 * Opens the database on the writer's thread, ahead of the first save.
+	 */
+	public void warmUp() {
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				long start = SystemClock.uptimeMillis();
+				Cursor cursor = mContentResolver.query(AffectSamples.withLimit(
+						AffectSamples.CONTENT_URI, 1),
+						new String[] { AffectSamples._ID }, null, null, null);
+				if (cursor != null) {
+					cursor.close();
+				}
+				Log.i(TAG, "Database warmed up in "
+						+ (SystemClock.uptimeMillis() - start) + "ms");
+			}
+		});
+	}
+
+	private void submit() {
+		if (mSubmitted) {
+			return;
+		}
+		mSubmitted = true;
+		// Kept alive until the write drains the queue
+		mContext.startService(mService);
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				write();
+			}
+		});
+	}
+
+	private void write() {
+		List<Sample> samples;
+		boolean reschedule;
+		synchronized (this) {
+			samples = mPending;
+			reschedule = mReschedule;
+			mPending = new ArrayList<Sample>();
+			mReschedule = false;
+			mSubmitted = false;
+		}
+
+		long start = SystemClock.uptimeMillis();
+		boolean inserted = true;
+		if (!samples.isEmpty()) {
+			ContentValues[] values = new ContentValues[samples.size()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = samples.get(i).toContentValues();
+			}
+			try {
+				insert(values);
+			} catch (RuntimeException e) {
+				// Kept for the next write rather than lost with this thread
+				Log.e(TAG, "Could not write " + values.length + " samples", e);
+				inserted = false;
+			}
+		}
+		if (reschedule) {
+			try {
+				scheduleNextSample();
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Could not schedule the next sample", e);
+			}
+		}
+		Log.i(TAG, "Wrote " + (inserted ? samples.size() : 0) + " samples"
+				+ (reschedule ? " and rescheduled" : "") + " in "
+				+ (SystemClock.uptimeMillis() - start) + "ms");
+
+		synchronized (this) {
+			if (!inserted) {
+				mPending.addAll(0, samples);
+			}
+			if (!mSubmitted) {
+				// Nothing saved since this write started
+				mContext.stopService(mService);
+			}
+		}
+	}
+
+	protected void insert(ContentValues[] values) {
+		mContentResolver.bulkInsert(AffectSamples.CONTENT_URI, values);
+	}
+
+	protected void scheduleNextSample() {
+		new SampleScheduler(mContext).scheduleNextSample();
+		// Whatever prompt was showing has been answered or dismissed
+		QuickCaptureWidget.update(mContext, -1);
+	}
+
+	/**
+	 * Blocks until everything queued so far has been written.
+	 */
+	void waitUntilWritten() throws InterruptedException {
+		final CountDownLatch written = new CountDownLatch(1);
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				written.countDown();
+			}
+		});
+		written.await();
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.sql.Time;
+import java.util.Arrays;
+import java.util.Calendar;
+
+import net.benmoran.affectsampler.SampleScheduler.PrefsVO;
+
+/**
+ * The sampling slots of the next {@link #DAYS} days, worked out in one pass
+ * with a random sample time already drawn in each, so finding the next
+ * sample after a time is a binary search over the slot starts rather than
+ * calendar arithmetic. Slots are numbered from the first day's first slot;
+ * a slot's place in its day is its number modulo the samples per day.
+ */
+public class SchedulePlan {
+
+	public static final int DAYS = 7;
+
+	private final long mFrom;
+	private final int mSamplesPerDay;
+	private final long[] mSlotStarts;
+	private final long[] mSlotEnds;
+	private final long[] mSampleTimes;
+
+	/**
+	 * Plans the slots from the start of the day containing the given time.
+	 * The plan is empty if the preferences ask for no samples, or end the day
+	 * before they start it.
+	 */
+	public static SchedulePlan build(PrefsVO prefs, long from) {
+		Calendar start = timeOnDay(prefs.startTime, from);
+		Calendar end = timeOnDay(prefs.endTime, from);
+		int perDay = prefs.samplesPerDay;
+		if (perDay <= 0 || end.getTimeInMillis() - start.getTimeInMillis() < perDay) {
+			return new SchedulePlan(from, 0, 0);
+		}
+
+		SchedulePlan plan = new SchedulePlan(from, perDay, DAYS * perDay);
+		int slot = 0;
+		for (int day = 0; day < DAYS; day++) {
+			// Day by day through the calendar, so a change of daylight saving
+			// time moves the slots with the clock
+			long startMs = start.getTimeInMillis();
+			long duration = (end.getTimeInMillis() - startMs) / perDay;
+			for (int seq = 0; seq < perDay; seq++, slot++) {
+				long slotStart = startMs + duration * seq;
+				long slotEnd = slotStart + duration;
+				plan.mSlotStarts[slot] = slotStart;
+				plan.mSlotEnds[slot] = slotEnd;
+				plan.mSampleTimes[slot] = SampleScheduler.randomLong(slotStart,
+						slotEnd);
+			}
+			start.add(Calendar.DATE, 1);
+			end.add(Calendar.DATE, 1);
+		}
+		return plan;
+	}
+
+	private static Calendar timeOnDay(Time time, long day) {
+		Calendar timeCal = Calendar.getInstance();
+		timeCal.setTime(time);
+		Calendar dayCal = Calendar.getInstance();
+		dayCal.setTimeInMillis(day);
+		dayCal.set(Calendar.HOUR_OF_DAY, timeCal.get(Calendar.HOUR_OF_DAY));
+		dayCal.set(Calendar.MINUTE, timeCal.get(Calendar.MINUTE));
+		dayCal.set(Calendar.SECOND, timeCal.get(Calendar.SECOND));
+		dayCal.set(Calendar.MILLISECOND, 0);
+		return dayCal;
+	}
+
+	private SchedulePlan(long from, int samplesPerDay, int slots) {
+		mFrom = from;
+		mSamplesPerDay = samplesPerDay;
+		mSlotStarts = new long[slots];
+		mSlotEnds = new long[slots];
+		mSampleTimes = new long[slots];
+	}
+
+	/**
+	 * @return the first slot starting after the given time, or -1 if there
+	 *         is none in the plan
+	 */
+	public int nextSlotAfter(long time) {
+		int index = Arrays.binarySearch(mSlotStarts, time);
+		// Slot starts are distinct, so a match means the slot after it
+		index = (index >= 0) ? index + 1 : -index - 1;
+		return (index < mSlotStarts.length) ? index : -1;
+	}
+
+	/**
+	 * @return the sample time drawn for the first slot starting after the
+	 *         given time, or -1 if there is none in the plan
+	 */
+	public long nextSampleAfter(long time) {
+		int slot = nextSlotAfter(time);
+		return (slot < 0) ? -1 : mSampleTimes[slot];
+	}
+
+	/**
+	 * Whether the plan can answer for the given time: it was planned from no
+	 * later than it, and has a slot after it, unless it has no slots at all.
+	 */
+	public boolean covers(long time) {
+		return isEmpty() || (time >= mFrom && nextSlotAfter(time) >= 0);
+	}
+
+	public boolean isEmpty() {
+		return mSlotStarts.length == 0;
+	}
+
+	public long getSlotStart(int slot) {
+		return mSlotStarts[slot];
+	}
+
+	public long getSlotEnd(int slot) {
+		return mSlotEnds[slot];
+	}
+
+	public long getSampleTime(int slot) {
+		return mSampleTimes[slot];
+	}
+
+	/**
+	 * @return the slot's place in its day, from 0
+	 */
+	public int getSequenceID(int slot) {
+		return slot % mSamplesPerDay;
+	}
+}
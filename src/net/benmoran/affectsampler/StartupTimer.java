@@ -0,0 +1,98 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Times the phases of an activity's launch, from onCreate to the first
+ * time its window has focus and it can be answered, and logs them in one
+ * line per launch, as a warning if the launch went over
+ * {@link #BUDGET_MILLIS}.
+ */
+public class StartupTimer {
+
+	private static final String TAG = "StartupTimer";
+
+	/**
+	 * How long from onCreate until a prompt can be answered.
+	 */
+	public static final long BUDGET_MILLIS = 300;
+
+	private final String mName;
+	private final long mStart;
+	private final StringBuilder mPhases = new StringBuilder();
+	private long mLast;
+	private boolean mFinished;
+
+	public StartupTimer(String name) {
+		this(name, SystemClock.uptimeMillis());
+	}
+
+	StartupTimer(String name, long start) {
+		mName = name;
+		mStart = start;
+		mLast = start;
+	}
+
+	/**
+	 * Ends the phase named, which began when the last one ended.
+	 */
+	public void mark(String phase) {
+		mark(phase, SystemClock.uptimeMillis());
+	}
+
+	void mark(String phase, long now) {
+		if (mFinished) {
+			return;
+		}
+		if (mPhases.length() > 0) {
+			mPhases.append(", ");
+		}
+		mPhases.append(phase).append(' ').append(now - mLast).append("ms");
+		mLast = now;
+	}
+
+	/**
+	 * Ends the last phase and logs the launch; later calls do nothing.
+	 *
+	 * @return the whole launch's time, or -1 if already finished
+	 */
+	public long finish(String phase) {
+		return finish(phase, SystemClock.uptimeMillis());
+	}
+
+	long finish(String phase, long now) {
+		if (mFinished) {
+			return -1;
+		}
+		mark(phase, now);
+		mFinished = true;
+		long total = now - mStart;
+		String message = describe(total);
+		if (total > BUDGET_MILLIS) {
+			Log.w(TAG, message + ", over the " + BUDGET_MILLIS + "ms budget");
+		} else {
+			Log.i(TAG, message);
+		}
+		return total;
+	}
+
+	String describe(long total) {
+		return mName + " started in " + total + "ms: " + mPhases;
+	}
+}
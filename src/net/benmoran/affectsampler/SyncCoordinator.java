@@ -0,0 +1,214 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import net.benmoran.affectsampler.datastore.AppEngineClientImpl;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Runs every sync in the process, one at a time, on a thread of its own.
+ * A sync asked for while one is waiting to start joins it; one asked for
+ * while one is running is queued to follow it, and any more asked for by
+ * then join that. Each result goes to every registered SyncCaller on the
+ * main thread.
+ */
+public class SyncCoordinator {
+
+	private static final String TAG = "SyncCoordinator";
+
+	private static SyncCoordinator sInstance;
+
+	private final ExecutorService mExecutor;
+	private final Handler mHandler;
+	private final List<SyncCaller> mCallers = new ArrayList<SyncCaller>();
+
+	// Guarded by this: the params for the run waiting to start, if any,
+	// and whether one is running
+	private SyncParams mWaiting;
+	private boolean mRunning;
+	private Synchronizer mSync;
+
+	public static synchronized SyncCoordinator getInstance() {
+		if (sInstance == null) {
+			sInstance = new SyncCoordinator();
+		}
+		return sInstance;
+	}
+
+	SyncCoordinator() {
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, TAG);
+			}
+		});
+		mHandler = new Handler(Looper.getMainLooper());
+	}
+
+	/**
+	 * Registers a caller to be told the result of every sync from now on.
+	 */
+	public void addCaller(SyncCaller caller) {
+		synchronized (mCallers) {
+			if (!mCallers.contains(caller)) {
+				mCallers.add(caller);
+			}
+		}
+	}
+
+	public void removeCaller(SyncCaller caller) {
+		synchronized (mCallers) {
+			mCallers.remove(caller);
+		}
+	}
+
+	/**
+	 * Asks for a sync with the params, joining one already waiting to
+	 * start, which then runs with these params.
+	 */
+	public synchronized void requestSync(SyncParams params) {
+		boolean idle = (mWaiting == null && !mRunning);
+		mWaiting = params;
+		if (idle) {
+			mExecutor.execute(new Runnable() {
+				public void run() {
+					runWaiting();
+				}
+			});
+		} else {
+			Log.i(TAG, "Sync already " + (mRunning ? "running" : "waiting")
+					+ ", joining the next run");
+		}
+	}
+
+	/**
+	 * True while a sync is running or waiting to start.
+	 */
+	public synchronized boolean isBusy() {
+		return mRunning || mWaiting != null;
+	}
+
+	/**
+	 * Cuts short the sync running now, if any. One waiting to start still
+	 * runs.
+	 */
+	public void cancel() {
+		Synchronizer sync;
+		synchronized (this) {
+			sync = mSync;
+		}
+		if (sync != null) {
+			sync.cancel();
+		}
+	}
+
+	/**
+	 * Runs syncs on the coordinator's thread until none are waiting.
+	 */
+	private void runWaiting() {
+		while (true) {
+			SyncParams params;
+			synchronized (this) {
+				params = mWaiting;
+				if (params == null) {
+					return;
+				}
+				mWaiting = null;
+				mRunning = true;
+			}
+			SyncResult result;
+			try {
+				result = runSync(params);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Sync failed", e);
+				result = new SyncResult(e);
+			} finally {
+				synchronized (this) {
+					mRunning = false;
+					mSync = null;
+				}
+			}
+			post(result);
+		}
+	}
+
+	private void post(final SyncResult result) {
+		mHandler.post(new Runnable() {
+			public void run() {
+				// Callers may remove themselves when told
+				SyncCaller[] callers;
+				synchronized (mCallers) {
+					callers = mCallers.toArray(new SyncCaller[mCallers.size()]);
+				}
+				for (SyncCaller caller : callers) {
+					if (result.isOK()) {
+						caller.onSuccess(result.getCount());
+					} else {
+						caller.onError(result.getException());
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Uploads what the server lacks, reconciling first after a reinstall,
+	 * then pulls what other devices uploaded. Runs on the coordinator's
+	 * thread.
+	 */
+	protected SyncResult runSync(SyncParams params) {
+		int syncCount;
+		int pullCount;
+		AppEngineClientImpl client = null;
+		try {
+			client = new AppEngineClientImpl(params.username, params.password,
+					params.URI, params.authCache);
+			Synchronizer sync = new Synchronizer(client);
+			synchronized (this) {
+				mSync = sync;
+			}
+			SyncStore store = new SyncStore(params.contentResolver);
+			if (store.getWatermark() == SyncStore.MISSING_WATERMARK) {
+				// Reinstalled or cleared: find out what the server really has
+				syncCount = sync.reconcile(store);
+			} else {
+				syncCount = sync.sync(store);
+			}
+			// Then bring in what the user's other devices uploaded
+			pullCount = sync.pull(store);
+		} catch (SyncException e) {
+			if (client == null) {
+				return new SyncResult(e);
+			}
+			return new SyncResult(e, client.getAttempts(), client.getRetries());
+		} finally {
+			AppEngineClientImpl.closeIdleConnections();
+		}
+		Log.i(TAG, "Synced " + syncCount + " and pulled " + pullCount + " in "
+				+ client.getAttempts() + " requests, " + client.getRetries()
+				+ " retried");
+		return new SyncResult(syncCount, client.getAttempts(), client
+				.getRetries());
+	}
+}
@@ -15,6 +15,7 @@
  */
 package net.benmoran.affectsampler;
 
+import net.benmoran.affectsampler.datastore.AuthCache;
 import android.content.ContentResolver;
 
 public class SyncParams {
@@ -22,13 +23,20 @@ public class SyncParams {
 	public final String password;
 	public final String URI;
 	public final ContentResolver contentResolver;
+	public final AuthCache authCache;
 	
 	public SyncParams(String username, String password, String URI, ContentResolver contentResolver) {
+		this(username, password, URI, contentResolver, null);
+	}
+
+	public SyncParams(String username, String password, String URI,
+			ContentResolver contentResolver, AuthCache authCache) {
 		super();
 		this.username = username;
 		this.password = password;
 		this.URI = URI;
 		this.contentResolver = contentResolver;
+		this.authCache = authCache;
 	}
 	
 }
@@ -18,6 +18,8 @@ package net.benmoran.affectsampler;
 public class SyncResult {
 	private Exception mException;
 	private int mCount;
+	private int mAttempts;
+	private int mRetries;
 
 	public boolean isOK() {
 		return mException == null;
@@ -31,6 +33,20 @@ public class SyncResult {
 		return mException;
 	}
 
+	/**
+	 * The number of HTTP requests the sync sent, retries included.
+	 */
+	public int getAttempts() {
+		return mAttempts;
+	}
+
+	/**
+	 * The number of those that were retries after a failure.
+	 */
+	public int getRetries() {
+		return mRetries;
+	}
+
 	public SyncResult(Exception exception) {
 		super();
 		this.mException = exception;
@@ -41,4 +57,16 @@ public class SyncResult {
 		this.mCount = count;
 	}
 
+	public SyncResult(Exception exception, int attempts, int retries) {
+		this(exception);
+		this.mAttempts = attempts;
+		this.mRetries = retries;
+	}
+
+	public SyncResult(int count, int attempts, int retries) {
+		this(count);
+		this.mAttempts = attempts;
+		this.mRetries = retries;
+	}
+
 }
@@ -24,13 +24,27 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 public class SyncService extends Service {
-	
+
+	private SyncCoordinator mCoordinator;
+	private int mLastStartId;
+
+	// Stops the service once no sync is running or waiting
+	private final SyncCaller mStopper = new SyncCaller() {
+		public void onError(Exception e) {
+			stopIfIdle();
+		}
+
+		public void onSuccess(int syncCount) {
+			stopIfIdle();
+		}
+	};
+
 	@Override
 	public void onCreate() {
 		super.onCreate();
 		Log.i("BackgroundService", "onCreate()");
-		Thread thr = new Thread(null, new RunThread(), "SyncService");
-		thr.start();
+		mCoordinator = SyncCoordinator.getInstance();
+		mCoordinator.addCaller(mStopper);
 	}
 
 	public class SyncBinder extends Binder {
@@ -39,42 +53,28 @@ public class SyncService extends Service {
 		}
 	}
 
-	class RunThread implements Runnable {
-		public void run() {
-			Log.i("SyncService", "run()");
-
-			SharedPreferences settings = PreferenceManager
-					.getDefaultSharedPreferences(getApplicationContext());
-
-			String user = settings
-					.getString(getString(R.string.username), null);
-			String pass = settings
-					.getString(getString(R.string.password), null);
-			SyncParams params = new SyncParams(user, pass, null, getContentResolver());
-			new SyncTask().execute(params);
-
-//			try {
-//				// TODO Allow Mock client for testing
-//				AppEngineClient client = new AppEngineClientImpl(user, pass, null);
-//				Synchronizer sync = new Synchronizer(client);
-//				AffectSerializer ser = new AffectSerializer(
-//						getContentResolver());
-//				sync.sync(ser.toJSONArray());
-//				// TODO: Use synchronizer to get only latest
-//			} catch (SyncException e) {
-//				// TODO Report error to user
-//				e.printStackTrace();
-//			} catch (JSONException e) {
-//				// TODO Report error to user
-//				e.printStackTrace();
-//			}
-			SyncService.this.stopSelf();
+	private SyncParams makeParams() {
+		SharedPreferences settings = PreferenceManager
+				.getDefaultSharedPreferences(getApplicationContext());
+
+		String user = settings.getString(getString(R.string.username), null);
+		String pass = settings.getString(getString(R.string.password), null);
+		return new SyncParams(user, pass, null, getContentResolver(),
+				new PreferencesAuthCache(this));
+	}
+
+	private void stopIfIdle() {
+		if (!mCoordinator.isBusy()) {
+			// Unless started again since, in which case that start's sync
+			// is what's running
+			stopSelf(mLastStartId);
 		}
 	}
 
 	@Override
 	public void onDestroy() {
 		Log.i("SyncService", "onDestroy()");
+		mCoordinator.removeCaller(mStopper);
 		super.onDestroy();
 	}
 
@@ -82,6 +82,8 @@ public class SyncService extends Service {
 	public void onStart(Intent intent, int startId) {
 		Log.i("SyncService", "onStart()");
 		super.onStart(intent, startId);
+		mLastStartId = startId;
+		mCoordinator.requestSync(makeParams());
 	}
 
     @Override
@@ -0,0 +1,308 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+import net.benmoran.provider.AffectSampleStore.Outbox;
+import net.benmoran.provider.AffectSampleStore.SampleDigests;
+import net.benmoran.provider.AffectSampleStore.SyncState;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+/**
+ * The synchronizer's view of the provider: pages of samples still to be
+ * uploaded, acknowledging them, the persisted sync watermark, the outbox
+ * of edits and deletions, the created dates that reconciliation compares
+ * with the server's, and merging samples pulled from it.
+ */
+public class SyncStore {
+
+	public static final long MISSING_WATERMARK = -1;
+
+	private static final String UNSYNCED = AffectSamples.SYNCED_DATE + " IS NULL";
+
+	/**
+	 * The columns of {@link #queryOutbox}; the sample's own follow the
+	 * outbox entry's.
+	 */
+	public static final String[] OUTBOX_PROJECTION = new String[] { Outbox._ID,
+			Outbox.OP, Outbox.SAMPLE_HELD, AffectSamples.SYNCED_DATE,
+			Outbox.CHANGED_DATE, Outbox.SAMPLE_ID, AffectSamples.COMMENT,
+			AffectSamples.SCHEDULED_DATE, Outbox.CREATED_DATE,
+			AffectSamples.EMOTION, AffectSamples.INTENSITY, Outbox.REMOTE_ID };
+
+	private final ContentResolver mContentResolver;
+	private final String[] mProjection;
+
+	public SyncStore(ContentResolver contentResolver) {
+		mContentResolver = contentResolver;
+		mProjection = new String[AffectSerializer.PROJECTION.length + 1];
+		mProjection[0] = AffectSamples._ID;
+		System.arraycopy(AffectSerializer.PROJECTION, 0, mProjection, 1,
+				AffectSerializer.PROJECTION.length);
+	}
+
+	/**
+	 * The next page of unsynced samples after the row (created, id), in
+	 * created order. Column 0 is the _id; the rest are
+	 * {@link AffectSerializer#PROJECTION}.
+	 */
+	public Cursor queryUnsynced(long afterCreated, long afterId, int limit) {
+		return mContentResolver.query(AffectSamples.buildAfterUri(afterCreated,
+				afterId, limit), mProjection, UNSYNCED, null, null);
+	}
+
+	/**
+	 * True if any sample is still to be uploaded.
+	 */
+	public boolean hasUnsynced() {
+		Cursor cursor = queryUnsynced(-1, -1, 1);
+		try {
+			return cursor.getCount() > 0;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Marks the first count samples in ids as held by the server.
+	 */
+	public int markSynced(long[] ids, int count) {
+		if (count == 0) {
+			return 0;
+		}
+		return mContentResolver.update(AffectSamples.CONTENT_URI, syncedNow(),
+				idsIn(count), idArgs(ids, count));
+	}
+
+	/**
+	 * Marks the first count samples in ids as not held by the server after
+	 * all, forgetting their server ids, so they are uploaded again whole.
+	 */
+	public int markResend(long[] ids, int count) {
+		if (count == 0) {
+			return 0;
+		}
+		ContentValues values = new ContentValues();
+		values.putNull(AffectSamples.SYNCED_DATE);
+		values.putNull(AffectSamples.REMOTE_ID);
+		return mContentResolver.update(AffectSamples.CONTENT_URI, values,
+				idsIn(count), idArgs(ids, count));
+	}
+
+	/**
+	 * Records the server's ids for the first count samples in ids.
+	 */
+	public int setRemoteIds(long[] ids, long[] remoteIds, int count) {
+		if (count == 0) {
+			return 0;
+		}
+		ContentValues[] values = new ContentValues[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = new ContentValues();
+			values[i].put(AffectSamples._ID, ids[i]);
+			values[i].put(AffectSamples.REMOTE_ID, remoteIds[i]);
+		}
+		return mContentResolver.bulkInsert(AffectSamples.REMOTE_IDS_URI, values);
+	}
+
+	private static String idsIn(int count) {
+		StringBuilder where = new StringBuilder(AffectSamples._ID).append(" IN (");
+		for (int i = 0; i < count; i++) {
+			where.append(i == 0 ? "?" : ",?");
+		}
+		return where.append(')').toString();
+	}
+
+	private static String[] idArgs(long[] ids, int count) {
+		String[] args = new String[count];
+		for (int i = 0; i < count; i++) {
+			args[i] = Long.toString(ids[i]);
+		}
+		return args;
+	}
+
+	/**
+	 * Marks every unsynced sample created at or before the server's latest
+	 * as synced, for settling samples from before the synced column existed.
+	 */
+	public int markSyncedThrough(long created) {
+		return mContentResolver.update(AffectSamples.CONTENT_URI, syncedNow(),
+				UNSYNCED + " AND " + AffectSamples.CREATED_DATE + "<=?",
+				new String[] { Long.toString(created) });
+	}
+
+	/**
+	 * Marks the samples created in [from, to) as still to be uploaded, for
+	 * ranges the server turns out not to hold in full.
+	 */
+	public int markUnsynced(long from, long to) {
+		ContentValues values = new ContentValues();
+		values.putNull(AffectSamples.SYNCED_DATE);
+		return mContentResolver.update(AffectSamples.CONTENT_URI, values,
+				AffectSamples.CREATED_DATE + ">=? AND "
+						+ AffectSamples.CREATED_DATE + "<?", new String[] {
+						Long.toString(from), Long.toString(to) });
+	}
+
+	/**
+	 * The digest of every sample created in [from, to), synced or not, with
+	 * buckets of the given span counted and hashed by the provider.
+	 */
+	public SampleDigest queryDigest(long from, long to, long span) {
+		Cursor cursor = mContentResolver.query(SampleDigests.buildDigestUri(
+				from, to, span), new String[] { SampleDigests.BUCKET,
+				SampleDigests.SAMPLE_COUNT, SampleDigests.HASH }, null, null, null);
+		try {
+			SampleDigest digest = new SampleDigest(span);
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+				digest.put(cursor.getLong(0), cursor.getInt(1), cursor.getLong(2));
+			}
+			return digest;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * The created date of the latest sample, synced or not, or -1 if there
+	 * are none.
+	 */
+	public long queryLastCreated() {
+		Cursor cursor = mContentResolver.query(AffectSamples.withLimit(
+				AffectSamples.CONTENT_URI, 1),
+				new String[] { AffectSamples.CREATED_DATE }, null, null,
+				AffectSamples.CREATED_DATE + " DESC");
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * The next page of outbox entries after the one with the given _id,
+	 * oldest first, with their samples' current columns; see
+	 * {@link #OUTBOX_PROJECTION}. Start with -1.
+	 */
+	public Cursor queryOutbox(long afterId, int limit) {
+		return mContentResolver.query(Outbox.buildPageUri(afterId, limit),
+				OUTBOX_PROJECTION, null, null, null);
+	}
+
+	/**
+	 * True if the outbox holds any change not yet settled with the server.
+	 */
+	public boolean hasOutbox() {
+		Cursor cursor = queryOutbox(-1, 1);
+		try {
+			return cursor.getCount() > 0;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Deletes the first count outbox entries in ids, once the server has
+	 * them or they no longer need sending.
+	 */
+	public int truncateOutbox(long[] ids, int count) {
+		if (count == 0) {
+			return 0;
+		}
+		return mContentResolver.delete(Outbox.CONTENT_URI, idsIn(count), idArgs(
+				ids, count));
+	}
+
+	private static ContentValues syncedNow() {
+		ContentValues values = new ContentValues();
+		values.put(AffectSamples.SYNCED_DATE, System.currentTimeMillis());
+		return values;
+	}
+
+	public long getWatermark() {
+		String value = getState(SyncState.WATERMARK);
+		return (value != null) ? Long.parseLong(value) : MISSING_WATERMARK;
+	}
+
+	public void setWatermark(long created) {
+		putState(SyncState.WATERMARK, Long.toString(created));
+	}
+
+	/**
+	 * The server's cursor after the last sample pulled, or null before the
+	 * first pull.
+	 */
+	public String getPullCursor() {
+		String value = getState(SyncState.PULL_CURSOR);
+		return (value != null && value.length() > 0) ? value : null;
+	}
+
+	/**
+	 * Moves the pull cursor, forgetting the ETag that went with the old
+	 * one; null pulls everything again.
+	 */
+	public void setPullCursor(String cursor) {
+		putState(SyncState.PULL_CURSOR, (cursor != null) ? cursor : "");
+		putState(SyncState.PULL_ETAG, "");
+	}
+
+	/**
+	 * The ETag of the server's answer when nothing followed the pull
+	 * cursor, or null.
+	 */
+	public String getPullETag() {
+		String value = getState(SyncState.PULL_ETAG);
+		return (value != null && value.length() > 0) ? value : null;
+	}
+
+	public void setPullETag(String etag) {
+		putState(SyncState.PULL_ETAG, (etag != null) ? etag : "");
+	}
+
+	/**
+	 * Inserts samples pulled from the server in one transaction, as synced,
+	 * skipping any whose created date is already held.
+	 * 
+	 * @return the number of samples inserted
+	 */
+	public int mergePulled(ContentValues[] samples) {
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < samples.length; i++) {
+			samples[i].put(AffectSamples.SYNCED_DATE, now);
+		}
+		return mContentResolver.bulkInsert(AffectSamples.MERGE_URI, samples);
+	}
+
+	protected String getState(String key) {
+		Cursor cursor = mContentResolver.query(SyncState.CONTENT_URI,
+				new String[] { SyncState.VALUE }, SyncState.KEY + "=?",
+				new String[] { key }, null);
+		try {
+			return cursor.moveToFirst() ? cursor.getString(0) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	protected void putState(String key, String value) {
+		ContentValues values = new ContentValues();
+		values.put(SyncState.KEY, key);
+		values.put(SyncState.VALUE, value);
+		mContentResolver.insert(SyncState.CONTENT_URI, values);
+	}
+}
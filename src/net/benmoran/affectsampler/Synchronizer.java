@@ -15,23 +15,117 @@
  */
 package net.benmoran.affectsampler;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import net.benmoran.affectsampler.datastore.AppEngineClient;
+import net.benmoran.affectsampler.datastore.ClientResult;
+import net.benmoran.affectsampler.datastore.JSONProducer;
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+import net.benmoran.provider.AffectSampleStore.Outbox;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.ParseException;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
 import android.util.Log;
 
 public class Synchronizer {
 
-	private static final int MISSING_LATEST = -1;
 	private static final String TAG = "Synchronizer";
-	
+
+	/**
+	 * The number of unsynced samples read from the provider at a time.
+	 */
+	public static final int PAGE_SIZE = 100;
+
+	/**
+	 * The number of samples sent in each batch request by default.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 50;
+
+	/**
+	 * The number of batch requests in flight at once by default.
+	 */
+	public static final int DEFAULT_PARALLEL_UPLOADS = 3;
+
+	/**
+	 * The number of samples asked for in each page of a pull.
+	 */
+	public static final int PULL_PAGE_SIZE = 200;
+
+	/**
+	 * The number of outbox entries read, and at most sent, at a time.
+	 */
+	public static final int OUTBOX_PAGE_SIZE = 50;
+
+	/**
+	 * Per-item statuses in a batch response.
+	 */
+	public static final String STATUS_CREATED = "created";
+	public static final String STATUS_DUPLICATE = "duplicate";
+	public static final String STATUS_ERROR = "error";
+	public static final String STATUS_UPDATED = "updated";
+	public static final String STATUS_DELETED = "deleted";
+	public static final String STATUS_MISSING = "missing";
+
+	/**
+	 * Batch item ops for changes to samples the server already holds; items
+	 * without one are created.
+	 */
+	public static final String OP_UPDATE = "update";
+	public static final String OP_DELETE = "delete";
+
+	// What became of each sample in a page; the server holds it unless
+	// UNACKNOWLEDGED (not sent, or it reported an error)
+	private static final int UNACKNOWLEDGED = 0;
+	private static final int CREATED = 1;
+	private static final int DUPLICATE = 2;
+	// An update or deletion taken
+	private static final int APPLIED = 3;
+	// An update or deletion of a sample the server doesn't hold
+	private static final int MISSING = 4;
+
+	// Outbox entries not sent in a batch: settled already, or waiting on the
+	// sample's first upload
+	private static final int SETTLED = -1;
+	private static final int WAITING = -2;
+
+	// Uploads are bounded by the retry policy's timeouts alone
+	private static final long NO_DEADLINE = 0;
+
 	private AppEngineClient mClient;
+	private int mBatchSize = DEFAULT_BATCH_SIZE;
+	private int mParallelUploads = DEFAULT_PARALLEL_UPLOADS;
+	private boolean mBatchSupported = true;
+	private boolean mBinaryAllowed = true;
+	private volatile boolean mBinaryAccepted;
+	private volatile boolean mBinaryRefused;
+	private volatile boolean mCancelled;
+	private final SampleJSONWriter mWriter = new SampleJSONWriter();
+	private final StringWriter mBody = new StringWriter();
+	private final SampleBinaryWriter mBinaryWriter = new SampleBinaryWriter();
+	private final ByteArrayOutputStream mBinaryBody = new ByteArrayOutputStream();
 
 	public Synchronizer(AppEngineClient client)
 			throws SyncException {
@@ -39,11 +133,75 @@ public class Synchronizer {
 		mClient = client;
 	}
 
+	/**
+	 * Sets how many samples go in each batch request; 1 or less sends
+	 * every sample on its own.
+	 */
+	public void setBatchSize(int batchSize) {
+		mBatchSize = batchSize;
+	}
+
+	/**
+	 * Sets how many batch requests may be in flight at once. Above 1, the
+	 * next page is read and encoded while earlier ones upload, and pages
+	 * are acknowledged in order as each completes.
+	 */
+	public void setParallelUploads(int parallelUploads) {
+		mParallelUploads = parallelUploads;
+	}
+
+	/**
+	 * False once the server has turned down a batch request, after which
+	 * samples go one at a time.
+	 */
+	public boolean isBatchSupported() {
+		return mBatchSupported;
+	}
+
+	/**
+	 * Sets whether batches may go in the binary format once the server has
+	 * said it takes it; true by default.
+	 */
+	public void setBinaryAllowed(boolean binaryAllowed) {
+		mBinaryAllowed = binaryAllowed;
+	}
+
+	/**
+	 * True once a batch response has listed
+	 * {@link SampleBinaryWriter#CONTENT_TYPE} in its Accept-Post header,
+	 * after which batches are sent in that format if allowed. False for good
+	 * once the server has turned a binary batch down with 415.
+	 */
+	public boolean isBinaryAccepted() {
+		return mBinaryAccepted;
+	}
+
+	/**
+	 * Stops a sync running on another thread: uploads in flight are
+	 * aborted, and it fails with a SyncException once the request it is
+	 * waiting on, if any, returns. Samples already acknowledged stay
+	 * synced, so the next sync picks up where this one stopped.
+	 */
+	public void cancel() {
+		mCancelled = true;
+		mClient.cancelAll();
+	}
+
+	private void checkCancelled() throws SyncException {
+		if (mCancelled) {
+			throw new SyncException("Sync cancelled");
+		}
+	}
+
+	private boolean isBinary() {
+		return mBinaryAllowed && mBinaryAccepted;
+	}
+
 	public int sync(JSONArray array) throws SyncException {
 		int synced = 0;
 		for (int i = 0; i < array.length(); ++i) {
 			try {
-				if (syncObject(array.getJSONObject(i))) {
+				if (syncObject(array.getJSONObject(i).toString())) {
 					synced++;
 				}
 			} catch (JSONException e) {
@@ -53,9 +211,811 @@ public class Synchronizer {
 		return synced;
 	}
 
-	private boolean syncObject(JSONObject object) throws SyncException {
-		Log.i(TAG, "Sending: " + object.toString());
-		HttpResponse response = mClient.postJSON(getCreateSampleUri(), object.toString());
+	/**
+	 * Uploads only the samples the store has not yet seen acknowledged,
+	 * marking each page synced as it lands and advancing the watermark. A
+	 * sample the server rejects stops the upload, with the watermark short
+	 * of it, so the next sync sends it again. Each run starts from the
+	 * first sample still unsynced, so after an interruption only the pages
+	 * not yet acknowledged go again. The outbox is drained once the new
+	 * samples are up.
+	 * 
+	 * @return the number of samples the server newly created
+	 */
+	public int sync(SyncStore store) throws SyncException {
+		// Only ever moved by this device's own acknowledged uploads: the
+		// server's latest sample may be another device's, newer than samples
+		// here it has never seen
+		long watermark = store.getWatermark();
+
+		int pageSize = (mBatchSize > 1) ? mBatchSize : PAGE_SIZE;
+		int synced = 0;
+		long[] ids = new long[pageSize];
+		long[] createdDates = new long[pageSize];
+		long[] acked = new long[pageSize];
+		// From the first unsynced sample: pages acknowledged before are
+		// synced already, and samples restored or left rejected are not
+		long created = -1;
+		long id = -1;
+		boolean first = true;
+		while (true) {
+			// The first page finds out whether the server takes batches
+			if (!first && isPipelined()) {
+				synced += syncPipelined(store, pageSize, created, id,
+						watermark);
+				break;
+			}
+			first = false;
+			checkCancelled();
+			Cursor page = store.queryUnsynced(created, id, pageSize);
+			int[] results = null;
+			long[] remoteIds = null;
+			try {
+				if (page.getCount() == 0) {
+					break;
+				}
+				int cdIndex = page.getColumnIndex(AffectSamples.CREATED_DATE);
+				for (page.moveToFirst(); !page.isAfterLast(); page.moveToNext()) {
+					ids[page.getPosition()] = page.getLong(0);
+					createdDates[page.getPosition()] = page.getLong(cdIndex);
+				}
+				results = new int[page.getCount()];
+				remoteIds = new long[page.getCount()];
+				synced += syncPage(page, results, remoteIds);
+			} finally {
+				page.close();
+				if (results != null) {
+					markAcknowledged(store, ids, results, remoteIds, acked);
+				}
+			}
+			int contiguous = countContiguous(results);
+			if (contiguous > 0) {
+				created = createdDates[contiguous - 1];
+				id = ids[contiguous - 1];
+				if (created > watermark) {
+					watermark = created;
+					store.setWatermark(watermark);
+				}
+			}
+			if (contiguous < results.length) {
+				// Left unsynced, and the watermark before it, for the next sync
+				// to try again
+				Log.w(TAG, "Stopping at rejected sample " + ids[contiguous]);
+				break;
+			}
+		}
+		drainOutbox(store);
+		return synced;
+	}
+
+	/**
+	 * Sends the edits and deletions waiting in the outbox in JSON batches,
+	 * and truncates the entries the server acknowledges. New samples go up
+	 * through the unsynced pages instead, so an update is only sent if its
+	 * sample changed after it last synced; entries for samples yet to be
+	 * uploaded wait for that, and the rest are truncated unsent. Changes
+	 * carry the server's id for the sample where it is known, so an edit
+	 * that moves the created date still finds it. An edit the server has no
+	 * sample for marks the sample unsynced, so it goes up whole next time.
+	 * A server without /batch leaves the outbox as it is.
+	 * 
+	 * @return the number of edits and deletions the server took
+	 */
+	public int drainOutbox(SyncStore store) throws SyncException {
+		long[] entries = new long[OUTBOX_PAGE_SIZE];
+		int[] items = new int[OUTBOX_PAGE_SIZE];
+		long[] settled = new long[OUTBOX_PAGE_SIZE];
+		long[] samples = new long[OUTBOX_PAGE_SIZE];
+		long[] resend = new long[OUTBOX_PAGE_SIZE];
+		HashMap<Long, Integer> updated = new HashMap<Long, Integer>();
+		int applied = 0;
+		long after = -1;
+		while (true) {
+			checkCancelled();
+			Cursor page = store.queryOutbox(after, OUTBOX_PAGE_SIZE);
+			int count = page.getCount();
+			int sent = 0;
+			try {
+				if (count == 0) {
+					break;
+				}
+				int idIndex = page.getColumnIndex(Outbox._ID);
+				int opIndex = page.getColumnIndex(Outbox.OP);
+				int heldIndex = page.getColumnIndex(Outbox.SAMPLE_HELD);
+				int syncedIndex = page.getColumnIndex(AffectSamples.SYNCED_DATE);
+				int changedIndex = page.getColumnIndex(Outbox.CHANGED_DATE);
+				int sampleIndex = page.getColumnIndex(Outbox.SAMPLE_ID);
+				int cdIndex = page.getColumnIndex(Outbox.CREATED_DATE);
+				int remoteIndex = page.getColumnIndex(Outbox.REMOTE_ID);
+				updated.clear();
+				mBody.getBuffer().setLength(0);
+				mBody.write('[');
+				for (page.moveToFirst(); !page.isAfterLast(); page.moveToNext()) {
+					int i = page.getPosition();
+					entries[i] = page.getLong(idIndex);
+					samples[i] = -1;
+					int op = page.getInt(opIndex);
+					boolean held = page.getInt(heldIndex) != 0;
+					boolean unsynced = page.isNull(syncedIndex);
+					long remoteId = page.isNull(remoteIndex) ? -1 : page
+							.getLong(remoteIndex);
+					if (op == Outbox.OP_DELETE) {
+						if (sent > 0) {
+							mBody.write(',');
+						}
+						mBody.write("{\"" + AffectSamples.CREATED_DATE + "\":"
+								+ page.getLong(cdIndex) + ",\"op\":\"" + OP_DELETE
+								+ "\"");
+						if (remoteId >= 0) {
+							mBody.write(",\"id\":" + remoteId);
+						}
+						mBody.write('}');
+						items[i] = sent++;
+					} else if (!held) {
+						// Its deletion follows
+						items[i] = SETTLED;
+					} else if (unsynced) {
+						// Goes up with the new samples
+						items[i] = WAITING;
+					} else if (op == Outbox.OP_INSERT
+							|| page.getLong(syncedIndex) > page
+									.getLong(changedIndex)) {
+						// Already went up as it is now
+						items[i] = SETTLED;
+					} else {
+						samples[i] = page.getLong(sampleIndex);
+						Long sample = Long.valueOf(samples[i]);
+						Integer item = updated.get(sample);
+						if (item == null) {
+							if (sent > 0) {
+								mBody.write(',');
+							}
+							mWriter.writeObject(page, mBody, OP_UPDATE, remoteId);
+							item = Integer.valueOf(sent++);
+							updated.put(sample, item);
+						}
+						items[i] = item.intValue();
+					}
+				}
+				mBody.write(']');
+				after = entries[count - 1];
+			} catch (IOException e) {
+				throw new SyncException(e);
+			} finally {
+				page.close();
+			}
+
+			int[] results = new int[sent];
+			if (sent > 0 && mBatchSupported) {
+				Log.i(TAG, "Sending " + sent + " changes from the outbox");
+				if (readBatchResults(ClientResult.read(mClient.postJSON(
+						getBatchUri(), new StringProducer(mBody.toString()))),
+						results, null)) {
+					applied += sent - countUnacknowledged(results);
+				} else {
+					Log.i(TAG, "Server has no batch endpoint, keeping the outbox");
+					mBatchSupported = false;
+				}
+			}
+			int truncate = 0;
+			int missing = 0;
+			for (int i = 0; i < count; i++) {
+				if (items[i] == SETTLED
+						|| (items[i] >= 0 && results[items[i]] != UNACKNOWLEDGED)) {
+					settled[truncate++] = entries[i];
+				}
+				if (items[i] >= 0 && samples[i] >= 0
+						&& results[items[i]] == MISSING) {
+					// Lost on the server; only a deletion is done with
+					resend[missing++] = samples[i];
+				}
+			}
+			store.markResend(resend, missing);
+			store.truncateOutbox(settled, truncate);
+		}
+		return applied;
+	}
+
+	private static int countUnacknowledged(int[] results) {
+		int unacknowledged = 0;
+		for (int i = 0; i < results.length; i++) {
+			if (results[i] == UNACKNOWLEDGED) {
+				unacknowledged++;
+			}
+		}
+		return unacknowledged;
+	}
+
+	/**
+	 * Works out which samples the server lacks before syncing, for when the
+	 * bookkeeping here can't be trusted: after a reinstall, or when the
+	 * server may have lost samples. Day digests of the created dates held on
+	 * each side, this side's counted by the provider in SQL, are compared,
+	 * then hour digests within the days that differ. Samples in hours that
+	 * still differ are sent again; everything else is taken as held by the
+	 * server. A server without /digest gets a plain sync.
+	 * 
+	 * @return the number of samples the server newly created
+	 */
+	public int reconcile(SyncStore store) throws SyncException {
+		long last = store.queryLastCreated();
+		if (last < 0) {
+			return sync(store);
+		}
+		// Every day held here, and with it the range to ask about
+		SampleDigest local = store.queryDigest(0, last + 1,
+				SampleDigest.DAY_MILLIS);
+		long from = local.getFirstStart();
+		long to = local.getLastStart() + SampleDigest.DAY_MILLIS;
+		SampleDigest remote = getDigest(from, to, SampleDigest.DAY_MILLIS);
+		if (remote == null) {
+			Log.i(TAG, "Server can't reconcile, syncing instead");
+			return sync(store);
+		}
+		List<Long> days = local.differingFrom(remote);
+		List<Long> hours = new ArrayList<Long>();
+		for (Long day : days) {
+			long start = day.longValue();
+			long end = start + SampleDigest.DAY_MILLIS;
+			remote = getDigest(start, end, SampleDigest.HOUR_MILLIS);
+			if (remote == null) {
+				throw new SyncException("Server stopped answering /digest");
+			}
+			hours.addAll(store.queryDigest(start, end, SampleDigest.HOUR_MILLIS)
+					.differingFrom(remote));
+		}
+		Log.i(TAG, "Reconciled samples up to " + last + ": " + days.size()
+				+ " days and " + hours.size() + " hours differ");
+
+		store.markSyncedThrough(last);
+		long watermark = last;
+		for (Long hour : hours) {
+			store.markUnsynced(hour.longValue(), hour.longValue()
+					+ SampleDigest.HOUR_MILLIS);
+		}
+		if (!hours.isEmpty()) {
+			// Known held only up to the first gap
+			watermark = Math.max(hours.get(0).longValue() - 1, 0);
+		}
+		store.setWatermark(watermark);
+		return sync(store);
+	}
+
+	/**
+	 * Asks the server for the digest of its samples created in [from, to).
+	 * 
+	 * @return the digest, or null if the server lacks the digest endpoint
+	 */
+	private SampleDigest getDigest(long from, long to, long span)
+			throws SyncException {
+		HttpResponse response = mClient.get(getDigestUri(from, to, span));
+		String body = readBody(response);
+		switch (response.getStatusLine().getStatusCode()) {
+		case 200:
+			break;
+		case 400:
+		case 404:
+		case 405:
+		case 501:
+			return null;
+		default:
+			throw new SyncException("Unexpected response to digest: "
+					+ response.getStatusLine().toString());
+		}
+		try {
+			return SampleDigest.fromJSON(new JSONObject(body));
+		} catch (JSONException e) {
+			throw new SyncException(e);
+		}
+	}
+
+	/**
+	 * Downloads the samples the server received after the pull cursor, such
+	 * as those another of the user's devices uploaded, a page at a time.
+	 * Pages follow the server's order of arrival, not created dates, so a
+	 * late upload of an old sample is still found. Each page is merged in
+	 * one transaction, skipping samples already held, before the cursor
+	 * moves past it. Once a pull finds nothing new, its ETag is kept so the
+	 * next one costs a single 304. A server without /samples pulls nothing,
+	 * and an empty page that claims more follows is an error.
+	 * 
+	 * @return the number of samples added here
+	 */
+	public int pull(SyncStore store) throws SyncException {
+		String after = store.getPullCursor();
+		String etag = store.getPullETag();
+		int merged = 0;
+		while (true) {
+			checkCancelled();
+			Header[] headers = null;
+			if (etag != null) {
+				headers = new Header[] { new BasicHeader("If-None-Match", etag) };
+			}
+			HttpResponse response = mClient.get(getPullUri(after, PULL_PAGE_SIZE),
+					headers);
+			String body = readBody(response);
+			switch (response.getStatusLine().getStatusCode()) {
+			case 200:
+				break;
+			case 304:
+				return merged;
+			case 400:
+			case 404:
+			case 405:
+			case 501:
+				Log.i(TAG, "Server can't be pulled from");
+				return merged;
+			default:
+				throw new SyncException("Unexpected response to pull: "
+						+ response.getStatusLine().toString());
+			}
+
+			boolean more;
+			try {
+				JSONObject page = new JSONObject(body);
+				JSONArray samples = page.getJSONArray("samples");
+				more = page.optBoolean("more");
+				if (samples.length() > 0) {
+					ContentValues[] values = new ContentValues[samples.length()];
+					for (int i = 0; i < values.length; i++) {
+						JSONObject sample = samples.getJSONObject(i);
+						values[i] = AffectSerializer.toContentValues(sample);
+						if (sample.has("id")) {
+							values[i].put(AffectSamples.REMOTE_ID, sample
+									.getLong("id"));
+						}
+					}
+					merged += store.mergePulled(values);
+					after = page.getString("next");
+					store.setPullCursor(after);
+				} else if (more) {
+					// Would ask for the same page again, and get it, forever
+					throw new SyncException("Empty pull page with more to come");
+				} else {
+					Header header = response.getFirstHeader("ETag");
+					store.setPullETag((header != null) ? header.getValue() : null);
+				}
+			} catch (JSONException e) {
+				throw new SyncException(e);
+			}
+			Log.i(TAG, "Pulled up to " + after + ", " + merged + " new");
+			if (!more) {
+				return merged;
+			}
+			// Only good for the cursor it was given with
+			etag = null;
+		}
+	}
+
+	private boolean isPipelined() {
+		return mParallelUploads > 1 && mBatchSize > 1 && mBatchSupported;
+	}
+
+	/**
+	 * Marks synced the samples in ids the server has acknowledged in
+	 * results: created or already there, the server holds them now. The ids
+	 * it gave them, if any, are recorded for later edits and deletions.
+	 */
+	private static void markAcknowledged(SyncStore store, long[] ids,
+			int[] results, long[] remoteIds, long[] acked) {
+		int count = 0;
+		for (int i = 0; i < results.length; i++) {
+			if (results[i] != UNACKNOWLEDGED) {
+				acked[count++] = ids[i];
+			}
+		}
+		store.markSynced(acked, count);
+		count = 0;
+		for (int i = 0; i < results.length; i++) {
+			if (results[i] != UNACKNOWLEDGED && remoteIds[i] >= 0) {
+				// Packed in place, as count never passes i
+				acked[count] = ids[i];
+				remoteIds[count++] = remoteIds[i];
+			}
+		}
+		store.setRemoteIds(acked, remoteIds, count);
+	}
+
+	/**
+	 * @return the number of results acknowledged before the first one that
+	 *         wasn't, past which the watermark can't move
+	 */
+	private static int countContiguous(int[] results) {
+		int contiguous = 0;
+		while (contiguous < results.length
+				&& results[contiguous] != UNACKNOWLEDGED) {
+			contiguous++;
+		}
+		return contiguous;
+	}
+
+	private static int countCreated(int[] results) {
+		int created = 0;
+		for (int i = 0; i < results.length; i++) {
+			if (results[i] == CREATED) {
+				created++;
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * A page read for a pipelined batch upload. Only its samples' ids and
+	 * created dates are kept; as JSON it is read again and encoded as it is
+	 * sent, and as binary it is encoded once, straight into the request.
+	 */
+	private static class Chunk implements JSONProducer {
+		final SyncStore store;
+		final long afterCreated;
+		final long afterId;
+		final long[] ids;
+		final long[] created;
+		final int[] results;
+		final long[] remoteIds;
+		final boolean binary;
+		Future<ClientResult> upload;
+
+		Chunk(SyncStore store, long afterCreated, long afterId, Cursor page,
+				boolean binary) {
+			this.store = store;
+			this.afterCreated = afterCreated;
+			this.afterId = afterId;
+			this.binary = binary;
+			ids = new long[page.getCount()];
+			created = new long[ids.length];
+			results = new int[ids.length];
+			remoteIds = new long[ids.length];
+			Arrays.fill(remoteIds, -1);
+			int cdIndex = page.getColumnIndex(AffectSamples.CREATED_DATE);
+			for (page.moveToFirst(); !page.isAfterLast(); page.moveToNext()) {
+				ids[page.getPosition()] = page.getLong(0);
+				created[page.getPosition()] = page.getLong(cdIndex);
+			}
+		}
+
+		long getLastCreated() {
+			return created[created.length - 1];
+		}
+
+		long getLastId() {
+			return ids[ids.length - 1];
+		}
+
+		/**
+		 * True if the server acknowledged every sample in the chunk.
+		 */
+		boolean isAcknowledged() {
+			return countContiguous(results) == results.length;
+		}
+
+		/**
+		 * Reads the chunk's samples again and writes them, on the upload's
+		 * own thread; fails if they are no longer the samples first read.
+		 */
+		public void writeJSON(Writer out) throws IOException {
+			Cursor page = store.queryUnsynced(afterCreated, afterId, ids.length);
+			try {
+				if (page.getCount() != ids.length) {
+					throw new IOException("Batch changed before it was sent");
+				}
+				for (page.moveToFirst(); !page.isAfterLast(); page.moveToNext()) {
+					if (page.getLong(0) != ids[page.getPosition()]) {
+						throw new IOException("Batch changed before it was sent");
+					}
+				}
+				new SampleJSONWriter().writeArray(page, out);
+			} finally {
+				page.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads pages on this thread while up to mParallelUploads batches
+	 * upload asynchronously. Pages are acknowledged in the order read, and
+	 * the watermark only moves through samples acknowledged without a gap:
+	 * after a failure or a rejected sample no more pages are sent, and those
+	 * still in flight are marked synced as they land but don't move it.
+	 * 
+	 * @return the number of samples the server newly created
+	 */
+	private int syncPipelined(SyncStore store, int pageSize, long created,
+			long id, long watermark) throws SyncException {
+		LinkedList<Chunk> inFlight = new LinkedList<Chunk>();
+		long[] acked = new long[pageSize];
+		int synced = 0;
+		SyncException failure = null;
+		// Every page so far acknowledged in full, and the loop not left by
+		// an exception
+		boolean contiguous = true;
+		boolean finished = false;
+		try {
+			while (failure == null && contiguous) {
+				checkCancelled();
+				Cursor page = store.queryUnsynced(created, id, pageSize);
+				final Chunk chunk;
+				byte[] binary = null;
+				try {
+					if (page.getCount() == 0) {
+						break;
+					}
+					chunk = new Chunk(store, created, id, page, isBinary());
+					if (chunk.binary) {
+						mBinaryBody.reset();
+						mBinaryWriter.write(page, mBinaryBody);
+						binary = mBinaryBody.toByteArray();
+					}
+				} catch (IOException e) {
+					throw new SyncException(e);
+				} finally {
+					page.close();
+				}
+				created = chunk.getLastCreated();
+				id = chunk.getLastId();
+
+				if (inFlight.size() == mParallelUploads) {
+					Chunk oldest = inFlight.removeFirst();
+					try {
+						synced += acknowledge(store, oldest, acked);
+						watermark = advance(store, oldest, watermark);
+						contiguous = oldest.isAcknowledged();
+					} catch (SyncException e) {
+						failure = e;
+					}
+				}
+				if (failure == null && contiguous) {
+					Log.i(TAG, "Sending batch of " + chunk.ids.length);
+					if (chunk.binary) {
+						chunk.upload = mClient.postBinaryAsync(getBatchUri(),
+								binary, SampleBinaryWriter.CONTENT_TYPE, NO_DEADLINE,
+								null);
+					} else {
+						chunk.upload = mClient.postJSONAsync(getBatchUri(), chunk,
+								NO_DEADLINE, null);
+					}
+					inFlight.add(chunk);
+				}
+			}
+			finished = true;
+		} finally {
+			// Whatever happened, settle everything already sent
+			while (!inFlight.isEmpty()) {
+				Chunk chunk = inFlight.removeFirst();
+				try {
+					synced += acknowledge(store, chunk, acked);
+					if (finished && failure == null && contiguous) {
+						watermark = advance(store, chunk, watermark);
+						contiguous = chunk.isAcknowledged();
+					}
+				} catch (SyncException e) {
+					if (failure == null) {
+						failure = e;
+					}
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		if (!contiguous) {
+			Log.w(TAG, "Stopped at a rejected sample, after " + watermark);
+		}
+		return synced;
+	}
+	/**
+	 * Waits for the chunk's upload, then marks what it got acknowledged.
+	 * 
+	 * @return the number of samples the server newly created
+	 */
+	private int acknowledge(SyncStore store, Chunk chunk, long[] acked)
+			throws SyncException {
+		try {
+			ClientResult result = chunk.upload.get();
+			if (chunk.binary && refusesBinary(result)) {
+				// Again as JSON, read back from the provider
+				result = ClientResult.read(mClient.postJSON(getBatchUri(), chunk));
+			}
+			if (!readBatchResults(result, chunk.results, chunk.remoteIds)) {
+				throw new SyncException("Server stopped taking batches");
+			}
+			return countCreated(chunk.results);
+		} catch (CancellationException e) {
+			throw new SyncException("Sync cancelled");
+		} catch (InterruptedException e) {
+			throw new SyncException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SyncException) {
+				throw (SyncException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new SyncException((Exception) cause);
+		} finally {
+			markAcknowledged(store, chunk.ids, chunk.results, chunk.remoteIds,
+					acked);
+		}
+	}
+
+	/**
+	 * Moves the watermark up to the chunk's last sample acknowledged without
+	 * a gap.
+	 */
+	private static long advance(SyncStore store, Chunk chunk, long watermark) {
+		int contiguous = countContiguous(chunk.results);
+		if (contiguous == 0) {
+			return watermark;
+		}
+		long created = chunk.created[contiguous - 1];
+		if (created > watermark) {
+			watermark = created;
+			store.setWatermark(watermark);
+		}
+		return watermark;
+	}
+
+	/**
+	 * Produces an already encoded batch.
+	 */
+	private static class StringProducer implements JSONProducer {
+		private final String mJSON;
+
+		StringProducer(String json) {
+			mJSON = json;
+		}
+
+		public void writeJSON(Writer out) throws IOException {
+			out.write(mJSON);
+		}
+	}
+
+	/**
+	 * Sends a page of samples, as one batch request if the server takes
+	 * them, recording what became of each in results, and the server's ids
+	 * for them, or -1, in remoteIds.
+	 * 
+	 * @return the number of samples the server newly created
+	 */
+	private int syncPage(Cursor page, int[] results, long[] remoteIds)
+			throws SyncException {
+		Arrays.fill(remoteIds, -1);
+		if (mBatchSize > 1 && mBatchSupported) {
+			ClientResult result = null;
+			if (isBinary()) {
+				mBinaryBody.reset();
+				try {
+					mBinaryWriter.write(page, mBinaryBody);
+				} catch (IOException e) {
+					throw new SyncException(e);
+				}
+				Log.i(TAG, "Sending binary batch of " + page.getCount() + " in "
+						+ mBinaryBody.size() + " bytes");
+				result = ClientResult.read(mClient.postBinary(getBatchUri(),
+						mBinaryBody.toByteArray(), SampleBinaryWriter.CONTENT_TYPE));
+				if (refusesBinary(result)) {
+					result = null;
+				}
+			}
+			if (result == null) {
+				// Streamed to the batch endpoint
+				Log.i(TAG, "Sending batch of " + page.getCount());
+				result = ClientResult.read(mClient.postJSON(getBatchUri(),
+						new CursorJSONProducer(page, mWriter)));
+			}
+			if (readBatchResults(result, results, remoteIds)) {
+				return countCreated(results);
+			}
+			Log.i(TAG, "Server has no batch endpoint, sending samples singly");
+			mBatchSupported = false;
+		}
+		int synced = 0;
+		for (page.moveToFirst(); !page.isAfterLast(); page.moveToNext()) {
+			if (syncObject(encode(page))) {
+				results[page.getPosition()] = CREATED;
+				synced++;
+			} else {
+				results[page.getPosition()] = DUPLICATE;
+			}
+		}
+		return synced;
+	}
+
+	/**
+	 * Encodes the page's current row into the one request buffer this
+	 * synchronizer reuses.
+	 */
+	private String encode(Cursor page) throws SyncException {
+		mBody.getBuffer().setLength(0);
+		try {
+			mWriter.writeObject(page, mBody);
+		} catch (IOException e) {
+			throw new SyncException(e);
+		}
+		return mBody.toString();
+	}
+
+	/**
+	 * Whether the server turned down a binary batch, as it does with 415 if
+	 * it no longer takes the format; if so, batches go as JSON from then on,
+	 * whatever later Accept-Post headers say.
+	 */
+	private boolean refusesBinary(ClientResult result) {
+		if (result.getStatusCode() != 415) {
+			return false;
+		}
+		Log.i(TAG, "Server turned down the binary format, sending JSON");
+		mBinaryRefused = true;
+		mBinaryAccepted = false;
+		return true;
+	}
+
+	/**
+	 * Reads one status per sample from a batch response, with the server's
+	 * id for it into remoteIds unless that is null, and whether the server
+	 * takes the binary format.
+	 * 
+	 * @return false if the server lacks the batch endpoint
+	 */
+	private boolean readBatchResults(ClientResult result, int[] results,
+			long[] remoteIds) throws SyncException {
+		Log.i(TAG, result.getStatusLine());
+		switch (result.getStatusCode()) {
+		case 200:
+			break;
+		case 400:
+		case 404:
+		case 405:
+		case 501:
+			return false;
+		default:
+			throw new SyncException("Unexpected response to batch: "
+					+ result.getStatusLine());
+		}
+		String accepts = result.getHeader("Accept-Post");
+		if (accepts != null && !mBinaryRefused
+				&& accepts.indexOf(SampleBinaryWriter.CONTENT_TYPE) >= 0) {
+			mBinaryAccepted = true;
+		}
+		try {
+			JSONArray items = new JSONObject(result.getBody())
+					.getJSONArray("results");
+			if (items.length() != results.length) {
+				throw new SyncException("Batch of " + results.length + " got "
+						+ items.length() + " results");
+			}
+			for (int i = 0; i < results.length; i++) {
+				JSONObject item = items.getJSONObject(i);
+				String status = item.getString("status");
+				if (remoteIds != null) {
+					remoteIds[i] = item.optLong("id", -1);
+				}
+				if (STATUS_CREATED.equals(status)) {
+					results[i] = CREATED;
+				} else if (STATUS_DUPLICATE.equals(status)) {
+					results[i] = DUPLICATE;
+				} else if (STATUS_UPDATED.equals(status)
+						|| STATUS_DELETED.equals(status)) {
+					results[i] = APPLIED;
+				} else if (STATUS_MISSING.equals(status)) {
+					results[i] = MISSING;
+				} else {
+					Log.w(TAG, "Batch item " + i + " not stored: " + status);
+				}
+			}
+		} catch (JSONException e) {
+			throw new SyncException(e);
+		}
+		return true;
+	}
+
+	private boolean syncObject(String object) throws SyncException {
+		Log.i(TAG, "Sending: " + object);
+		HttpResponse response = mClient.postJSON(getCreateSampleUri(), object);
+		// The echoed sample isn't needed, but must be read to free the
+		// connection
+		ClientResult.consume(response);
 		Log.i(TAG, response.getStatusLine().toString());
 		switch (response.getStatusLine().getStatusCode()) {
 		case 201:
@@ -72,9 +1032,34 @@ public class Synchronizer {
 		return URI.create("/Sample/");
 	}
 
+	private URI getBatchUri() {
+		return URI.create("/batch");
+	}
 
-	public long getLatest() {
-		return MISSING_LATEST;
+	private URI getPullUri(String after, int limit) {
+		String uri = "/samples?limit=" + limit;
+		if (after != null) {
+			uri += "&after=" + Uri.encode(after);
+		}
+		return URI.create(uri);
+	}
+
+	private URI getDigestUri(long from, long to, long span) {
+		return URI.create("/digest?from=" + from + "&to=" + to + "&span=" + span);
+	}
+
+	private static String readBody(HttpResponse response) throws SyncException {
+		HttpEntity entity = response.getEntity();
+		if (entity == null) {
+			return "";
+		}
+		try {
+			return EntityUtils.toString(entity);
+		} catch (ParseException e) {
+			throw new SyncException(e);
+		} catch (IOException e) {
+			throw new SyncException(e);
+		}
 	}
 
 }
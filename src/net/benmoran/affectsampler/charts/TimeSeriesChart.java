@@ -52,13 +52,19 @@ public class TimeSeriesChart extends AbstractChart {
 		return "Changing mood over time";
 	}
 
+	/**
+	 * The number of most recent samples shown on the chart.
+	 */
+	public static final int MAX_VALUES = 100;
+
 	/**
 	 * Executes the chart demo.
 	 * 
 	 * @param context
 	 *            the context
 	 * @param cursor
-	 *            the data cursor
+	 *            the data cursor, newest sample first, holding at most
+	 *            {@link #MAX_VALUES} rows
 	 * @return the built intent
 	 */
 	public Intent execute(Context context, Cursor cursor) {
@@ -72,24 +78,24 @@ public class TimeSeriesChart extends AbstractChart {
 		List<double[]> values = new ArrayList<double[]>();
 		List<Date[]> dates = new ArrayList<Date[]>();
 		
-		int length = cursor.getCount()-1;
-		int MAX_VALUES=100;
-		int startPos = Math.max(length - MAX_VALUES, 0);
-		length = length - startPos;
+		int length = Math.min(cursor.getCount(), MAX_VALUES);
 		values.add(new double[length]);
 		values.add(new double[length]);
 		dates.add(new Date[length]);
 		dates.add(new Date[length]);
-		cursor.moveToPosition(startPos);
-		endTime = startTime = cursor.getLong(cdIndex);
-		int i = 0;
-		for (cursor.moveToPosition(startPos); !cursor.isLast(); cursor.moveToNext()) {
+		endTime = startTime = System.currentTimeMillis();
+		// Fill the series from the end, so they run oldest to newest
+		int i = length - 1;
+		for (cursor.moveToFirst(); i >= 0 && !cursor.isAfterLast(); cursor.moveToNext()) {
 			values.get(0)[i] = cursor.getDouble(emIndex);
 			values.get(1)[i] = cursor.getDouble(inIndex);
 			dates.get(0)[i] = new Date(cursor.getLong(cdIndex));
 			dates.get(1)[i] = new Date(cursor.getLong(cdIndex));
-			endTime = cursor.getLong(cdIndex);
-			++i;
+			if (i == length - 1) {
+				endTime = cursor.getLong(cdIndex);
+			}
+			startTime = cursor.getLong(cdIndex);
+			--i;
 		}
 		cursor.close();
 		int[] colors = new int[] { Color.BLUE, Color.CYAN };
@@ -16,9 +16,11 @@
 package net.benmoran.affectsampler.datastore;
 
 import java.net.URI;
+import java.util.concurrent.Future;
 
 import net.benmoran.affectsampler.SyncException;
 
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 
 public interface AppEngineClient {
@@ -26,6 +28,66 @@ public interface AppEngineClient {
 	public abstract HttpResponse postJSON(URI uri, String body)
 			throws SyncException;
 
+	/**
+	 * Posts the producer's JSON as it is written, with chunked transfer
+	 * encoding, so the body is never held in memory whole.
+	 */
+	public abstract HttpResponse postJSON(URI uri, JSONProducer producer)
+			throws SyncException;
+
+	/**
+	 * Posts an already encoded body of the given content type.
+	 */
+	public abstract HttpResponse postBinary(URI uri, byte[] body,
+			String contentType) throws SyncException;
+
+	public abstract HttpResponse get(URI uri) throws SyncException;
+
+	/**
+	 * Gets the uri with extra request headers, such as If-None-Match.
+	 */
+	public abstract HttpResponse get(URI uri, Header[] headers)
+			throws SyncException;
+
+	/**
+	 * Posts the producer's JSON on a background thread. The future's
+	 * result is the response read whole; its failure a SyncException. A
+	 * timeout above 0 is a deadline for the whole call, retries and login
+	 * included, after which the request is aborted and the call fails.
+	 * Cancelling the future aborts the request at once.
+	 * 
+	 * @param callback
+	 *            told how the call turned out, or null
+	 */
+	public abstract Future<ClientResult> postJSONAsync(URI uri,
+			JSONProducer producer, long timeoutMillis, ClientCallback callback);
+
+	/**
+	 * Posts an already encoded body on a background thread, as
+	 * {@link #postJSONAsync} does.
+	 */
+	public abstract Future<ClientResult> postBinaryAsync(URI uri,
+			byte[] body, String contentType, long timeoutMillis,
+			ClientCallback callback);
+
+	/**
+	 * Gets the uri on a background thread, as {@link #postJSONAsync} posts.
+	 */
+	public abstract Future<ClientResult> getAsync(URI uri, Header[] headers,
+			long timeoutMillis, ClientCallback callback);
+
+	/**
+	 * Cancels every asynchronous call of this client's still running.
+	 */
+	public abstract void cancelAll();
+
 	public abstract boolean isLoggedIn();
 
+	/**
+	 * True once the server has said, with an Accept-Encoding header on a
+	 * response, that it takes gzipped request bodies; until then bodies go
+	 * plain. Responses are always asked for gzipped.
+	 */
+	public abstract boolean isGzipAccepted();
+
 }
\ No newline at end of file
@@ -21,24 +21,64 @@ import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.benmoran.affectsampler.SyncException;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.CookieStore;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
 
 import android.util.Log;
 
@@ -48,15 +88,73 @@ public class AppEngineClientImpl implements AppEngineClient {
 	private static final String GOOGLE_CLIENT_LOGIN = "https://www.google.com/accounts/ClientLogin";
 	private static final String SYNC_URI = "https://affectsampler.appspot.com";
 	private static final String TAG = "AppEngineClient";
+	private static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+	private static final int MAX_CONNECTIONS = 4;
+	private static final long IDLE_MILLIS = 60 * 1000;
+
+	/**
+	 * Request bodies shorter than this go plain even to a server that takes
+	 * gzip; the header and trailer would outweigh the saving. Streamed
+	 * bodies, of unknown length, are always worth it.
+	 */
+	public static final int MIN_GZIP_BYTES = 1024;
+
+	// App Engine only gzips responses for user agents that mention gzip
+	private static final String USER_AGENT = APP_NAME + " (gzip)";
+
+	// One pool for every client, so keep-alive connections and TLS sessions
+	// outlive a single sync
+	private static HttpClient sClient;
+
+	// One breaker per host, shared by every client, so that Google's login
+	// failing doesn't turn requests away from the App Engine server, nor
+	// the other way round
+	private static final HashMap<String, CircuitBreaker> sCircuitBreakers =
+			new HashMap<String, CircuitBreaker>();
+
+	// Asynchronous calls run here, as many at once as there are connections
+	private static ExecutorService sCallExecutor;
+	// And have their deadlines kept here
+	private static ScheduledExecutorService sDeadlines;
+
+	// The asynchronous call the current thread is running, if any, so that
+	// execute() can let it abort the request in flight
+	private static final ThreadLocal<Call> sCurrentCall = new ThreadLocal<Call>();
 
 	private URI mUri;
 	private String mUsername;
 	private String mPassword;
+	private String mAccount;
 	private HttpClient mClient;
-	private boolean mLoggedIn;
+	private HttpContext mContext;
+	private CookieStore mCookieStore;
+	private AuthCache mAuthCache;
+	private String mAuthToken;
+	private volatile boolean mLoggedIn;
+	private volatile boolean mGzipAccepted;
+	private RetryPolicy mRetryPolicy = new RetryPolicy();
+	private CircuitBreaker mCircuitBreaker;
+	private final AtomicInteger mAttempts = new AtomicInteger();
+	private final AtomicInteger mRetries = new AtomicInteger();
+	private final Set<Call> mCalls = new HashSet<Call>();
+
+	// Held while logging in, so requests turned away together log in once
+	private final Object mLoginLock = new Object();
+	private volatile int mLogins;
 
 	public AppEngineClientImpl(String user, String pass, String uri)
 			throws SyncException {
+		this(user, pass, uri, null);
+	}
+
+	/**
+	 * @param authCache
+	 *            where to find and keep the login between clients, or null
+	 *            to always log in afresh
+	 */
+	public AppEngineClientImpl(String user, String pass, String uri,
+			AuthCache authCache) throws SyncException {
 		mUsername = user;
 		mPassword = pass;
 		if (uri == null) {
@@ -67,10 +165,154 @@ public class AppEngineClientImpl implements AppEngineClient {
 		} catch (URISyntaxException e) {
 			throw new SyncException(e);
 		}
-		final HttpParams params = new BasicHttpParams();
-		HttpClientParams.setRedirecting(params, false);
+		mAccount = user + " " + mUri.toString();
+		mCircuitBreaker = getSharedCircuitBreaker(mUri.getHost());
+		mClient = getSharedClient();
+		// Cookies belong to this client's login, not to the shared pool
+		mCookieStore = new BasicCookieStore();
+		mContext = new BasicHttpContext();
+		mContext.setAttribute(ClientContext.COOKIE_STORE, mCookieStore);
+
+		mAuthCache = authCache;
+		if (mAuthCache != null) {
+			mAuthToken = mAuthCache.getAuthToken(mAccount);
+			for (Cookie cookie : mAuthCache.getCookies(mAccount)) {
+				mCookieStore.addCookie(cookie);
+			}
+			// An unexpired session cookie is worth trying before logging in
+			mCookieStore.clearExpired(new Date());
+			mLoggedIn = !mCookieStore.getCookies().isEmpty();
+		}
+	}
+
+	private static synchronized HttpClient getSharedClient() {
+		if (sClient == null) {
+			final HttpParams params = new BasicHttpParams();
+			HttpClientParams.setRedirecting(params, false);
+			HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+			HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+			HttpProtocolParams.setUserAgent(params, USER_AGENT);
+			HttpConnectionParams.setConnectionTimeout(params,
+					RetryPolicy.DEFAULT_TIMEOUT_MILLIS);
+			HttpConnectionParams.setSoTimeout(params,
+					RetryPolicy.DEFAULT_TIMEOUT_MILLIS);
+			HttpConnectionParams.setStaleCheckingEnabled(params, true);
+			ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+			ConnManagerParams.setMaxConnectionsPerRoute(params,
+					new ConnPerRouteBean(MAX_CONNECTIONS));
+
+			SchemeRegistry schemes = new SchemeRegistry();
+			schemes.register(new Scheme("http", PlainSocketFactory
+					.getSocketFactory(), 80));
+			// The one SSLSocketFactory keeps TLS sessions for reuse
+			schemes.register(new Scheme("https", SSLSocketFactory
+					.getSocketFactory(), 443));
+
+			DefaultHttpClient client = new DefaultHttpClient(
+					new ThreadSafeClientConnManager(params, schemes), params);
+			// Retries are up to each client's RetryPolicy
+			client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(
+					0, false));
+			client.addRequestInterceptor(new HttpRequestInterceptor() {
+				public void process(HttpRequest request, HttpContext context) {
+					if (!request.containsHeader(ACCEPT_ENCODING)) {
+						request.addHeader(ACCEPT_ENCODING,
+								GzipCompressingEntity.GZIP);
+					}
+				}
+			});
+			client.addResponseInterceptor(new HttpResponseInterceptor() {
+				public void process(HttpResponse response, HttpContext context) {
+					HttpEntity entity = response.getEntity();
+					if (entity != null && GzipDecompressingEntity.isGzipped(entity)) {
+						response.setEntity(new GzipDecompressingEntity(entity));
+					}
+				}
+			});
+			sClient = client;
+		}
+		return sClient;
+	}
+
+	private static CircuitBreaker getSharedCircuitBreaker(String host) {
+		String key = (host != null) ? host.toLowerCase() : "";
+		synchronized (sCircuitBreakers) {
+			CircuitBreaker breaker = sCircuitBreakers.get(key);
+			if (breaker == null) {
+				breaker = new CircuitBreaker();
+				sCircuitBreakers.put(key, breaker);
+			}
+			return breaker;
+		}
+	}
+
+	/**
+	 * The breaker guarding the host the request goes to.
+	 */
+	private CircuitBreaker getCircuitBreaker(HttpUriRequest request) {
+		String host = request.getURI().getHost();
+		if (host == null || host.equalsIgnoreCase(mUri.getHost())) {
+			return mCircuitBreaker;
+		}
+		return getSharedCircuitBreaker(host);
+	}
+
+	private static synchronized ExecutorService getCallExecutor() {
+		if (sCallExecutor == null) {
+			sCallExecutor = Executors.newFixedThreadPool(MAX_CONNECTIONS,
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, TAG);
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			sDeadlines = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, TAG + " deadlines");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sCallExecutor;
+	}
+
+	/**
+	 * Closes pooled connections that have sat unused for a while, for
+	 * calling once a sync has finished.
+	 */
+	public static synchronized void closeIdleConnections() {
+		if (sClient != null) {
+			sClient.getConnectionManager().closeIdleConnections(IDLE_MILLIS,
+					TimeUnit.MILLISECONDS);
+		}
+	}
 
-		mClient = new DefaultHttpClient(params);
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		mRetryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Sets the breaker for requests to this client's server; requests to
+	 * other hosts, such as Google's login, keep their hosts' shared ones.
+	 */
+	public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		mCircuitBreaker = circuitBreaker;
+	}
+
+	/**
+	 * The number of HTTP requests this client has sent, retries included.
+	 */
+	public int getAttempts() {
+		return mAttempts.get();
+	}
+
+	/**
+	 * The number of those that were retries.
+	 */
+	public int getRetries() {
+		return mRetries.get();
 	}
 
 	private URI getFullURI(String fragment) throws URISyntaxException {
@@ -81,15 +323,6 @@ public class AppEngineClientImpl implements AppEngineClient {
 	 * @see net.benmoran.affectsampler.datastore.AppEngineClient#postJSON(java.net.URI, java.lang.String)
 	 */
 	public HttpResponse postJSON(URI uri, String body) throws SyncException {
-		if (!isLoggedIn()) {
-			login();
-		}
-		HttpPost request;
-		try {
-			request = new HttpPost(getFullURI(uri.toString()));
-		} catch (URISyntaxException e) {
-			throw new SyncException(e);
-		}
 		StringEntity entity;
 		try {
 			entity = new StringEntity(body);
@@ -98,24 +331,463 @@ public class AppEngineClientImpl implements AppEngineClient {
 		}
 		entity.setContentType("application/json");
 
-		request.setEntity(entity);
+		Log.i(TAG, "Sending to uri " + uri.toString() + " " + body);
+		return post(uri, entity);
+	}
+
+	/* (non-Javadoc)
+	 * @see net.benmoran.affectsampler.datastore.AppEngineClient#postJSON(java.net.URI, net.benmoran.affectsampler.datastore.JSONProducer)
+	 */
+	public HttpResponse postJSON(URI uri, JSONProducer producer)
+			throws SyncException {
+		Log.i(TAG, "Streaming to uri " + uri.toString());
+		return post(uri, new JSONEntity(producer));
+	}
+
+	/* (non-Javadoc)
+	 * @see net.benmoran.affectsampler.datastore.AppEngineClient#postBinary(java.net.URI, byte[], java.lang.String)
+	 */
+	public HttpResponse postBinary(URI uri, byte[] body, String contentType)
+			throws SyncException {
+		ByteArrayEntity entity = new ByteArrayEntity(body);
+		entity.setContentType(contentType);
+		Log.i(TAG, "Sending " + body.length + " bytes to uri " + uri.toString());
+		return post(uri, entity);
+	}
 
-		Log.i(TAG, "Sending to uri " + request.getURI().toString() + " " + body);
+	/**
+	 * Posts the entity, gzipped if the server takes that and it is big
+	 * enough to be worth it. Should the server turn a gzipped body away as
+	 * an unsupported media type without offering gzip, it goes again plain
+	 * and later ones stay plain.
+	 */
+	private HttpResponse post(URI uri, HttpEntity entity) throws SyncException {
+		HttpPost request;
 		try {
-			return mClient.execute(request);
-		} catch (ClientProtocolException e) {
-			throw new SyncException(e);
-		} catch (IOException e) {
+			request = new HttpPost(getFullURI(uri.toString()));
+		} catch (URISyntaxException e) {
 			throw new SyncException(e);
 		}
+		long length = entity.getContentLength();
+		boolean gzipped = isGzipAccepted()
+				&& (length < 0 || length >= MIN_GZIP_BYTES);
+		request.setEntity(gzipped ? new GzipCompressingEntity(entity) : entity);
+
+		HttpResponse response = executeLoggedIn(request);
+		if (gzipped && response.getStatusLine().getStatusCode() == 415
+				&& !offersGzip(response)) {
+			Log.i(TAG, "Server refused a gzipped body; sending plain");
+			mGzipAccepted = false;
+			ClientResult.consume(response);
+			request.setEntity(entity);
+			response = executeLoggedIn(request);
+		}
+		return response;
+	}
+
+	/**
+	 * True if the response's Accept-Encoding header lists gzip.
+	 */
+	private static boolean offersGzip(HttpResponse response) {
+		for (Header header : response.getHeaders(ACCEPT_ENCODING)) {
+			for (HeaderElement element : header.getElements()) {
+				if (GzipCompressingEntity.GZIP.equalsIgnoreCase(element.getName())) {
+					return true;
+				}
+			}
+		}
+		return false;
 	}
 	
+	/* (non-Javadoc)
+	 * @see net.benmoran.affectsampler.datastore.AppEngineClient#get(java.net.URI)
+	 */
+	public HttpResponse get(URI uri) throws SyncException {
+		return get(uri, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see net.benmoran.affectsampler.datastore.AppEngineClient#get(java.net.URI, org.apache.http.Header[])
+	 */
+	public HttpResponse get(URI uri, Header[] headers) throws SyncException {
+		HttpGet request;
+		try {
+			request = new HttpGet(getFullURI(uri.toString()));
+		} catch (URISyntaxException e) {
+			throw new SyncException(e);
+		}
+		if (headers != null) {
+			request.setHeaders(headers);
+		}
+
+		Log.i(TAG, "Getting uri " + request.getURI().toString());
+		return executeLoggedIn(request);
+	}
+
+	/* (non-Javadoc)
+	 * @see net.benmoran.affectsampler.datastore.AppEngineClient#postJSONAsync(java.net.URI, net.benmoran.affectsampler.datastore.JSONProducer, long, net.benmoran.affectsampler.datastore.ClientCallback)
+	 */
+	public Future<ClientResult> postJSONAsync(final URI uri,
+			final JSONProducer producer, long timeoutMillis,
+			ClientCallback callback) {
+		return submit(new Callable<ClientResult>() {
+			public ClientResult call() throws SyncException {
+				return ClientResult.read(postJSON(uri, producer));
+			}
+		}, timeoutMillis, callback);
+	}
+
+	/* (non-Javadoc)
+	 * @see net.benmoran.affectsampler.datastore.AppEngineClient#postBinaryAsync(java.net.URI, byte[], java.lang.String, long, net.benmoran.affectsampler.datastore.ClientCallback)
+	 */
+	public Future<ClientResult> postBinaryAsync(final URI uri,
+			final byte[] body, final String contentType, long timeoutMillis,
+			ClientCallback callback) {
+		return submit(new Callable<ClientResult>() {
+			public ClientResult call() throws SyncException {
+				return ClientResult.read(postBinary(uri, body, contentType));
+			}
+		}, timeoutMillis, callback);
+	}
+
+	/* (non-Javadoc)
+	 * @see net.benmoran.affectsampler.datastore.AppEngineClient#getAsync(java.net.URI, org.apache.http.Header[], long, net.benmoran.affectsampler.datastore.ClientCallback)
+	 */
+	public Future<ClientResult> getAsync(final URI uri, final Header[] headers,
+			long timeoutMillis, ClientCallback callback) {
+		return submit(new Callable<ClientResult>() {
+			public ClientResult call() throws SyncException {
+				return ClientResult.read(get(uri, headers));
+			}
+		}, timeoutMillis, callback);
+	}
+
+	/* (non-Javadoc)
+	 * @see net.benmoran.affectsampler.datastore.AppEngineClient#cancelAll()
+	 */
+	public void cancelAll() {
+		Call[] calls;
+		synchronized (mCalls) {
+			calls = mCalls.toArray(new Call[mCalls.size()]);
+		}
+		for (Call call : calls) {
+			call.cancel(true);
+		}
+	}
+
+	private Future<ClientResult> submit(Callable<ClientResult> callable,
+			final long timeoutMillis, ClientCallback callback) {
+		ExecutorService executor = getCallExecutor();
+		final Call call = new Call(callable, callback);
+		synchronized (mCalls) {
+			mCalls.add(call);
+		}
+		if (timeoutMillis > 0) {
+			call.setDeadline(sDeadlines.schedule(new Runnable() {
+				public void run() {
+					call.expire(timeoutMillis);
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS));
+		}
+		executor.execute(call);
+		return call;
+	}
+
+	/**
+	 * An asynchronous call: cancelling it, or its deadline passing, aborts
+	 * whichever request it has in flight and interrupts any wait between
+	 * retries.
+	 */
+	private class Call extends FutureTask<ClientResult> {
+		private final ClientCallback mCallback;
+		private Thread mRunner;
+		private HttpUriRequest mRequest;
+		private ScheduledFuture<?> mDeadline;
+
+		Call(Callable<ClientResult> callable, ClientCallback callback) {
+			super(callable);
+			mCallback = callback;
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				mRunner = Thread.currentThread();
+			}
+			sCurrentCall.set(this);
+			try {
+				super.run();
+			} finally {
+				sCurrentCall.set(null);
+				synchronized (this) {
+					mRunner = null;
+				}
+				// An abort that came too late mustn't interrupt the next call
+				Thread.interrupted();
+			}
+		}
+
+		synchronized void setDeadline(ScheduledFuture<?> deadline) {
+			mDeadline = deadline;
+		}
+
+		/**
+		 * Notes the request now in flight, aborting it at once if the call is
+		 * already over.
+		 */
+		synchronized void setRequest(HttpUriRequest request) {
+			mRequest = request;
+			if (isDone()) {
+				request.abort();
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled) {
+				abort();
+			}
+			return cancelled;
+		}
+
+		void expire(long timeoutMillis) {
+			if (isDone()) {
+				return;
+			}
+			setException(new SyncException("No answer within " + timeoutMillis
+					+ "ms"));
+			abort();
+		}
+
+		private synchronized void abort() {
+			if (mRequest != null) {
+				mRequest.abort();
+			}
+			if (mRunner != null) {
+				mRunner.interrupt();
+			}
+		}
+
+		@Override
+		protected void done() {
+			synchronized (this) {
+				if (mDeadline != null) {
+					mDeadline.cancel(false);
+				}
+			}
+			synchronized (mCalls) {
+				mCalls.remove(this);
+			}
+			if (mCallback == null || isCancelled()) {
+				return;
+			}
+			ClientResult result;
+			try {
+				result = get();
+			} catch (InterruptedException e) {
+				// Done, so get() doesn't wait
+				return;
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof SyncException) {
+					mCallback.onFailure((SyncException) cause);
+				} else if (cause instanceof Exception) {
+					mCallback.onFailure(new SyncException((Exception) cause));
+				} else {
+					throw (Error) cause;
+				}
+				return;
+			}
+			mCallback.onResult(result);
+		}
+	}
+
+	/**
+	 * Executes the request, logging in first if need be, and once more if
+	 * the server turns the session away. Request entities must be
+	 * repeatable.
+	 */
+	private HttpResponse executeLoggedIn(HttpUriRequest request)
+			throws SyncException {
+		int logins = mLogins;
+		if (!isLoggedIn()) {
+			refreshLogin(logins);
+			logins = mLogins;
+		}
+		HttpResponse response = execute(request);
+		if (isLoginRequired(response)) {
+			Log.i(TAG, "Session refused: " + response.getStatusLine());
+			ClientResult.consume(response);
+			refreshLogin(logins);
+			response = execute(request);
+		}
+		return response;
+	}
+
+	/**
+	 * True for a 401, or a redirect to a login page; other redirects, like
+	 * the one to an existing sample, are answers in their own right.
+	 */
+	private static boolean isLoginRequired(HttpResponse response) {
+		int status = response.getStatusLine().getStatusCode();
+		if (status == 401) {
+			return true;
+		}
+		if (status != 302) {
+			return false;
+		}
+		Header location = response.getFirstHeader("Location");
+		if (location == null) {
+			return false;
+		}
+		String target = location.getValue();
+		return target.indexOf("/_ah/login") >= 0
+				|| target.indexOf("/accounts/") >= 0;
+	}
+
+	/**
+	 * Logs in unless another request already has since the caller saw
+	 * seenLogins, then keeps the new login in the cache.
+	 */
+	private void refreshLogin(int seenLogins) throws SyncException {
+		synchronized (mLoginLock) {
+			if (mLogins != seenLogins && isLoggedIn()) {
+				return;
+			}
+			mLoggedIn = false;
+			login();
+			mLoggedIn = true;
+			mLogins++;
+			if (mAuthCache != null) {
+				mAuthCache.put(mAccount, mAuthToken, mCookieStore.getCookies());
+			}
+		}
+	}
+
+	/**
+	 * Executes the request on the shared client with this client's cookies,
+	 * retrying I/O errors and transient server errors as the retry policy
+	 * says. A server error that outlasts the retries is returned as the
+	 * response. The caller must consume the response's entity to release
+	 * the connection back to the pool.
+	 */
+	private HttpResponse execute(HttpUriRequest request) throws SyncException {
+		Call call = sCurrentCall.get();
+		if (call != null) {
+			call.setRequest(request);
+		}
+		RetryPolicy policy = mRetryPolicy;
+		HttpConnectionParams.setConnectionTimeout(request.getParams(), policy
+				.getTimeoutMillis());
+		HttpConnectionParams.setSoTimeout(request.getParams(), policy
+				.getTimeoutMillis());
+		CircuitBreaker breaker = getCircuitBreaker(request);
+		for (int attempt = 1;; attempt++) {
+			if (!breaker.allowRequest()) {
+				throw new SyncException("Server keeps failing; not trying "
+						+ request.getURI() + " again yet");
+			}
+			mAttempts.incrementAndGet();
+			HttpResponse response = null;
+			IOException failure = null;
+			String retryAfter = null;
+			boolean recorded = false;
+			try {
+				try {
+					// Each request gets a context of its own so that requests
+					// can run in parallel; the cookie store comes from the
+					// shared parent
+					response = mClient.execute(request, new BasicHttpContext(
+							mContext));
+				} catch (ClientProtocolException e) {
+					// Not worth retrying, but still a failure of the server
+					breaker.recordFailure();
+					recorded = true;
+					request.abort();
+					throw new SyncException(e);
+				} catch (IOException e) {
+					if (request.isAborted()) {
+						// Cancelled, or out of time: no use trying again
+						throw new SyncException(e);
+					}
+					failure = e;
+				}
+
+				if (response != null && !mGzipAccepted && offersGzip(response)) {
+					Log.i(TAG, "Server takes gzipped request bodies");
+					mGzipAccepted = true;
+				}
+
+				if (response != null) {
+					if (!policy.isRetryable(response.getStatusLine()
+							.getStatusCode())) {
+						breaker.recordSuccess();
+						recorded = true;
+						return response;
+					}
+					Header header = response.getFirstHeader("Retry-After");
+					if (header != null) {
+						retryAfter = header.getValue();
+					}
+				}
+				breaker.recordFailure();
+				recorded = true;
+			} finally {
+				if (!recorded) {
+					// Cancelled or broken off before the server had its say,
+					// so the breaker must not wait on this attempt for ever
+					breaker.releaseTrial();
+				}
+			}
+			if (attempt >= policy.getMaxAttempts()) {
+				if (response != null) {
+					return response;
+				}
+				request.abort();
+				throw new SyncException(failure);
+			}
+			if (response != null) {
+				ClientResult.consume(response);
+			}
+
+			long delay = policy.getDelayMillis(attempt, retryAfter);
+			Log.i(TAG, "Retrying " + request.getURI() + " in " + delay + "ms after "
+					+ (response != null ? response.getStatusLine() : failure));
+			mRetries.incrementAndGet();
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				request.abort();
+				throw new SyncException(e);
+			}
+		}
+	}
+
 	private URI getLoginUri(String authKey, String continueUrl) {
 		return URI.create(mUri.toString() + "/_ah/login?auth=" + authKey
 				+ "&continue=" + continueUrl);
 	}
 
-	private void login() throws SyncException {
+	/**
+	 * Gets an App Engine session cookie, reusing the cached ClientLogin
+	 * token if it still works. Called with the login lock held.
+	 */
+	protected void login() throws SyncException {
+		if (mAuthToken != null && appEngineLogin(mAuthToken)) {
+			return;
+		}
+		mAuthToken = clientLogin();
+		if (!appEngineLogin(mAuthToken)) {
+			mAuthToken = null;
+			throw new SyncException("App Engine refused the login");
+		}
+	}
+
+	/**
+	 * Asks Google for a ClientLogin token for the App Engine service.
+	 */
+	protected String clientLogin() throws SyncException {
 
 		// Setup Google.com login request parameters
 		List<BasicNameValuePair> nvps = new ArrayList<BasicNameValuePair>();
@@ -130,14 +802,7 @@ public class AppEngineClientImpl implements AppEngineClient {
 		} catch (UnsupportedEncodingException e) {
 			throw new SyncException(e);
 		}
-		HttpResponse response;
-		try {
-			response = mClient.execute(httpost);
-		} catch (ClientProtocolException e) {
-			throw new SyncException(e);
-		} catch (IOException e) {
-			throw new SyncException(e);
-		}
+		HttpResponse response = execute(httpost);
 		Log.i(TAG, "Google.com Login Response: " + response.getStatusLine());
 
 		// Find authkey in response body to pass to Appspot.com
@@ -146,6 +811,8 @@ public class AppEngineClientImpl implements AppEngineClient {
 			response.getEntity().writeTo(ostream);
 		} catch (IOException e) {
 			throw new SyncException(e);
+		} finally {
+			ClientResult.consume(response);
 		}
 		String strResponse = ostream.toString();
 		Log.v(TAG, strResponse);
@@ -158,34 +825,34 @@ public class AppEngineClientImpl implements AppEngineClient {
 				break;
 			}
 		}
+		if (authKey == null) {
+			throw new SyncException("Google.com login failed: "
+					+ response.getStatusLine().toString());
+		}
+		return authKey;
+	}
 
+	/**
+	 * Trades the token for an App Engine session cookie.
+	 * 
+	 * @return false if App Engine turned the token down, as it does a
+	 *         stale one
+	 */
+	private boolean appEngineLogin(String authKey) throws SyncException {
+		mCookieStore.clear();
 		URI uri = getLoginUri(authKey, "/"); // Continue URL just /
 		HttpGet httpget = new HttpGet(uri);
-
-		try {
-			response = mClient.execute(httpget);
-
-		} catch (ClientProtocolException e) {
-
-			throw new SyncException(e);
-		} catch (IOException e) {
-			throw new SyncException(e);
-		}
+		HttpResponse response = execute(httpget);
 
 		int status = response.getStatusLine().getStatusCode();
-		try {
-			response.getEntity().consumeContent();
-		} catch (IOException e) {
-			// Not interested in response, but want to silence warnings:
-//			11-20 22:34:02.461: WARN/SingleClientConnManager(1295): Invalid use of SingleClientConnManager: connection still allocated.
-//			11-20 22:34:02.461: WARN/SingleClientConnManager(1295): Make sure to release the connection before allocating another one.
-
-		}
-		if (status == 302 || status == 200) {
-			mLoggedIn = true;
-		} else {
-			throw new SyncException("Unexpected response to sync: " + response.getStatusLine().toString());
+		// Not interested in the response, but the connection goes back to
+		// the pool only once it is read
+		ClientResult.consume(response);
+		if (status != 302 && status != 200) {
+			Log.i(TAG, "App Engine login response: " + response.getStatusLine());
+			return false;
 		}
+		return !mCookieStore.getCookies().isEmpty();
 	}
 
 	/* (non-Javadoc)
@@ -195,4 +862,11 @@ public class AppEngineClientImpl implements AppEngineClient {
 		return mLoggedIn;
 	}
 
+	/* (non-Javadoc)
+	 * @see net.benmoran.affectsampler.datastore.AppEngineClient#isGzipAccepted()
+	 */
+	public boolean isGzipAccepted() {
+		return mGzipAccepted;
+	}
+
 }
@@ -0,0 +1,41 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler.datastore;
+
+import java.util.List;
+
+import org.apache.http.cookie.Cookie;
+
+/**
+ * Keeps an account's ClientLogin token and App Engine session cookies
+ * between clients, so a new client can skip logging in again. Everything
+ * is keyed on the account; asking about a different account finds nothing.
+ */
+public interface AuthCache {
+
+	public abstract String getAuthToken(String account);
+
+	public abstract List<Cookie> getCookies(String account);
+
+	/**
+	 * Replaces whatever was held with this account's token and cookies.
+	 */
+	public abstract void put(String account, String authToken,
+			List<Cookie> cookies);
+
+	public abstract void clear(String account);
+
+}
@@ -0,0 +1,87 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler.datastore;
+
+import android.os.SystemClock;
+
+/**
+ * Stops requests to a server that keeps failing. After threshold failed
+ * attempts in a row the breaker opens and turns requests away without
+ * sending them; once it has been open a while, it lets one trial request
+ * through, and closes again if that succeeds.
+ */
+public class CircuitBreaker {
+
+	public static final int DEFAULT_THRESHOLD = 5;
+	public static final long DEFAULT_OPEN_MILLIS = 60 * 1000;
+
+	private final int mThreshold;
+	private final long mOpenMillis;
+	private int mFailures;
+	private long mOpenedAt = -1;
+	private boolean mTrialPending;
+
+	public CircuitBreaker() {
+		this(DEFAULT_THRESHOLD, DEFAULT_OPEN_MILLIS);
+	}
+
+	public CircuitBreaker(int threshold, long openMillis) {
+		mThreshold = threshold;
+		mOpenMillis = openMillis;
+	}
+
+	/**
+	 * True if a request may be sent now. While half open, only the one
+	 * trial request is allowed until it reports back.
+	 */
+	public synchronized boolean allowRequest() {
+		if (mOpenedAt < 0) {
+			return true;
+		}
+		if (mTrialPending
+				|| SystemClock.elapsedRealtime() - mOpenedAt < mOpenMillis) {
+			return false;
+		}
+		mTrialPending = true;
+		return true;
+	}
+
+	public synchronized void recordSuccess() {
+		mFailures = 0;
+		mOpenedAt = -1;
+		mTrialPending = false;
+	}
+
+	public synchronized void recordFailure() {
+		mFailures++;
+		if (mTrialPending || mFailures >= mThreshold) {
+			mOpenedAt = SystemClock.elapsedRealtime();
+			mTrialPending = false;
+		}
+	}
+
+	/**
+	 * Gives up a request that ended without a verdict on the server, such as
+	 * one that was cancelled, so that another trial may go in its place.
+	 */
+	public synchronized void releaseTrial() {
+		mTrialPending = false;
+	}
+
+	public synchronized boolean isOpen() {
+		return mOpenedAt >= 0;
+	}
+}
@@ -0,0 +1,33 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler.datastore;
+
+import net.benmoran.affectsampler.SyncException;
+
+/**
+ * Told how an asynchronous request turned out, on the thread that ran it.
+ * A cancelled request tells it nothing.
+ */
+public interface ClientCallback {
+
+	public abstract void onResult(ClientResult result);
+
+	/**
+	 * Called if the request failed, or its deadline passed first.
+	 */
+	public abstract void onFailure(SyncException e);
+
+}
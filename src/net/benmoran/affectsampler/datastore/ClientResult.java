@@ -0,0 +1,122 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler.datastore;
+
+import java.io.IOException;
+
+import net.benmoran.affectsampler.SyncException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.ParseException;
+import org.apache.http.util.EntityUtils;
+
+import android.util.Log;
+
+/**
+ * A response read whole: its status, headers and body, with the
+ * connection already back in the pool, so it can be passed between
+ * threads and kept as long as need be.
+ */
+public class ClientResult {
+
+	private static final String TAG = "ClientResult";
+
+	private final int mStatusCode;
+	private final String mStatusLine;
+	private final Header[] mHeaders;
+	private final String mBody;
+
+	public ClientResult(int statusCode, String statusLine, Header[] headers,
+			String body) {
+		mStatusCode = statusCode;
+		mStatusLine = statusLine;
+		mHeaders = headers;
+		mBody = body;
+	}
+
+	/**
+	 * Reads the response's entity, releasing its connection.
+	 */
+	public static ClientResult read(HttpResponse response) throws SyncException {
+		String body = "";
+		HttpEntity entity = response.getEntity();
+		if (entity != null) {
+			try {
+				body = EntityUtils.toString(entity);
+			} catch (ParseException e) {
+				throw new SyncException(e);
+			} catch (IOException e) {
+				throw new SyncException(e);
+			} finally {
+				consume(response);
+			}
+		}
+		return new ClientResult(response.getStatusLine().getStatusCode(),
+				response.getStatusLine().toString(), response.getAllHeaders(),
+				body);
+	}
+
+	/**
+	 * Reads what is left of the response's entity, releasing its connection
+	 * for reuse.
+	 */
+	public static void consume(HttpResponse response) {
+		HttpEntity entity = response.getEntity();
+		if (entity != null) {
+			try {
+				entity.consumeContent();
+			} catch (IOException e) {
+				Log.w(TAG, "Could not release connection", e);
+			}
+		}
+	}
+
+	public int getStatusCode() {
+		return mStatusCode;
+	}
+
+	public String getStatusLine() {
+		return mStatusLine;
+	}
+
+	/**
+	 * The value of the first header with the name, or null if there is
+	 * none.
+	 */
+	public String getHeader(String name) {
+		for (Header header : mHeaders) {
+			if (header.getName().equalsIgnoreCase(name)) {
+				return header.getValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The body as text, or the empty string if there was none.
+	 */
+	public String getBody() {
+		return mBody;
+	}
+
+	@Override
+	public String toString() {
+		return mStatusLine;
+	}
+
+}
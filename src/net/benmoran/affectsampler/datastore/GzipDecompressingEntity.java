@@ -0,0 +1,85 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler.datastore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * A response entity that gunzips a gzipped one as it is read, so callers
+ * see the body as if it had been sent plain.
+ */
+public class GzipDecompressingEntity extends HttpEntityWrapper {
+
+	private static final int BUFFER_SIZE = 4096;
+
+	private InputStream mContent;
+
+	public GzipDecompressingEntity(HttpEntity entity) {
+		super(entity);
+	}
+
+	/**
+	 * True if the entity is gzipped, by its Content-Encoding.
+	 */
+	public static boolean isGzipped(HttpEntity entity) {
+		Header encoding = entity.getContentEncoding();
+		return encoding != null
+				&& GzipCompressingEntity.GZIP.equalsIgnoreCase(encoding
+						.getValue().trim());
+	}
+
+	@Override
+	public Header getContentEncoding() {
+		return null;
+	}
+
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		// A streamed entity can only be read once, so hand back the same
+		// stream each time
+		if (mContent == null || wrappedEntity.isRepeatable()) {
+			mContent = new GZIPInputStream(wrappedEntity.getContent());
+		}
+		return mContent;
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		InputStream in = getContent();
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				outstream.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler.datastore;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * A request entity that encodes a {@link JSONProducer}'s output as UTF-8
+ * straight onto the connection with chunked transfer encoding, holding no
+ * more than one buffer of it at a time.
+ */
+public class JSONEntity extends EntityTemplate {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	public JSONEntity(final JSONProducer producer) {
+		super(new ContentProducer() {
+			public void writeTo(OutputStream outstream) throws IOException {
+				Writer out = new BufferedWriter(new OutputStreamWriter(
+						outstream, HTTP.UTF_8), BUFFER_SIZE);
+				producer.writeJSON(out);
+				out.flush();
+			}
+		});
+		setContentType("application/json; charset=" + HTTP.UTF_8);
+		setChunked(true);
+	}
+
+	public boolean isStreaming() {
+		return false;
+	}
+
+	/**
+	 * Encodes the whole body into memory, for callers that read an entity
+	 * rather than write it; sending it never does.
+	 */
+	public InputStream getContent() throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		writeTo(buffer);
+		return new ByteArrayInputStream(buffer.toByteArray());
+	}
+
+}
@@ -0,0 +1,30 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler.datastore;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a JSON request body on demand, so it can be sent as it is
+ * encoded rather than built up in memory first. A producer may be asked to
+ * write more than once, if the request has to be retried.
+ */
+public interface JSONProducer {
+
+	public abstract void writeJSON(Writer out) throws IOException;
+
+}
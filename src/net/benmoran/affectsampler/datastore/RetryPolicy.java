@@ -0,0 +1,126 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler.datastore;
+
+import java.util.Date;
+import java.util.Random;
+
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+/**
+ * How hard {@link AppEngineClientImpl} tries each request: a timeout per
+ * attempt, and for I/O errors and transient server errors, further
+ * attempts after an exponential backoff with full jitter, or after the
+ * server's Retry-After. Retrying posts is safe because the server reports
+ * a sample it already holds as a duplicate.
+ */
+public class RetryPolicy {
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 4;
+	public static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 30 * 1000;
+	public static final int DEFAULT_TIMEOUT_MILLIS = 30 * 1000;
+
+	private final int mMaxAttempts;
+	private final long mBaseDelayMillis;
+	private final long mMaxDelayMillis;
+	private final int mTimeoutMillis;
+	private final Random mRandom = new Random();
+
+	public RetryPolicy() {
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS,
+				DEFAULT_MAX_DELAY_MILLIS, DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * @param maxAttempts
+	 *            attempts per request, including the first; 1 never retries
+	 * @param baseDelayMillis
+	 *            the backoff ceiling after the first attempt, doubling with
+	 *            each further attempt
+	 * @param maxDelayMillis
+	 *            the longest wait between attempts, Retry-After included
+	 * @param timeoutMillis
+	 *            the connect and read timeout of each attempt
+	 */
+	public RetryPolicy(int maxAttempts, long baseDelayMillis,
+			long maxDelayMillis, int timeoutMillis) {
+		mMaxAttempts = Math.max(maxAttempts, 1);
+		mBaseDelayMillis = baseDelayMillis;
+		mMaxDelayMillis = maxDelayMillis;
+		mTimeoutMillis = timeoutMillis;
+	}
+
+	public int getMaxAttempts() {
+		return mMaxAttempts;
+	}
+
+	public int getTimeoutMillis() {
+		return mTimeoutMillis;
+	}
+
+	/**
+	 * True for statuses worth another attempt: overload and the 5xx errors
+	 * that can pass, but not 501 or 505, which won't.
+	 */
+	public boolean isRetryable(int status) {
+		return status == 429
+				|| (status >= 500 && status != 501 && status != 505);
+	}
+
+	/**
+	 * How long to wait after the given failed attempt, counting from 1.
+	 * 
+	 * @param retryAfter
+	 *            the response's Retry-After header, in seconds or as an HTTP
+	 *            date, or null
+	 */
+	public long getDelayMillis(int attempt, String retryAfter) {
+		long delay = parseRetryAfter(retryAfter);
+		if (delay < 0) {
+			long ceiling = mBaseDelayMillis << Math.min(attempt - 1, 20);
+			if (ceiling <= 0 || ceiling > mMaxDelayMillis) {
+				ceiling = mMaxDelayMillis;
+			}
+			synchronized (mRandom) {
+				delay = (long) (mRandom.nextDouble() * ceiling);
+			}
+		}
+		return Math.min(delay, mMaxDelayMillis);
+	}
+
+	/**
+	 * @return the delay asked for, or -1 if there is none
+	 */
+	private static long parseRetryAfter(String retryAfter) {
+		if (retryAfter == null) {
+			return -1;
+		}
+		retryAfter = retryAfter.trim();
+		try {
+			return Math.max(Long.parseLong(retryAfter) * 1000, 0);
+		} catch (NumberFormatException e) {
+			// Not seconds, so perhaps a date
+		}
+		try {
+			Date date = DateUtils.parseDate(retryAfter);
+			return Math.max(date.getTime() - System.currentTimeMillis(), 0);
+		} catch (DateParseException e) {
+			return -1;
+		}
+	}
+}
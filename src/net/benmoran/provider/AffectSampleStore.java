@@ -40,6 +40,49 @@ public final class AffectSampleStore {
 		public static final Uri CONTENT_URI = Uri.parse("content://"
 				+ AUTHORITY + "/samples");
 
+		/**
+		 * The content:// style URL for a window of samples by created date,
+		 * samples/range/{from}/{to}. The window includes from and excludes to.
+		 */
+		public static final Uri RANGE_URI = Uri.parse("content://"
+				+ AUTHORITY + "/samples/range");
+
+		/**
+		 * The content:// style URL for a keyset page of samples created after
+		 * a given time, samples/after/{created}. Pages are always in created
+		 * order; pass the last row's {@link #_ID} as {@link #AFTER_ID_PARAM}
+		 * so samples sharing a created date are not skipped.
+		 */
+		public static final Uri AFTER_URI = Uri.parse("content://"
+				+ AUTHORITY + "/samples/after");
+
+		/**
+		 * The content:// style URL for bulk inserting samples from the server:
+		 * rows carry their {@link #SYNCED_DATE}, and any whose created date is
+		 * already held are skipped.
+		 */
+		public static final Uri MERGE_URI = Uri.parse("content://"
+				+ AUTHORITY + "/samples/merge");
+
+		/**
+		 * The content:// style URL for bulk recording the server's ids: each
+		 * row gives a sample's {@link #_ID} and its {@link #REMOTE_ID}, and
+		 * the samples are updated in one transaction without being logged.
+		 */
+		public static final Uri REMOTE_IDS_URI = Uri.parse("content://"
+				+ AUTHORITY + "/samples/remote_ids");
+
+		/**
+		 * Query parameter limiting the number of rows returned
+		 */
+		public static final String LIMIT_PARAM = "limit";
+
+		/**
+		 * Query parameter on {@link #AFTER_URI} giving the _id of the last row
+		 * of the previous page
+		 */
+		public static final String AFTER_ID_PARAM = "id";
+
 		/**
 		 * The MIME type of {@link #CONTENT_URI} providing a directory of notes.
 		 */
@@ -97,5 +140,369 @@ public final class AffectSampleStore {
 		 */
 		public static final String CREATED_DATE = "created";
 
+		/**
+		 * The timestamp for when the server acknowledged the sample; null
+		 * while it is still to be uploaded
+		 * <P>
+		 * Type: INTEGER (long from System.currentTimeMillis())
+		 * </P>
+		 */
+		public static final String SYNCED_DATE = "synced";
+
+		/**
+		 * The server's id for the sample, which stays the same when the
+		 * sample is edited; null until the server has told us
+		 * <P>
+		 * Type: INTEGER
+		 * </P>
+		 */
+		public static final String REMOTE_ID = "remote_id";
+
+		/**
+		 * Samples created in [from, to), in the provider's default order
+		 * unless the query gives one.
+		 */
+		public static Uri buildRangeUri(long from, long to) {
+			return RANGE_URI.buildUpon().appendPath(Long.toString(from))
+					.appendPath(Long.toString(to)).build();
+		}
+
+		/**
+		 * The next page of at most limit samples after the row (created, id),
+		 * in ascending created order. Start with created 0 and id -1.
+		 */
+		public static Uri buildAfterUri(long created, long id, int limit) {
+			return withLimit(AFTER_URI.buildUpon().appendPath(Long.toString(created))
+					.appendQueryParameter(AFTER_ID_PARAM, Long.toString(id))
+					.build(), limit);
+		}
+
+		/**
+		 * Adds a row limit to any of the sample directory URLs.
+		 */
+		public static Uri withLimit(Uri uri, int limit) {
+			return uri.buildUpon().appendQueryParameter(LIMIT_PARAM,
+					Integer.toString(limit)).build();
+		}
+	}
+
+	/**
+	 * Key-value bookkeeping for the synchronizer, such as the server's
+	 * watermark. Inserting an existing key replaces its value.
+	 */
+	public static final class SyncState {
+		// This class cannot be instantiated
+		private SyncState() {
+		}
+
+		/**
+		 * The content:// style URL for this table
+		 */
+		public static final Uri CONTENT_URI = Uri.parse("content://"
+				+ AUTHORITY + "/sync_state");
+
+		/**
+		 * The MIME type of {@link #CONTENT_URI} providing a directory of entries.
+		 */
+		public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.benmoran.syncstate";
+
+		/**
+		 * The name of the entry
+		 * <P>
+		 * Type: TEXT
+		 * </P>
+		 */
+		public static final String KEY = "key";
+
+		/**
+		 * The value of the entry
+		 * <P>
+		 * Type: TEXT
+		 * </P>
+		 */
+		public static final String VALUE = "value";
+
+		/**
+		 * The latest created date the server is known to hold from this device
+		 */
+		public static final String WATERMARK = "watermark";
+
+		/**
+		 * The server's opaque cursor after the last sample pulled, in the
+		 * order the server received them
+		 */
+		public static final String PULL_CURSOR = "pull_cursor";
+
+		/**
+		 * The ETag of the last pull that found nothing new after
+		 * {@link #PULL_CURSOR}
+		 */
+		public static final String PULL_ETAG = "pull_etag";
+	}
+
+	/**
+	 * The change log of the samples table: the provider appends one entry
+	 * for every sample inserted, updated or deleted, in the same transaction
+	 * as the change, and the synchronizer drains it and deletes the entries
+	 * the server has acknowledged. Samples merged from the server and
+	 * changes to {@link AffectSamples#SYNCED_DATE} or
+	 * {@link AffectSamples#REMOTE_ID} alone are not logged.
+	 * <P>
+	 * Queries join each entry with its sample's current columns, named as in
+	 * {@link AffectSamples}; {@link #CREATED_DATE} and {@link #REMOTE_ID} are
+	 * the sample's while it is held, and the entry's once it is deleted.
+	 * </P>
+	 */
+	public static final class Outbox implements BaseColumns {
+		// This class cannot be instantiated
+		private Outbox() {
+		}
+
+		/**
+		 * The content:// style URL for this table
+		 */
+		public static final Uri CONTENT_URI = Uri.parse("content://"
+				+ AUTHORITY + "/outbox");
+
+		/**
+		 * The MIME type of {@link #CONTENT_URI} providing a directory of entries.
+		 */
+		public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.benmoran.outbox";
+
+		/**
+		 * Query parameter giving the _id of the last entry of the previous
+		 * page
+		 */
+		public static final String AFTER_ID_PARAM = "id";
+
+		/**
+		 * The default sort order for this table: oldest first
+		 */
+		public static final String DEFAULT_SORT_ORDER = _ID + " ASC";
+
+		/**
+		 * {@link #OP} values
+		 */
+		public static final int OP_INSERT = 1;
+		public static final int OP_UPDATE = 2;
+		public static final int OP_DELETE = 3;
+
+		/**
+		 * The _id of the sample changed
+		 * <P>
+		 * Type: INTEGER
+		 * </P>
+		 */
+		public static final String SAMPLE_ID = "sample_id";
+
+		/**
+		 * What was done to the sample, {@link #OP_INSERT}, {@link #OP_UPDATE}
+		 * or {@link #OP_DELETE}
+		 * <P>
+		 * Type: INTEGER
+		 * </P>
+		 */
+		public static final String OP = "op";
+
+		/**
+		 * The sample's created date before the change, which the server knows
+		 * it by if it has no {@link #REMOTE_ID}
+		 * <P>
+		 * Type: INTEGER (long from System.currentTimeMillis())
+		 * </P>
+		 */
+		public static final String CREATED_DATE = "created";
+
+		/**
+		 * When the change was made
+		 * <P>
+		 * Type: INTEGER (long from System.currentTimeMillis())
+		 * </P>
+		 */
+		public static final String CHANGED_DATE = "changed";
+
+		/**
+		 * The server's id for the sample when the change was made, if it had
+		 * one
+		 * <P>
+		 * Type: INTEGER
+		 * </P>
+		 */
+		public static final String REMOTE_ID = "remote_id";
+
+		/**
+		 * In queries, 1 if the sample is still held, 0 once it is deleted
+		 * <P>
+		 * Type: INTEGER
+		 * </P>
+		 */
+		public static final String SAMPLE_HELD = "held";
+
+		/**
+		 * The next page of at most limit entries after the one with the given
+		 * _id, oldest first. Start with -1.
+		 */
+		public static Uri buildPageUri(long afterId, int limit) {
+			return AffectSamples.withLimit(CONTENT_URI.buildUpon()
+					.appendQueryParameter(AFTER_ID_PARAM, Long.toString(afterId))
+					.build(), limit);
+		}
+	}
+
+	/**
+	 * Hourly and daily aggregates of the samples table, kept up to date by
+	 * the provider in the same transaction as each sample change. Buckets
+	 * start on local hour and day boundaries.
+	 */
+	public static final class AffectRollups {
+		// This class cannot be instantiated
+		private AffectRollups() {
+		}
+
+		/**
+		 * The content:// style URL for this table; append a granularity with
+		 * {@link #buildRollupUri}.
+		 */
+		public static final Uri CONTENT_URI = Uri.parse("content://"
+				+ AUTHORITY + "/samples/rollup");
+
+		/**
+		 * The MIME type of {@link #CONTENT_URI} providing a directory of buckets.
+		 */
+		public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.benmoran.affectrollup";
+
+		/**
+		 * The default sort order for this table
+		 */
+		public static final String DEFAULT_SORT_ORDER = "bucket ASC";
+
+		/**
+		 * Granularity of one-hour buckets
+		 */
+		public static final String HOUR = "hour";
+
+		/**
+		 * Granularity of one-day buckets
+		 */
+		public static final String DAY = "day";
+
+		/**
+		 * The bucket size, {@link #HOUR} or {@link #DAY}
+		 * <P>
+		 * Type: TEXT
+		 * </P>
+		 */
+		public static final String GRANULARITY = "granularity";
+
+		/**
+		 * The start of the bucket
+		 * <P>
+		 * Type: INTEGER (long from System.currentTimeMillis())
+		 * </P>
+		 */
+		public static final String BUCKET = "bucket";
+
+		/**
+		 * The number of samples created in the bucket
+		 * <P>
+		 * Type: INTEGER
+		 * </P>
+		 */
+		public static final String SAMPLE_COUNT = "sample_count";
+
+		/**
+		 * Sum, sum of squares, minimum and maximum of the emotion of the
+		 * samples in the bucket
+		 * <P>
+		 * Type: Double
+		 * </P>
+		 */
+		public static final String EMOTION_SUM = "emotion_sum";
+		public static final String EMOTION_SUMSQ = "emotion_sumsq";
+		public static final String EMOTION_MIN = "emotion_min";
+		public static final String EMOTION_MAX = "emotion_max";
+
+		/**
+		 * Sum, sum of squares, minimum and maximum of the intensity of the
+		 * samples in the bucket
+		 * <P>
+		 * Type: Double
+		 * </P>
+		 */
+		public static final String INTENSITY_SUM = "intensity_sum";
+		public static final String INTENSITY_SUMSQ = "intensity_sumsq";
+		public static final String INTENSITY_MIN = "intensity_min";
+		public static final String INTENSITY_MAX = "intensity_max";
+
+		/**
+		 * The buckets of the given granularity, {@link #HOUR} or {@link #DAY}
+		 */
+		public static Uri buildRollupUri(String granularity) {
+			return CONTENT_URI.buildUpon().appendPath(granularity).build();
+		}
+	}
+
+	/**
+	 * Per-bucket counts and hashes of the samples' created dates, worked out
+	 * by the provider with one GROUP BY query, for reconciling with the
+	 * server. Unlike {@link AffectRollups}, buckets are aligned to the epoch,
+	 * so days are UTC days: the server knows nothing of the device's time
+	 * zone and has to cut the same buckets.
+	 */
+	public static final class SampleDigests {
+		// This class cannot be instantiated
+		private SampleDigests() {
+		}
+
+		/**
+		 * The content:// style URL for this table; append a range and span
+		 * with {@link #buildDigestUri}.
+		 */
+		public static final Uri CONTENT_URI = Uri.parse("content://"
+				+ AUTHORITY + "/samples/digest");
+
+		/**
+		 * The MIME type of {@link #CONTENT_URI} providing a directory of buckets.
+		 */
+		public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.benmoran.sampledigest";
+
+		/**
+		 * The default sort order for this table
+		 */
+		public static final String DEFAULT_SORT_ORDER = "bucket ASC";
+
+		/**
+		 * The start of the bucket, a multiple of the span
+		 * <P>
+		 * Type: INTEGER (long from System.currentTimeMillis())
+		 * </P>
+		 */
+		public static final String BUCKET = "bucket";
+
+		/**
+		 * The number of samples created in the bucket
+		 * <P>
+		 * Type: INTEGER
+		 * </P>
+		 */
+		public static final String SAMPLE_COUNT = "sample_count";
+
+		/**
+		 * The sum of the hashes of the created dates in the bucket
+		 * <P>
+		 * Type: INTEGER
+		 * </P>
+		 */
+		public static final String HASH = "hash";
+
+		/**
+		 * The non-empty buckets of span milliseconds holding samples created
+		 * in [from, to)
+		 */
+		public static Uri buildDigestUri(long from, long to, long span) {
+			return CONTENT_URI.buildUpon().appendPath(Long.toString(from))
+					.appendPath(Long.toString(to)).appendPath(Long.toString(span))
+					.build();
+		}
 	}
 }
@@ -0,0 +1,231 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.util.Calendar;
+
+import net.benmoran.provider.AffectSampleStore;
+import net.benmoran.provider.AffectSampleStore.AffectRollups;
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+public class AffectProviderTest extends ProviderTestCase2<AffectProvider> {
+
+	public AffectProviderTest() {
+		super(AffectProvider.class, AffectSampleStore.AUTHORITY);
+	}
+
+	protected ContentResolver getResolver() {
+		return getMockContentResolver();
+	}
+
+	protected static ContentValues makeSample(double emotion,
+			double intensity, String comment, long created) {
+		ContentValues values = new ContentValues();
+		values.put(AffectSamples.EMOTION, emotion);
+		values.put(AffectSamples.INTENSITY, intensity);
+		if (comment != null) {
+			values.put(AffectSamples.COMMENT, comment);
+		}
+		if (created > 0) {
+			values.put(AffectSamples.CREATED_DATE, created);
+		}
+		return values;
+	}
+
+	@MediumTest
+	public void testBulkInsert() {
+		ContentValues[] values = new ContentValues[] {
+				makeSample(0.1, 0.2, "first", 1000L),
+				makeSample(0.3, 0.4, null, 2000L),
+				makeSample(0.5, 0.6, "third", -1) };
+		int count = getResolver().bulkInsert(AffectSamples.CONTENT_URI, values);
+		assertEquals(3, count);
+
+		Cursor cursor = getResolver().query(AffectSamples.CONTENT_URI,
+				new String[] { AffectSamples.COMMENT, AffectSamples.CREATED_DATE,
+						AffectSamples.SCHEDULED_DATE },
+				null, null, AffectSamples.CREATED_DATE + " ASC");
+		try {
+			assertEquals(3, cursor.getCount());
+			cursor.moveToPosition(0);
+			assertEquals("first", cursor.getString(0));
+			assertEquals(1000L, cursor.getLong(1));
+			assertTrue(cursor.isNull(2));
+			cursor.moveToPosition(1);
+			assertEquals("", cursor.getString(0));
+			cursor.moveToPosition(2);
+			assertTrue(cursor.getLong(1) > 2000L);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@MediumTest
+	public void testBulkInsertEmpty() {
+		assertEquals(0, getResolver().bulkInsert(AffectSamples.CONTENT_URI,
+				new ContentValues[0]));
+	}
+
+	@MediumTest
+	public void testMergeSkipsHeldSamples() {
+		getResolver().bulkInsert(AffectSamples.CONTENT_URI, new ContentValues[] {
+				makeSample(0.1, 0.1, "local", 1000L) });
+		ContentValues held = makeSample(0.9, 0.9, "remote", 1000L);
+		ContentValues fresh = makeSample(0.2, 0.2, "remote", 2000L);
+		fresh.put(AffectSamples.SYNCED_DATE, 5000L);
+		ContentValues repeated = makeSample(0.3, 0.3, "again", 2000L);
+		assertEquals(1, getResolver().bulkInsert(AffectSamples.MERGE_URI,
+				new ContentValues[] { held, fresh, repeated }));
+
+		Cursor cursor = getResolver().query(AffectSamples.CONTENT_URI,
+				new String[] { AffectSamples.COMMENT, AffectSamples.SYNCED_DATE },
+				null, null, AffectSamples.CREATED_DATE + " ASC");
+		try {
+			assertEquals(2, cursor.getCount());
+			cursor.moveToPosition(0);
+			assertEquals("local", cursor.getString(0));
+			assertTrue(cursor.isNull(1));
+			cursor.moveToPosition(1);
+			assertEquals("remote", cursor.getString(0));
+			assertEquals(5000L, cursor.getLong(1));
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@MediumTest
+	public void testRangeQuery() {
+		getResolver().bulkInsert(AffectSamples.CONTENT_URI, new ContentValues[] {
+				makeSample(0.1, 0.1, null, 1000L),
+				makeSample(0.2, 0.2, null, 2000L),
+				makeSample(0.3, 0.3, null, 3000L) });
+
+		Cursor cursor = getResolver().query(
+				AffectSamples.buildRangeUri(1000L, 3000L),
+				new String[] { AffectSamples.CREATED_DATE }, null, null,
+				AffectSamples.CREATED_DATE + " ASC");
+		try {
+			assertEquals(2, cursor.getCount());
+			cursor.moveToPosition(0);
+			assertEquals(1000L, cursor.getLong(0));
+			cursor.moveToPosition(1);
+			assertEquals(2000L, cursor.getLong(0));
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@MediumTest
+	public void testKeysetPages() {
+		// Two samples share a created date across the page boundary
+		getResolver().bulkInsert(AffectSamples.CONTENT_URI, new ContentValues[] {
+				makeSample(0.1, 0.1, null, 1000L),
+				makeSample(0.2, 0.2, null, 2000L),
+				makeSample(0.3, 0.3, null, 2000L),
+				makeSample(0.4, 0.4, null, 3000L),
+				makeSample(0.5, 0.5, null, 4000L) });
+
+		String[] projection = new String[] { AffectSamples._ID,
+				AffectSamples.CREATED_DATE };
+		long created = 0;
+		long id = -1;
+		int pages = 0;
+		int rows = 0;
+		while (true) {
+			Cursor cursor = getResolver().query(
+					AffectSamples.buildAfterUri(created, id, 2), projection,
+					null, null, null);
+			try {
+				if (cursor.getCount() == 0) {
+					break;
+				}
+				assertTrue(cursor.getCount() <= 2);
+				for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+					assertTrue(cursor.getLong(1) >= created);
+					id = cursor.getLong(0);
+					created = cursor.getLong(1);
+					rows++;
+				}
+			} finally {
+				cursor.close();
+			}
+			pages++;
+		}
+		assertEquals(5, rows);
+		assertEquals(3, pages);
+	}
+
+	protected Cursor queryRollups(String granularity) {
+		return getResolver().query(AffectRollups.buildRollupUri(granularity),
+				new String[] { AffectRollups.BUCKET, AffectRollups.SAMPLE_COUNT,
+						AffectRollups.EMOTION_SUM, AffectRollups.EMOTION_MIN,
+						AffectRollups.EMOTION_MAX, AffectRollups.INTENSITY_SUMSQ },
+				null, null, null);
+	}
+
+	@MediumTest
+	public void testRollups() {
+		Calendar cal = Calendar.getInstance();
+		cal.set(2010, Calendar.JANUARY, 1, 10, 5, 0);
+		long tenOClock = cal.getTimeInMillis();
+		cal.set(Calendar.HOUR_OF_DAY, 15);
+		long threeOClock = cal.getTimeInMillis();
+
+		getResolver().bulkInsert(AffectSamples.CONTENT_URI, new ContentValues[] {
+				makeSample(0.2, 0.1, null, tenOClock),
+				makeSample(0.6, 0.2, null, tenOClock + 1000L),
+				makeSample(0.4, 0.3, null, threeOClock) });
+
+		Cursor hours = queryRollups(AffectRollups.HOUR);
+		try {
+			assertEquals(2, hours.getCount());
+			hours.moveToFirst();
+			assertEquals(2, hours.getInt(1));
+			assertEquals(0.8, hours.getDouble(2), 1e-9);
+			assertEquals(0.2, hours.getDouble(3), 1e-9);
+			assertEquals(0.6, hours.getDouble(4), 1e-9);
+			assertEquals(0.05, hours.getDouble(5), 1e-9);
+		} finally {
+			hours.close();
+		}
+
+		getResolver().delete(AffectSamples.CONTENT_URI,
+				AffectSamples.CREATED_DATE + "=?",
+				new String[] { Long.toString(tenOClock) });
+		ContentValues emotion = new ContentValues();
+		emotion.put(AffectSamples.EMOTION, 0.9);
+		getResolver().update(AffectSamples.CONTENT_URI, emotion,
+				AffectSamples.CREATED_DATE + "=?",
+				new String[] { Long.toString(threeOClock) });
+
+		Cursor days = queryRollups(AffectRollups.DAY);
+		try {
+			assertEquals(1, days.getCount());
+			days.moveToFirst();
+			assertEquals(2, days.getInt(1));
+			assertEquals(1.5, days.getDouble(2), 1e-9);
+			assertEquals(0.6, days.getDouble(3), 1e-9);
+			assertEquals(0.9, days.getDouble(4), 1e-9);
+		} finally {
+			days.close();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.benmoran.affectsampler.datastore.ClientCallback;
+import net.benmoran.affectsampler.datastore.ClientResult;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class AsyncClientTest extends AndroidTestCase {
+	private static final URI LATEST = URI.create("/latest");
+	private static final long SLOW = 10 * 1000;
+
+	private MockAppEngineClient mClient;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mClient = new MockAppEngineClient();
+	}
+
+	/**
+	 * Keeps what it was told, and counts down once told.
+	 */
+	private static class RecordingCallback implements ClientCallback {
+		final CountDownLatch told = new CountDownLatch(1);
+		volatile ClientResult result;
+		volatile SyncException failure;
+
+		public void onResult(ClientResult r) {
+			result = r;
+			told.countDown();
+		}
+
+		public void onFailure(SyncException e) {
+			failure = e;
+			told.countDown();
+		}
+	}
+
+	@SmallTest
+	public void testResult() throws Exception {
+		mClient.setResponse(200, "{\"created\":1000}");
+		RecordingCallback callback = new RecordingCallback();
+		Future<ClientResult> call = mClient.getAsync(LATEST, null, 0, callback);
+
+		ClientResult result = call.get(5, TimeUnit.SECONDS);
+		assertEquals(200, result.getStatusCode());
+		assertEquals("{\"created\":1000}", result.getBody());
+		assertTrue(callback.told.await(5, TimeUnit.SECONDS));
+		assertSame(result, callback.result);
+		assertNull(callback.failure);
+	}
+
+	@MediumTest
+	public void testDeadline() throws Exception {
+		mClient.setDelay(SLOW);
+		RecordingCallback callback = new RecordingCallback();
+		long start = System.currentTimeMillis();
+		Future<ClientResult> call = mClient.postJSONAsync(LATEST, null, 100,
+				callback);
+		try {
+			call.get(5, TimeUnit.SECONDS);
+			fail("Expected the deadline to pass");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof SyncException);
+		}
+		assertTrue(System.currentTimeMillis() - start < SLOW / 2);
+		assertTrue(callback.told.await(5, TimeUnit.SECONDS));
+		assertNotNull(callback.failure);
+		assertNull(callback.result);
+	}
+
+	@MediumTest
+	public void testCancel() throws Exception {
+		mClient.setDelay(SLOW);
+		RecordingCallback callback = new RecordingCallback();
+		Future<ClientResult> call = mClient.postBinaryAsync(LATEST,
+				new byte[0], "application/octet-stream", 0, callback);
+		Future<ClientResult> other = mClient.getAsync(LATEST, null, 0, null);
+
+		mClient.cancelAll();
+		assertTrue(call.isCancelled());
+		assertTrue(other.isCancelled());
+		// Cancelled calls tell their callbacks nothing
+		assertFalse(callback.told.await(200, TimeUnit.MILLISECONDS));
+
+		// The threads they held are free for the next call
+		mClient.setDelay(0);
+		assertEquals(201, mClient.getAsync(LATEST, null, 0, null).get(5,
+				TimeUnit.SECONDS).getStatusCode());
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import net.benmoran.affectsampler.datastore.AppEngineClientImpl;
+import net.benmoran.affectsampler.datastore.AuthCache;
+import net.benmoran.affectsampler.datastore.ClientResult;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.cookie.BasicClientCookie;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+public class AuthCacheTest extends AndroidTestCase {
+	private static final String ACCOUNT = "someone@example.com";
+	private static final int THREADS = 4;
+
+	private StandInServer mServer;
+	private AuthCache mCache;
+	private int mClientLogins;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		SharedPreferences prefs = getContext().getSharedPreferences(
+				"auth_test", Context.MODE_PRIVATE);
+		prefs.edit().remove("account").commit();
+		mCache = new PreferencesAuthCache(prefs);
+		mServer = new StandInServer(true);
+		mServer.setSessionRequired(true);
+		mServer.start();
+	}
+
+	protected void tearDown() throws Exception {
+		mServer.stop();
+		super.tearDown();
+	}
+
+	// Stands in for Google's ClientLogin, counting the trips to it
+	private AppEngineClientImpl newClient() throws SyncException {
+		return new AppEngineClientImpl(ACCOUNT, "secret", mServer.getUri(),
+				mCache) {
+			@Override
+			protected String clientLogin() {
+				synchronized (AuthCacheTest.this) {
+					mClientLogins++;
+				}
+				return "token";
+			}
+		};
+	}
+
+	private static void assertOK(HttpResponse response) {
+		ClientResult.consume(response);
+		assertEquals(200, response.getStatusLine().getStatusCode());
+	}
+
+	@MediumTest
+	public void testCookiesRoundTrip() {
+		BasicClientCookie cookie = new BasicClientCookie("ACSID", "abc");
+		cookie.setDomain("example.com");
+		cookie.setPath("/");
+		cookie.setExpiryDate(new Date(5000L));
+		cookie.setSecure(true);
+		List<Cookie> cookies = new ArrayList<Cookie>();
+		cookies.add(cookie);
+		mCache.put(ACCOUNT, "token", cookies);
+
+		assertEquals("token", mCache.getAuthToken(ACCOUNT));
+		Cookie stored = mCache.getCookies(ACCOUNT).get(0);
+		assertEquals("abc", stored.getValue());
+		assertEquals("example.com", stored.getDomain());
+		assertEquals(5000L, stored.getExpiryDate().getTime());
+		assertTrue(stored.isSecure());
+
+		// Bound to the account
+		assertNull(mCache.getAuthToken("someone.else@example.com"));
+		assertTrue(mCache.getCookies("someone.else@example.com").isEmpty());
+	}
+
+	@MediumTest
+	public void testLoginReusedAcrossClients() throws SyncException {
+		assertOK(newClient().get(URI.create("/latest")));
+		assertEquals(1, mClientLogins);
+		assertEquals(1, mServer.getRequestCount("/_ah/login"));
+
+		// A new client, as for the next sync, picks up the session
+		AppEngineClientImpl client = newClient();
+		assertTrue(client.isLoggedIn());
+		assertOK(client.get(URI.create("/latest")));
+		assertEquals(1, mClientLogins);
+		assertEquals(1, mServer.getRequestCount("/_ah/login"));
+	}
+
+	@MediumTest
+	public void testSingleReloginWhenSessionExpires() throws Exception {
+		final AppEngineClientImpl client = newClient();
+		assertOK(client.get(URI.create("/latest")));
+		mServer.expireSessions();
+
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						assertOK(client.get(URI.create("/latest")));
+					} catch (Throwable e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(failures.toString(), failures.isEmpty());
+		// The cached token gets the new session; ClientLogin isn't needed
+		assertEquals(1, mClientLogins);
+		assertEquals(2, mServer.getRequestCount("/_ah/login"));
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class AutoSyncTest extends AndroidTestCase {
+	private static final long NOW = 10 * 60 * 60 * 1000L;
+
+	@SmallTest
+	public void testDebounces() {
+		// A lone change waits for more
+		assertEquals(AutoSync.DEBOUNCE_MILLIS, AutoSync.getDelay(NOW, NOW, 0));
+		// Each one in a burst puts the sync off again...
+		assertEquals(AutoSync.DEBOUNCE_MILLIS, AutoSync.getDelay(NOW, NOW
+				- 30 * 1000, 0));
+		// ...but not past the longest wait
+		assertEquals(10 * 1000, AutoSync.getDelay(NOW, NOW
+				- AutoSync.MAX_WAIT_MILLIS + 10 * 1000, 0));
+		assertEquals(0, AutoSync.getDelay(NOW, NOW - 2
+				* AutoSync.MAX_WAIT_MILLIS, 0));
+	}
+
+	@SmallTest
+	public void testMinimumInterval() {
+		long lastSync = NOW - 60 * 1000;
+		assertEquals(AutoSync.MIN_INTERVAL_MILLIS - 60 * 1000, AutoSync
+				.getDelay(NOW, NOW, lastSync));
+		// Long enough ago not to matter
+		assertEquals(AutoSync.DEBOUNCE_MILLIS, AutoSync.getDelay(NOW, NOW, NOW
+				- 2 * AutoSync.MIN_INTERVAL_MILLIS));
+	}
+
+	@SmallTest
+	public void testBattery() {
+		assertTrue(AutoSync.isBatteryAllowed(80, 100, 0));
+		assertTrue(AutoSync.isBatteryAllowed(AutoSync.MIN_BATTERY_PERCENT, 100, 0));
+		assertFalse(AutoSync.isBatteryAllowed(10, 100, 0));
+		// Charging, or no idea
+		assertTrue(AutoSync.isBatteryAllowed(10, 100, 1));
+		assertTrue(AutoSync.isBatteryAllowed(-1, -1, 0));
+		// Scales other than percent
+		assertFalse(AutoSync.isBatteryAllowed(30, 200, 0));
+	}
+}
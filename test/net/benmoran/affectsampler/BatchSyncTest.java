@@ -0,0 +1,292 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import net.benmoran.affectsampler.datastore.AppEngineClientImpl;
+import net.benmoran.affectsampler.datastore.CircuitBreaker;
+import net.benmoran.affectsampler.datastore.RetryPolicy;
+import net.benmoran.provider.AffectSampleStore;
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+import org.json.JSONObject;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+public class BatchSyncTest extends ProviderTestCase2<AffectProvider> {
+	private static final int SAMPLES = 120;
+
+	private SyncStore mStore;
+	private StandInServer mServer;
+
+	public BatchSyncTest() {
+		super(AffectProvider.class, AffectSampleStore.AUTHORITY);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mStore = new SyncStore(getMockContentResolver());
+		ContentValues[] values = new ContentValues[SAMPLES];
+		for (int i = 0; i < SAMPLES; i++) {
+			values[i] = AffectProviderTest.makeSample(0.5, 0.5, "s" + i,
+					1000L * (i + 1));
+		}
+		getMockContentResolver().bulkInsert(AffectSamples.CONTENT_URI, values);
+	}
+
+	protected void tearDown() throws Exception {
+		if (mServer != null) {
+			mServer.stop();
+		}
+		super.tearDown();
+	}
+
+	private Synchronizer startServer(boolean batchSupported) throws Exception {
+		mServer = new StandInServer(batchSupported);
+		mServer.start();
+		// The stand-in needs no Google login
+		AppEngineClientImpl client = new AppEngineClientImpl(null, null,
+				mServer.getUri()) {
+			@Override
+			public boolean isLoggedIn() {
+				return true;
+			}
+		};
+		// Failures here are meant to stick
+		client.setRetryPolicy(new RetryPolicy(1, 0, 0,
+				RetryPolicy.DEFAULT_TIMEOUT_MILLIS));
+		client.setCircuitBreaker(new CircuitBreaker());
+		return new Synchronizer(client);
+	}
+
+	private int countUnsynced() {
+		Cursor cursor = getMockContentResolver().query(AffectSamples.CONTENT_URI,
+				new String[] { AffectSamples._ID },
+				AffectSamples.SYNCED_DATE + " IS NULL", null, null);
+		try {
+			return cursor.getCount();
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@MediumTest
+	public void testBatches() throws Exception {
+		Synchronizer sync = startServer(true);
+		assertEquals(SAMPLES, sync.sync(mStore));
+		assertTrue(sync.isBatchSupported());
+		assertEquals(3, mServer.getRequestCount("/batch"));
+		assertEquals(0, mServer.getRequestCount("/Sample/"));
+		assertEquals(SAMPLES, mServer.getSampleCount());
+		assertEquals(0, countUnsynced());
+	}
+
+	@MediumTest
+	public void testBatchDuplicates() throws Exception {
+		Synchronizer sync = startServer(true);
+		// Held by the server but never acknowledged here, so sent again
+		mStore.setWatermark(0);
+		mServer.addSample(new JSONObject().put("created", 2000L));
+		mServer.addSample(new JSONObject().put("created", 60000L));
+		assertEquals(SAMPLES - 2, sync.sync(mStore));
+		assertEquals(SAMPLES, mServer.getSampleCount());
+		assertEquals(0, countUnsynced());
+	}
+
+	@MediumTest
+	public void testPipelinedUploads() throws Exception {
+		Synchronizer sync = startServer(true);
+		sync.setBatchSize(10);
+		sync.setParallelUploads(4);
+		assertEquals(SAMPLES, sync.sync(mStore));
+		assertEquals(SAMPLES / 10, mServer.getRequestCount("/batch"));
+		assertEquals(SAMPLES, mServer.getSampleCount());
+		assertEquals(0, countUnsynced());
+		assertEquals(1000L * SAMPLES, mStore.getWatermark());
+	}
+
+	@MediumTest
+	public void testPipelinedFailureHoldsWatermark() throws Exception {
+		Synchronizer sync = startServer(true);
+		sync.setBatchSize(10);
+		sync.setParallelUploads(4);
+		// The third batch, samples 21 to 30
+		mServer.setFailingBatch(21000L);
+		try {
+			sync.sync(mStore);
+			fail("Expected the third batch to fail");
+		} catch (SyncException e) {
+			// expected
+		}
+		// Samples 21 to 30 weren't stored; the watermark stops short of them
+		// though batches after them may have landed
+		assertEquals(20000L, mStore.getWatermark());
+		assertEquals(SAMPLES - mServer.getSampleCount(), countUnsynced());
+		assertTrue(countUnsynced() >= 10);
+
+		mServer.setFailingBatch(-1);
+		sync.sync(mStore);
+		assertEquals(SAMPLES, mServer.getSampleCount());
+		assertEquals(0, countUnsynced());
+	}
+
+	@MediumTest
+	public void testStopsAtRejectedSample() throws Exception {
+		Synchronizer sync = startServer(true);
+		sync.setBatchSize(10);
+		sync.setParallelUploads(1);
+		mServer.setRejected(25000L);
+		// The rest of its batch lands, but nothing after it is sent
+		assertEquals(29, sync.sync(mStore));
+		assertEquals(3, mServer.getRequestCount("/batch"));
+		assertEquals(24000L, mStore.getWatermark());
+		assertEquals(SAMPLES - 29, countUnsynced());
+
+		mServer.setRejected(-1);
+		assertEquals(SAMPLES - 29, sync.sync(mStore));
+		assertEquals(SAMPLES, mServer.getSampleCount());
+		assertEquals(0, countUnsynced());
+		assertEquals(1000L * SAMPLES, mStore.getWatermark());
+	}
+
+	@MediumTest
+	public void testPipelinedStopsAtRejectedSample() throws Exception {
+		Synchronizer sync = startServer(true);
+		sync.setBatchSize(10);
+		sync.setParallelUploads(4);
+		mServer.setRejected(25000L);
+		sync.sync(mStore);
+		// Batches already in flight land, but the watermark stays before it
+		assertEquals(24000L, mStore.getWatermark());
+		assertTrue(mServer.getSampleCount() < SAMPLES - 1);
+		assertEquals(SAMPLES - mServer.getSampleCount(), countUnsynced());
+
+		mServer.setRejected(-1);
+		sync.sync(mStore);
+		assertEquals(SAMPLES, mServer.getSampleCount());
+		assertEquals(0, countUnsynced());
+		assertEquals(1000L * SAMPLES, mStore.getWatermark());
+	}
+
+	@MediumTest
+	public void testResumeAfterInterruption() throws Exception {
+		Synchronizer sync = startServer(true);
+		sync.setBatchSize(10);
+		sync.setParallelUploads(1);
+		// The third batch, samples 21 to 30
+		mServer.setFailingBatch(21000L);
+		try {
+			sync.sync(mStore);
+			fail("Expected the third batch to fail");
+		} catch (SyncException e) {
+			// expected
+		}
+
+		// Restored from a backup while interrupted, behind the pages already
+		// acknowledged
+		getMockContentResolver().insert(AffectSamples.CONTENT_URI,
+				AffectProviderTest.makeSample(0.5, 0.5, "restored", 1500L));
+
+		mServer.setFailingBatch(-1);
+		int before = mServer.getRequestCount("/batch");
+		assertEquals(SAMPLES - 20 + 1, sync.sync(mStore));
+		assertEquals(SAMPLES / 10 - 2 + 1, mServer.getRequestCount("/batch")
+				- before);
+		assertEquals(0, countUnsynced());
+		assertNotNull(mServer.getSample(1500L));
+	}
+
+	@MediumTest
+	public void testBinaryBatches() throws Exception {
+		Synchronizer sync = startServer(true);
+		sync.setBatchSize(10);
+		sync.setParallelUploads(1);
+		assertEquals(SAMPLES, sync.sync(mStore));
+		// The first batch goes as JSON and finds out about the binary format
+		assertTrue(sync.isBinaryAccepted());
+		long binaryBytes = mServer.getBatchBytes();
+		assertEquals(SAMPLES, mServer.getSampleCount());
+		assertEquals(0, countUnsynced());
+
+		mServer.stop();
+		Synchronizer json = startServer(true);
+		json.setBatchSize(10);
+		json.setParallelUploads(1);
+		json.setBinaryAllowed(false);
+		getMockContentResolver().update(AffectSamples.CONTENT_URI,
+				nullSynced(), null, null);
+		assertEquals(SAMPLES, json.sync(mStore));
+		assertTrue(binaryBytes * 3 < mServer.getBatchBytes());
+	}
+
+	@MediumTest
+	public void testBinaryNotOffered() throws Exception {
+		Synchronizer sync = startServer(true);
+		sync.setBatchSize(10);
+		sync.setParallelUploads(4);
+		mServer.setBinaryAccepted(false);
+		assertEquals(SAMPLES, sync.sync(mStore));
+		assertFalse(sync.isBinaryAccepted());
+		assertEquals(SAMPLES, mServer.getSampleCount());
+	}
+
+	@MediumTest
+	public void testBinaryRefused() throws Exception {
+		Synchronizer sync = startServer(true);
+		sync.setBatchSize(10);
+		sync.setParallelUploads(1);
+		assertEquals(SAMPLES, sync.sync(mStore));
+		assertTrue(sync.isBinaryAccepted());
+
+		// Refused batches go again as JSON, in line and pipelined alike
+		int batches = mServer.getRequestCount("/batch");
+		mServer.setBinaryAccepted(false);
+		getMockContentResolver().update(AffectSamples.CONTENT_URI,
+				nullSynced(), null, null);
+		assertEquals(0, sync.sync(mStore));
+		assertEquals(0, countUnsynced());
+		assertFalse(sync.isBinaryAccepted());
+		assertEquals(batches + SAMPLES / 10 + 1, mServer.getRequestCount("/batch"));
+
+		// And the refusal outlasts the server offering the format again
+		mServer.setBinaryAccepted(true);
+		sync.setParallelUploads(4);
+		getMockContentResolver().update(AffectSamples.CONTENT_URI,
+				nullSynced(), null, null);
+		assertEquals(0, sync.sync(mStore));
+		assertEquals(0, countUnsynced());
+		assertFalse(sync.isBinaryAccepted());
+	}
+
+	private static ContentValues nullSynced() {
+		ContentValues values = new ContentValues();
+		values.putNull(AffectSamples.SYNCED_DATE);
+		return values;
+	}
+
+	@MediumTest
+	public void testFallBackToSingleSamples() throws Exception {
+		Synchronizer sync = startServer(false);
+		assertEquals(SAMPLES, sync.sync(mStore));
+		assertFalse(sync.isBatchSupported());
+		// Only the first page tries a batch
+		assertEquals(1, mServer.getRequestCount("/batch"));
+		assertEquals(SAMPLES, mServer.getRequestCount("/Sample/"));
+		assertEquals(SAMPLES, mServer.getSampleCount());
+		assertEquals(0, countUnsynced());
+	}
+}
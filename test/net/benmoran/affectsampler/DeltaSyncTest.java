@@ -0,0 +1,105 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+
+import java.net.URI;
+
+import net.benmoran.affectsampler.SynchronizerTestCase.StubHttpResponse;
+import net.benmoran.affectsampler.datastore.AppEngineClient;
+import net.benmoran.provider.AffectSampleStore;
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+public class DeltaSyncTest extends ProviderTestCase2<AffectProvider> {
+	private SyncStore mStore;
+
+	public DeltaSyncTest() {
+		super(AffectProvider.class, AffectSampleStore.AUTHORITY);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mStore = new SyncStore(getMockContentResolver());
+		getMockContentResolver().bulkInsert(AffectSamples.CONTENT_URI,
+				new ContentValues[] {
+						AffectProviderTest.makeSample(0.1, 0.2, "a", 1000L),
+						AffectProviderTest.makeSample(0.3, 0.4, "b", 2000L),
+						AffectProviderTest.makeSample(0.5, 0.6, "c", 3000L) });
+	}
+
+	private int countUnsynced() {
+		Cursor cursor = getMockContentResolver().query(AffectSamples.CONTENT_URI,
+				new String[] { AffectSamples._ID },
+				AffectSamples.SYNCED_DATE + " IS NULL", null, null);
+		try {
+			return cursor.getCount();
+		} finally {
+			cursor.close();
+		}
+	}
+
+	// One sample per request, which the mocks answer with 201
+	private static Synchronizer newSynchronizer(AppEngineClient client)
+			throws SyncException {
+		Synchronizer sync = new Synchronizer(client);
+		sync.setBatchSize(1);
+		return sync;
+	}
+
+	@MediumTest
+	public void testDeltaSync() throws SyncException {
+		AppEngineClient mockClient = createMock(AppEngineClient.class);
+		expect(mockClient.postJSON((URI) anyObject(), (String) anyObject()))
+				.andReturn(StubHttpResponse.newResponse(201)).times(3);
+		replay(mockClient);
+
+		assertEquals(3, newSynchronizer(mockClient).sync(mStore));
+		verify(mockClient);
+		assertEquals(0, countUnsynced());
+		assertEquals(3000L, mStore.getWatermark());
+
+		// Nothing new: no uploads
+		mockClient = createMock(AppEngineClient.class);
+		replay(mockClient);
+		assertEquals(0, newSynchronizer(mockClient).sync(mStore));
+		verify(mockClient);
+	}
+
+	@MediumTest
+	public void testServerSettlesExistingSamples() throws SyncException {
+		// The server already holds the first two, and says so sample by
+		// sample; its latest is never taken on trust
+		AppEngineClient mockClient = createMock(AppEngineClient.class);
+		expect(mockClient.postJSON((URI) anyObject(), (String) anyObject()))
+				.andReturn(StubHttpResponse.newResponse(302)).times(2)
+				.andReturn(StubHttpResponse.newResponse(201)).once();
+		replay(mockClient);
+
+		assertEquals(1, newSynchronizer(mockClient).sync(mStore));
+		verify(mockClient);
+		assertEquals(0, countUnsynced());
+		assertEquals(3000L, mStore.getWatermark());
+	}
+}
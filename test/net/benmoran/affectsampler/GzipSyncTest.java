@@ -0,0 +1,147 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.util.zip.GZIPInputStream;
+
+import net.benmoran.affectsampler.datastore.AppEngineClientImpl;
+import net.benmoran.affectsampler.datastore.CircuitBreaker;
+import net.benmoran.affectsampler.datastore.GzipCompressingEntity;
+import net.benmoran.affectsampler.datastore.RetryPolicy;
+import net.benmoran.provider.AffectSampleStore;
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONObject;
+
+import android.content.ContentValues;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class GzipSyncTest extends ProviderTestCase2<AffectProvider> {
+	private static final int SAMPLES = 200;
+
+	private SyncStore mStore;
+	private StandInServer mServer;
+	private AppEngineClientImpl mClient;
+	private Synchronizer mSync;
+
+	public GzipSyncTest() {
+		super(AffectProvider.class, AffectSampleStore.AUTHORITY);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mStore = new SyncStore(getMockContentResolver());
+		ContentValues[] values = new ContentValues[SAMPLES];
+		for (int i = 0; i < SAMPLES; i++) {
+			values[i] = AffectProviderTest.makeSample(0.5, 0.5, "s" + i,
+					1000L * (i + 1));
+		}
+		getMockContentResolver().bulkInsert(AffectSamples.CONTENT_URI, values);
+		mServer = new StandInServer(true);
+		mServer.start();
+
+		mClient = new AppEngineClientImpl(null, null, mServer.getUri()) {
+			@Override
+			public boolean isLoggedIn() {
+				return true;
+			}
+		};
+		mClient.setRetryPolicy(new RetryPolicy(1, 0, 0,
+				RetryPolicy.DEFAULT_TIMEOUT_MILLIS));
+		mClient.setCircuitBreaker(new CircuitBreaker());
+		mSync = new Synchronizer(mClient);
+		// The JSON form, all repeated keys, is what gzip is for
+		mSync.setBinaryAllowed(false);
+	}
+
+	protected void tearDown() throws Exception {
+		mServer.stop();
+		super.tearDown();
+	}
+
+	@MediumTest
+	public void testGzippedBatches() throws SyncException {
+		assertFalse(mClient.isGzipAccepted());
+		// Learnt from the answer to a pull, before the first batch
+		mSync.pull(mStore);
+		assertTrue(mClient.isGzipAccepted());
+		assertEquals(SAMPLES, mSync.sync(mStore));
+		assertEquals(SAMPLES, mServer.getSampleCount());
+		assertTrue(mServer.getReceivedBytes() + " bytes for "
+				+ mServer.getBatchBytes(),
+				mServer.getReceivedBytes() * 3 <= mServer.getBatchBytes());
+	}
+
+	@MediumTest
+	public void testPlainWithoutGzip() throws SyncException {
+		mServer.setGzipSupported(false);
+		assertEquals(SAMPLES, mSync.sync(mStore));
+		assertFalse(mClient.isGzipAccepted());
+		assertEquals(mServer.getBatchBytes(), mServer.getReceivedBytes());
+	}
+
+	@MediumTest
+	public void testPlainAfterRefusal() throws SyncException {
+		mSync.pull(mStore);
+		assertTrue(mClient.isGzipAccepted());
+		mServer.setGzipSupported(false);
+		// One at a time, so only the first batch goes gzipped
+		mSync.setParallelUploads(1);
+
+		assertEquals(SAMPLES, mSync.sync(mStore));
+		assertFalse(mClient.isGzipAccepted());
+		assertEquals(SAMPLES, mServer.getSampleCount());
+		// The refused batch went again plain; the rest went plain first time
+		assertEquals(SAMPLES / Synchronizer.DEFAULT_BATCH_SIZE + 1, mServer
+				.getRequestCount("/batch"));
+	}
+
+	@MediumTest
+	public void testGzippedResponses() throws Exception {
+		for (int i = 0; i < SAMPLES; i++) {
+			long created = 1000000L * (i + 1);
+			mServer.addSample(new JSONObject().put(AffectSamples.EMOTION, 0.25)
+					.put(AffectSamples.INTENSITY, 0.75).put(
+							AffectSamples.CREATED_DATE, created).put(
+							AffectSamples.SCHEDULED_DATE, created - 500).put(
+							AffectSamples.COMMENT, "remote"));
+		}
+		mSync.pull(mStore);
+		long gzipped = mServer.getSentBytes();
+
+		// The same pages again, plain
+		mServer.setGzipSupported(false);
+		mStore.setPullCursor(null);
+		mSync.pull(mStore);
+		long plain = mServer.getSentBytes() - gzipped;
+		assertTrue(gzipped + " bytes for " + plain, gzipped * 3 <= plain);
+	}
+
+	@SmallTest
+	public void testEntityContent() throws Exception {
+		GzipCompressingEntity entity = new GzipCompressingEntity(
+				new StringEntity("{\"samples\": []}"));
+		// Read back as a caller other than the connection would
+		String body = EntityUtils.toString(new InputStreamEntity(
+				new GZIPInputStream(entity.getContent()), -1));
+		assertEquals("{\"samples\": []}", body);
+	}
+}
@@ -16,18 +16,34 @@
 
 package net.benmoran.affectsampler;
 
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.benmoran.affectsampler.datastore.AppEngineClientImpl;
+import net.benmoran.affectsampler.datastore.JSONProducer;
 
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.StatusLine;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.message.BasicStatusLine;
 
+/**
+ * A client that answers every request itself, 201 with no body unless told
+ * otherwise, after an optional delay. The asynchronous calls come from
+ * AppEngineClientImpl and run these on its threads, so cancellation and
+ * deadlines can be tried against the delay.
+ */
 public class MockAppEngineClient extends AppEngineClientImpl {
 
+	private final AtomicInteger mRequests = new AtomicInteger();
+	private volatile int mStatus = 201;
+	private volatile String mBody;
+	private volatile long mDelayMillis;
+
 	public MockAppEngineClient() throws SyncException {
 		super(null, null, null);
 	}
@@ -47,7 +63,65 @@ public class MockAppEngineClient extends AppEngineClientImpl {
 
 	}
 
+	/**
+	 * Sets the status and body, or null for none, of every response.
+	 */
+	public void setResponse(int status, String body) {
+		mStatus = status;
+		mBody = body;
+	}
+
+	/**
+	 * Sets how long each request takes to answer.
+	 */
+	public void setDelay(long delayMillis) {
+		mDelayMillis = delayMillis;
+	}
+
+	public int getRequestCount() {
+		return mRequests.get();
+	}
+
+	private HttpResponse respond() throws SyncException {
+		mRequests.incrementAndGet();
+		if (mDelayMillis > 0) {
+			try {
+				Thread.sleep(mDelayMillis);
+			} catch (InterruptedException e) {
+				throw new SyncException(e);
+			}
+		}
+		MockHttpResponse response = MockHttpResponse.newResponse(mStatus);
+		String body = mBody;
+		if (body != null) {
+			try {
+				response.setEntity(new StringEntity(body));
+			} catch (UnsupportedEncodingException e) {
+				throw new SyncException(e);
+			}
+		}
+		return response;
+	}
+
 	public HttpResponse postJSON(URI uri, String body) throws SyncException {
-		return MockHttpResponse.newResponse(201);
-	};
+		return respond();
+	}
+
+	public HttpResponse postJSON(URI uri, JSONProducer producer)
+			throws SyncException {
+		return respond();
+	}
+
+	public HttpResponse postBinary(URI uri, byte[] body, String contentType)
+			throws SyncException {
+		return respond();
+	}
+
+	public HttpResponse get(URI uri, Header[] headers) throws SyncException {
+		return respond();
+	}
+
+	public boolean isLoggedIn() {
+		return true;
+	}
 }
@@ -0,0 +1,212 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import net.benmoran.affectsampler.datastore.AppEngineClientImpl;
+import net.benmoran.affectsampler.datastore.CircuitBreaker;
+import net.benmoran.affectsampler.datastore.RetryPolicy;
+import net.benmoran.provider.AffectSampleStore;
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+import net.benmoran.provider.AffectSampleStore.Outbox;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+public class OutboxSyncTest extends ProviderTestCase2<AffectProvider> {
+	private static final int SAMPLES = 60;
+
+	private SyncStore mStore;
+	private StandInServer mServer;
+
+	public OutboxSyncTest() {
+		super(AffectProvider.class, AffectSampleStore.AUTHORITY);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mStore = new SyncStore(getMockContentResolver());
+		ContentValues[] values = new ContentValues[SAMPLES];
+		for (int i = 0; i < SAMPLES; i++) {
+			values[i] = AffectProviderTest.makeSample(0.5, 0.5, "s" + i,
+					1000L * (i + 1));
+		}
+		getMockContentResolver().bulkInsert(AffectSamples.CONTENT_URI, values);
+	}
+
+	protected void tearDown() throws Exception {
+		if (mServer != null) {
+			mServer.stop();
+		}
+		super.tearDown();
+	}
+
+	private Synchronizer startServer(boolean batchSupported) throws Exception {
+		mServer = new StandInServer(batchSupported);
+		mServer.start();
+		AppEngineClientImpl client = new AppEngineClientImpl(null, null,
+				mServer.getUri()) {
+			@Override
+			public boolean isLoggedIn() {
+				return true;
+			}
+		};
+		client.setRetryPolicy(new RetryPolicy(1, 0, 0,
+				RetryPolicy.DEFAULT_TIMEOUT_MILLIS));
+		client.setCircuitBreaker(new CircuitBreaker());
+		return new Synchronizer(client);
+	}
+
+	private int[] queryOps() {
+		Cursor cursor = mStore.queryOutbox(-1, 1000);
+		try {
+			int[] ops = new int[cursor.getCount()];
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+				ops[cursor.getPosition()] = cursor.getInt(1);
+			}
+			return ops;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private void editComment(long created, String comment) {
+		ContentValues values = new ContentValues();
+		values.put(AffectSamples.COMMENT, comment);
+		getMockContentResolver().update(AffectSamples.CONTENT_URI, values,
+				AffectSamples.CREATED_DATE + "=?",
+				new String[] { Long.toString(created) });
+	}
+
+	private void deleteSample(long created) {
+		getMockContentResolver().delete(AffectSamples.CONTENT_URI,
+				AffectSamples.CREATED_DATE + "=?",
+				new String[] { Long.toString(created) });
+	}
+
+	@MediumTest
+	public void testLogsChanges() {
+		assertEquals(SAMPLES, queryOps().length);
+		editComment(1000L, "edited");
+		deleteSample(2000L);
+		// Neither bookkeeping nor samples from the server are logged
+		mStore.markSynced(new long[] { 3 }, 1);
+		mStore.setRemoteIds(new long[] { 3 }, new long[] { 7 }, 1);
+		mStore.mergePulled(new ContentValues[] { AffectProviderTest.makeSample(
+				0.5, 0.5, "remote", 1000L * (SAMPLES + 1)) });
+
+		int[] ops = queryOps();
+		assertEquals(SAMPLES + 2, ops.length);
+		assertEquals(Outbox.OP_INSERT, ops[0]);
+		assertEquals(Outbox.OP_UPDATE, ops[SAMPLES]);
+		assertEquals(Outbox.OP_DELETE, ops[SAMPLES + 1]);
+	}
+
+	@MediumTest
+	public void testSyncsEditsAndDeletions() throws Exception {
+		Synchronizer sync = startServer(true);
+		assertEquals(SAMPLES, sync.sync(mStore));
+		// The uploads settle the inserts without sending them again
+		assertFalse(mStore.hasOutbox());
+		int batches = mServer.getRequestCount("/batch");
+
+		editComment(1000L, "edited");
+		editComment(1000L, "edited again");
+		deleteSample(2000L);
+		assertTrue(mStore.hasOutbox());
+		assertEquals(0, sync.sync(mStore));
+		assertFalse(mStore.hasOutbox());
+		// Both edits go as one update, with the deletion
+		assertEquals(batches + 1, mServer.getRequestCount("/batch"));
+		assertEquals("edited again", mServer.getSample(1000L).getString(
+				AffectSamples.COMMENT));
+		assertNull(mServer.getSample(2000L));
+		assertEquals(SAMPLES - 1, mServer.getSampleCount());
+	}
+
+	@MediumTest
+	public void testChangesFollowRemoteIds() throws Exception {
+		Synchronizer sync = startServer(true);
+		assertEquals(SAMPLES, sync.sync(mStore));
+		Cursor cursor = getMockContentResolver().query(
+				AffectSamples.CONTENT_URI, new String[] { AffectSamples._ID },
+				AffectSamples.REMOTE_ID + " IS NULL", null, null);
+		try {
+			assertEquals(0, cursor.getCount());
+		} finally {
+			cursor.close();
+		}
+
+		// The server finds the sample by its id, not the created date it had
+		ContentValues values = new ContentValues();
+		values.put(AffectSamples.CREATED_DATE, 1500L);
+		values.put(AffectSamples.COMMENT, "moved");
+		getMockContentResolver().update(AffectSamples.CONTENT_URI, values,
+				AffectSamples.CREATED_DATE + "=?", new String[] { "1000" });
+		assertEquals(0, sync.sync(mStore));
+		assertNull(mServer.getSample(1000L));
+		assertEquals("moved", mServer.getSample(1500L).getString(
+				AffectSamples.COMMENT));
+		assertEquals(SAMPLES, mServer.getSampleCount());
+
+		deleteSample(1500L);
+		assertEquals(0, sync.sync(mStore));
+		assertNull(mServer.getSample(1500L));
+		assertEquals(SAMPLES - 1, mServer.getSampleCount());
+	}
+
+	@MediumTest
+	public void testMissingEditsUploadAgain() throws Exception {
+		Synchronizer sync = startServer(true);
+		assertEquals(SAMPLES, sync.sync(mStore));
+		mServer.setUpdatesMissing(true);
+		mServer.removeSamples(1000L, 1001L);
+
+		editComment(1000L, "edited");
+		assertEquals(0, sync.sync(mStore));
+		assertFalse(mStore.hasOutbox());
+		// Not lost with the outbox entry: the sample goes up again whole
+		assertTrue(mStore.hasUnsynced());
+		assertEquals(1, sync.sync(mStore));
+		assertEquals("edited", mServer.getSample(1000L).getString(
+				AffectSamples.COMMENT));
+		assertEquals(SAMPLES, mServer.getSampleCount());
+	}
+
+	@MediumTest
+	public void testEditsBeforeUploadGoAsInserts() throws Exception {
+		editComment(1000L, "edited");
+		deleteSample(2000L);
+		Synchronizer sync = startServer(true);
+		assertEquals(SAMPLES - 1, sync.sync(mStore));
+		assertFalse(mStore.hasOutbox());
+		assertEquals("edited", mServer.getSample(1000L).getString(
+				AffectSamples.COMMENT));
+		assertEquals(SAMPLES - 1, mServer.getSampleCount());
+	}
+
+	@MediumTest
+	public void testKeptWithoutBatches() throws Exception {
+		Synchronizer sync = startServer(false);
+		assertEquals(SAMPLES, sync.sync(mStore));
+		editComment(1000L, "edited");
+		assertEquals(0, sync.sync(mStore));
+		assertEquals(1, queryOps().length);
+		assertEquals("s0", mServer.getSample(1000L).getString(
+				AffectSamples.COMMENT));
+	}
+}
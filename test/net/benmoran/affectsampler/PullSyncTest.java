@@ -0,0 +1,162 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import net.benmoran.affectsampler.datastore.AppEngineClientImpl;
+import net.benmoran.affectsampler.datastore.CircuitBreaker;
+import net.benmoran.affectsampler.datastore.RetryPolicy;
+import net.benmoran.provider.AffectSampleStore;
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+public class PullSyncTest extends ProviderTestCase2<AffectProvider> {
+	// More than a page, uploaded by another device
+	private static final int REMOTE = Synchronizer.PULL_PAGE_SIZE + 50;
+
+	private SyncStore mStore;
+	private StandInServer mServer;
+	private Synchronizer mSync;
+
+	public PullSyncTest() {
+		super(AffectProvider.class, AffectSampleStore.AUTHORITY);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mStore = new SyncStore(getMockContentResolver());
+		mServer = new StandInServer(true);
+		for (int i = 0; i < REMOTE; i++) {
+			mServer.addSample(makeRemote(1000L * (i + 1)));
+		}
+		// One sample this device already holds, and one only it holds
+		getMockContentResolver().bulkInsert(AffectSamples.CONTENT_URI,
+				new ContentValues[] {
+						AffectProviderTest.makeSample(0.5, 0.5, "both", 2000L),
+						AffectProviderTest.makeSample(0.5, 0.5, "mine", 2500L) });
+		mServer.start();
+
+		AppEngineClientImpl client = new AppEngineClientImpl(null, null,
+				mServer.getUri()) {
+			@Override
+			public boolean isLoggedIn() {
+				return true;
+			}
+		};
+		client.setRetryPolicy(new RetryPolicy(1, 0, 0,
+				RetryPolicy.DEFAULT_TIMEOUT_MILLIS));
+		client.setCircuitBreaker(new CircuitBreaker());
+		mSync = new Synchronizer(client);
+	}
+
+	protected void tearDown() throws Exception {
+		mServer.stop();
+		super.tearDown();
+	}
+
+	private static JSONObject makeRemote(long created) throws JSONException {
+		return new JSONObject().put(AffectSamples.EMOTION, 0.25).put(
+				AffectSamples.INTENSITY, 0.75).put(AffectSamples.CREATED_DATE,
+				created).put(AffectSamples.SCHEDULED_DATE, created - 500).put(
+				AffectSamples.COMMENT, "remote");
+	}
+
+	private int count(String selection) {
+		Cursor cursor = getMockContentResolver().query(AffectSamples.CONTENT_URI,
+				new String[] { AffectSamples._ID }, selection, null, null);
+		try {
+			return cursor.getCount();
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@MediumTest
+	public void testPullsInPages() throws SyncException {
+		assertEquals(REMOTE - 1, mSync.pull(mStore));
+		assertEquals(2, mServer.getRequestCount("/samples"));
+		assertEquals(REMOTE + 1, count(null));
+		// The stand-in's cursor is the count of samples it has received
+		assertEquals(Integer.toString(REMOTE), mStore.getPullCursor());
+
+		// Pulled samples don't go back up; the local ones are left alone
+		assertEquals(1, count(AffectSamples.SYNCED_DATE + " IS NULL"));
+		assertEquals(1, count(AffectSamples.COMMENT + "='both'"));
+		Cursor cursor = getMockContentResolver().query(AffectSamples.CONTENT_URI,
+				new String[] { AffectSamples.SCHEDULED_DATE,
+						AffectSamples.INTENSITY }, AffectSamples.CREATED_DATE
+						+ "=3000", null, null);
+		try {
+			cursor.moveToFirst();
+			assertEquals(2500L, cursor.getLong(0));
+			assertEquals(0.75, cursor.getDouble(1), 1e-9);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@MediumTest
+	public void testPullsLateUploads() throws Exception {
+		assertEquals(REMOTE - 1, mSync.pull(mStore));
+
+		// Uploaded late by a device that was offline, older than everything
+		// pulled so far
+		mServer.addSample(makeRemote(500L));
+		assertEquals(1, mSync.pull(mStore));
+		assertEquals(1, count(AffectSamples.CREATED_DATE + "=500"));
+		assertEquals(0, mSync.pull(mStore));
+	}
+
+	@MediumTest
+	public void testUnchangedPullIsNotModified() throws Exception {
+		mSync.pull(mStore);
+		// Finds nothing new, and keeps the ETag of saying so
+		assertEquals(0, mSync.pull(mStore));
+		assertNotNull(mStore.getPullETag());
+		assertEquals(0, mServer.getNotModifiedCount());
+
+		int before = mServer.getRequestCount("/samples");
+		assertEquals(0, mSync.pull(mStore));
+		assertEquals(before + 1, mServer.getRequestCount("/samples"));
+		assertEquals(1, mServer.getNotModifiedCount());
+
+		// Something new spoils the ETag
+		mServer.addSample(makeRemote(1000L * (REMOTE + 1)));
+		assertEquals(1, mSync.pull(mStore));
+		assertEquals(1, mServer.getNotModifiedCount());
+		assertNull(mStore.getPullETag());
+	}
+
+	@MediumTest
+	public void testEmptyPageWithMoreStops() throws SyncException {
+		MockAppEngineClient client = new MockAppEngineClient();
+		client.setResponse(200, "{\"samples\": [], \"more\": true}");
+		try {
+			new Synchronizer(client).pull(mStore);
+			fail("Expected an empty page promising more to stop the pull");
+		} catch (SyncException e) {
+			// expected
+		}
+		assertEquals(1, client.getRequestCount());
+		assertNull(mStore.getPullETag());
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+
+import android.content.ContentValues;
+import android.content.Intent;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class QuickCaptureWidgetTest extends AndroidTestCase {
+	private static final long NOW = 1256423837200L;
+
+	@SmallTest
+	public void testCarriesPrompt() {
+		Intent intent = QuickCaptureWidget.makeIntent(getContext(), 1, 2,
+				NOW - 20000);
+		ContentValues values = QuickCaptureWidget.toSample(intent, NOW)
+				.toContentValues();
+		assertEquals(QuickCaptureWidget.EMOTIONS[2], values
+				.getAsDouble(AffectSamples.EMOTION).doubleValue());
+		assertEquals(QuickCaptureWidget.INTENSITIES[1], values.getAsDouble(
+				AffectSamples.INTENSITY).doubleValue());
+		assertEquals(NOW - 20000, values.getAsLong(AffectSamples.SCHEDULED_DATE)
+				.longValue());
+		assertEquals(NOW, values.getAsLong(AffectSamples.CREATED_DATE)
+				.longValue());
+	}
+
+	@SmallTest
+	public void testUnprompted() {
+		Intent intent = QuickCaptureWidget.makeIntent(getContext(), 0, 0, -1);
+		ContentValues values = QuickCaptureWidget.toSample(intent, NOW)
+				.toContentValues();
+		assertFalse(values.containsKey(AffectSamples.SCHEDULED_DATE));
+		// The buttons' intents must differ for each to keep its own extras
+		assertFalse(intent.filterEquals(QuickCaptureWidget.makeIntent(
+				getContext(), 0, 1, -1)));
+	}
+}
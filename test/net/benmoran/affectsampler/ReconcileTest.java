@@ -0,0 +1,165 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.util.List;
+
+import net.benmoran.affectsampler.datastore.AppEngineClientImpl;
+import net.benmoran.affectsampler.datastore.CircuitBreaker;
+import net.benmoran.affectsampler.datastore.RetryPolicy;
+import net.benmoran.provider.AffectSampleStore;
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class ReconcileTest extends ProviderTestCase2<AffectProvider> {
+	// Midnight UTC, 25th October 2009
+	private static final long BASE = 1256428800000L;
+	private static final long INTERVAL = 20 * 60 * 1000L;
+	private static final int SAMPLES = 3 * 24 * 3;
+
+	private SyncStore mStore;
+	private StandInServer mServer;
+	private Synchronizer mSync;
+
+	public ReconcileTest() {
+		super(AffectProvider.class, AffectSampleStore.AUTHORITY);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mStore = new SyncStore(getMockContentResolver());
+		// Three an hour for three days, all on the server too, as if the app
+		// had been reinstalled with its samples restored
+		mServer = new StandInServer(true);
+		ContentValues[] values = new ContentValues[SAMPLES];
+		for (int i = 0; i < SAMPLES; i++) {
+			long created = BASE + i * INTERVAL;
+			values[i] = AffectProviderTest.makeSample(0.5, 0.5, "s" + i, created);
+			mServer.addSample(new JSONObject().put("created", created));
+		}
+		getMockContentResolver().bulkInsert(AffectSamples.CONTENT_URI, values);
+		mServer.start();
+
+		AppEngineClientImpl client = new AppEngineClientImpl(null, null,
+				mServer.getUri()) {
+			@Override
+			public boolean isLoggedIn() {
+				return true;
+			}
+		};
+		client.setRetryPolicy(new RetryPolicy(1, 0, 0,
+				RetryPolicy.DEFAULT_TIMEOUT_MILLIS));
+		client.setCircuitBreaker(new CircuitBreaker());
+		mSync = new Synchronizer(client);
+	}
+
+	protected void tearDown() throws Exception {
+		mServer.stop();
+		super.tearDown();
+	}
+
+	private int countUnsynced() {
+		Cursor cursor = getMockContentResolver().query(AffectSamples.CONTENT_URI,
+				new String[] { AffectSamples._ID },
+				AffectSamples.SYNCED_DATE + " IS NULL", null, null);
+		try {
+			return cursor.getCount();
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@MediumTest
+	public void testNothingMissing() throws SyncException {
+		assertEquals(0, mSync.reconcile(mStore));
+		assertEquals(0, mServer.getPostedCount());
+		// The days all match, so no hours are asked for
+		assertEquals(1, mServer.getRequestCount("/digest"));
+		assertEquals(0, countUnsynced());
+		assertEquals(BASE + (SAMPLES - 1) * INTERVAL, mStore.getWatermark());
+	}
+
+	@MediumTest
+	public void testSendsOnlyMissingRanges() throws SyncException {
+		// The server lost an hour of the second day, and one sample of the
+		// third
+		long hour = BASE + SampleDigest.DAY_MILLIS + 5 * SampleDigest.HOUR_MILLIS;
+		mServer.removeSamples(hour, hour + SampleDigest.HOUR_MILLIS);
+		long lost = BASE + 2 * SampleDigest.DAY_MILLIS + 10 * INTERVAL;
+		mServer.removeSamples(lost, lost + 1);
+		assertEquals(SAMPLES - 4, mServer.getSampleCount());
+
+		assertEquals(4, mSync.reconcile(mStore));
+		assertEquals(SAMPLES, mServer.getSampleCount());
+		// Just the two hours that differ go again
+		assertEquals(3 + 3, mServer.getPostedCount());
+		assertEquals(1 + 2, mServer.getRequestCount("/digest"));
+		assertEquals(0, countUnsynced());
+	}
+
+	@SmallTest
+	public void testDigest() throws JSONException {
+		// Matches sample_hash in server/main.py
+		assertEquals(48272L, SampleDigest.hash(1));
+		assertEquals("3ad56047", Long.toHexString(SampleDigest
+				.hash(1256423837200L)));
+
+		SampleDigest ours = digestOf(new long[] { 10, 20, 3600010, 7200000 },
+				SampleDigest.HOUR_MILLIS);
+		SampleDigest theirs = SampleDigest.fromJSON(ours.toJSON());
+		assertTrue(ours.differingFrom(theirs).isEmpty());
+
+		theirs = digestOf(new long[] { 10, 3600010, 7200000 },
+				SampleDigest.HOUR_MILLIS);
+		List<Long> differing = ours.differingFrom(theirs);
+		assertEquals(1, differing.size());
+		assertEquals(0L, differing.get(0).longValue());
+	}
+
+	@MediumTest
+	public void testProviderDigest() {
+		// Counted and hashed in SQL, as SampleDigest would have it
+		long[] created = new long[SAMPLES];
+		for (int i = 0; i < SAMPLES; i++) {
+			created[i] = BASE + i * INTERVAL;
+		}
+		long to = BASE + 3 * SampleDigest.DAY_MILLIS;
+		for (long span : new long[] { SampleDigest.HOUR_MILLIS,
+				SampleDigest.DAY_MILLIS }) {
+			SampleDigest expected = digestOf(created, span);
+			SampleDigest queried = mStore.queryDigest(BASE, to, span);
+			assertTrue(expected.differingFrom(queried).isEmpty());
+			assertTrue(queried.differingFrom(expected).isEmpty());
+		}
+		assertEquals(BASE + (SAMPLES - 1) * INTERVAL, mStore.queryLastCreated());
+	}
+
+	private static SampleDigest digestOf(long[] created, long span) {
+		SampleDigest digest = new SampleDigest(span);
+		for (long date : created) {
+			digest.add(date);
+		}
+		return digest;
+	}
+}
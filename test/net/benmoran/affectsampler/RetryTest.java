@@ -0,0 +1,161 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.net.URI;
+
+import net.benmoran.affectsampler.datastore.AppEngineClientImpl;
+import net.benmoran.affectsampler.datastore.CircuitBreaker;
+import net.benmoran.affectsampler.datastore.ClientResult;
+import net.benmoran.affectsampler.datastore.RetryPolicy;
+
+import org.apache.http.HttpResponse;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class RetryTest extends AndroidTestCase {
+	private static final URI LATEST = URI.create("/latest");
+
+	private StandInServer mServer;
+	private AppEngineClientImpl mClient;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mServer = new StandInServer(true);
+		mServer.start();
+		mClient = new AppEngineClientImpl(null, null, mServer.getUri()) {
+			@Override
+			public boolean isLoggedIn() {
+				return true;
+			}
+		};
+		mClient.setRetryPolicy(new RetryPolicy(3, 1, 10, 5000));
+		mClient.setCircuitBreaker(new CircuitBreaker(5, 60 * 1000));
+	}
+
+	protected void tearDown() throws Exception {
+		mServer.stop();
+		super.tearDown();
+	}
+
+	private int getStatus() throws SyncException {
+		HttpResponse response = mClient.get(LATEST);
+		ClientResult.consume(response);
+		return response.getStatusLine().getStatusCode();
+	}
+
+	@MediumTest
+	public void testRetriesServerErrors() throws SyncException {
+		mServer.failRequests(2, 503, "0");
+		assertEquals(200, getStatus());
+		assertEquals(3, mClient.getAttempts());
+		assertEquals(2, mClient.getRetries());
+		assertEquals(3, mServer.getRequestCount("/latest"));
+	}
+
+	@MediumTest
+	public void testGivesUpAfterMaxAttempts() throws SyncException {
+		mServer.failRequests(10, 500, null);
+		assertEquals(500, getStatus());
+		assertEquals(3, mServer.getRequestCount("/latest"));
+	}
+
+	@MediumTest
+	public void testClientErrorsNotRetried() throws SyncException {
+		mServer.failRequests(1, 403, null);
+		assertEquals(403, getStatus());
+		assertEquals(0, mClient.getRetries());
+	}
+
+	@MediumTest
+	public void testCircuitBreakerOpens() throws SyncException {
+		mClient.setCircuitBreaker(new CircuitBreaker(3, 60 * 1000));
+		mServer.failRequests(10, 500, null);
+		assertEquals(500, getStatus());
+		try {
+			getStatus();
+			fail("Expected the open breaker to refuse the request");
+		} catch (SyncException e) {
+			// expected
+		}
+		// Nothing more reached the server
+		assertEquals(3, mServer.getRequestCount("/latest"));
+	}
+
+	@MediumTest
+	public void testBreakerPerHost() throws SyncException {
+		// The same stand-in under two host names, each with its own breaker
+		AppEngineClientImpl failing = new AppEngineClientImpl(null, null,
+				mServer.getUri().replace("127.0.0.1", "localhost")) {
+			@Override
+			public boolean isLoggedIn() {
+				return true;
+			}
+		};
+		AppEngineClientImpl other = new AppEngineClientImpl(null, null,
+				mServer.getUri()) {
+			@Override
+			public boolean isLoggedIn() {
+				return true;
+			}
+		};
+		failing.setRetryPolicy(new RetryPolicy(1, 0, 0, 5000));
+		mServer.failRequests(CircuitBreaker.DEFAULT_THRESHOLD, 500, null);
+		for (int i = 0; i < CircuitBreaker.DEFAULT_THRESHOLD; i++) {
+			ClientResult.consume(failing.get(LATEST));
+		}
+		try {
+			failing.get(LATEST);
+			fail("Expected the failing host's breaker to be open");
+		} catch (SyncException e) {
+			// expected
+		}
+		HttpResponse response = other.get(LATEST);
+		ClientResult.consume(response);
+		assertEquals(200, response.getStatusLine().getStatusCode());
+	}
+
+	@SmallTest
+	public void testTrialReleased() {
+		CircuitBreaker breaker = new CircuitBreaker(1, 0);
+		breaker.recordFailure();
+		assertTrue(breaker.allowRequest());
+		// Only the one trial while half open
+		assertFalse(breaker.allowRequest());
+		// A cancelled trial lets another through, and leaves the breaker open
+		breaker.releaseTrial();
+		assertTrue(breaker.isOpen());
+		assertTrue(breaker.allowRequest());
+	}
+
+	@SmallTest
+	public void testDelays() {
+		RetryPolicy policy = new RetryPolicy(5, 100, 1000, 5000);
+		// Retry-After is honoured, up to the longest delay
+		assertEquals(1000, policy.getDelayMillis(1, "2"));
+		assertEquals(0, policy.getDelayMillis(1, "0"));
+		for (int i = 0; i < 20; i++) {
+			long delay = policy.getDelayMillis(3, null);
+			assertTrue(delay >= 0 && delay <= 400);
+			assertTrue(policy.getDelayMillis(10, "soon") <= 1000);
+		}
+		assertTrue(policy.isRetryable(503));
+		assertFalse(policy.isRetryable(501));
+		assertFalse(policy.isRetryable(404));
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import net.benmoran.provider.AffectSampleStore;
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+public class SampleBinaryTest extends ProviderTestCase2<AffectProvider> {
+
+	private static final String AWKWARD = "caf\u00e9 \ud83d\ude00 \u2028 \"x\"";
+	private static final double STEP = 1.0 / SampleBinaryWriter.QUANTUM;
+
+	public SampleBinaryTest() {
+		super(AffectProvider.class, AffectSampleStore.AUTHORITY);
+	}
+
+	private Cursor querySamples() {
+		return getMockContentResolver().query(AffectSamples.CONTENT_URI,
+				AffectSerializer.PROJECTION, null, null,
+				AffectSamples.CREATED_DATE + " ASC");
+	}
+
+	@MediumTest
+	public void testRoundTrip() throws IOException, JSONException {
+		ContentValues scheduled = AffectProviderTest.makeSample(0.3177999854,
+				0.3898000121, AWKWARD, 1256423837200L);
+		scheduled.put(AffectSamples.SCHEDULED_DATE, 1256423830000L);
+		getMockContentResolver().bulkInsert(AffectSamples.CONTENT_URI,
+				new ContentValues[] {
+						AffectProviderTest.makeSample(0.25, 0.75, null, 1000L),
+						scheduled,
+						AffectProviderTest.makeSample(-0.1, 0.0, "", 1256423837201L) });
+
+		Cursor cursor = querySamples();
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			assertEquals(3, new SampleBinaryWriter().write(cursor, out));
+			JSONArray read = SampleBinaryReader.read(new ByteArrayInputStream(out
+					.toByteArray()));
+			assertEquals(3, read.length());
+
+			int i = 0;
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+				JSONObject expected = AffectSerializer.toJSONObject(cursor);
+				JSONObject actual = read.getJSONObject(i++);
+				assertEquals(expected.getLong(AffectSamples.CREATED_DATE), actual
+						.getLong(AffectSamples.CREATED_DATE));
+				assertEquals(expected.optLong(AffectSamples.SCHEDULED_DATE), actual
+						.optLong(AffectSamples.SCHEDULED_DATE));
+				assertEquals(expected.getDouble(AffectSamples.EMOTION), actual
+						.getDouble(AffectSamples.EMOTION), STEP / 2);
+				assertEquals(expected.getDouble(AffectSamples.INTENSITY), actual
+						.getDouble(AffectSamples.INTENSITY), STEP / 2);
+				if (expected.has(AffectSamples.COMMENT)) {
+					assertEquals(expected.getString(AffectSamples.COMMENT), actual
+							.getString(AffectSamples.COMMENT));
+				} else {
+					assertTrue(actual.isNull(AffectSamples.COMMENT));
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@MediumTest
+	public void testSmallerThanJSON() throws IOException {
+		// A few samples a day, as the scheduler takes them
+		ContentValues[] values = new ContentValues[100];
+		long created = 1256423837200L;
+		for (int i = 0; i < values.length; i++) {
+			created += 3 * 60 * 60 * 1000L + i * 7919;
+			values[i] = AffectProviderTest.makeSample(Math.random(), Math
+					.random(), "", created);
+			values[i].put(AffectSamples.SCHEDULED_DATE, created - 20000 - i);
+		}
+		getMockContentResolver().bulkInsert(AffectSamples.CONTENT_URI, values);
+
+		Cursor cursor = querySamples();
+		try {
+			ByteArrayOutputStream binary = new ByteArrayOutputStream();
+			new SampleBinaryWriter().write(cursor, binary);
+			StringWriter json = new StringWriter();
+			new SampleJSONWriter().writeArray(cursor, json);
+			assertTrue(binary.size() + " bytes against " + json.toString().length(),
+					binary.size() * 5 <= json.toString().length());
+		} finally {
+			cursor.close();
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import net.benmoran.affectsampler.datastore.JSONEntity;
+import net.benmoran.provider.AffectSampleStore;
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+public class SampleJSONWriterTest extends ProviderTestCase2<AffectProvider> {
+
+	private static final String AWKWARD = "say \"hi\"\n\t</b> \\ \u0001";
+
+	public SampleJSONWriterTest() {
+		super(AffectProvider.class, AffectSampleStore.AUTHORITY);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		ContentValues scheduled = AffectProviderTest.makeSample(0.5, 1.0,
+				AWKWARD, 2000L);
+		scheduled.put(AffectSamples.SCHEDULED_DATE, 1500L);
+		getMockContentResolver().bulkInsert(AffectSamples.CONTENT_URI,
+				new ContentValues[] {
+						AffectProviderTest.makeSample(0.25, 0.75, null, 1000L),
+						scheduled,
+						AffectProviderTest.makeSample(-0.1, 0.0, "last", 3000L) });
+	}
+
+	@MediumTest
+	public void testWritesEveryRow() throws IOException, JSONException {
+		StringWriter out = new StringWriter();
+		int count = new AffectSerializer(getMockContentResolver()).writeJSON(out);
+		assertEquals(3, count);
+
+		JSONArray samples = new JSONArray(out.toString());
+		assertEquals(3, samples.length());
+		JSONObject first = samples.getJSONObject(0);
+		assertEquals(0.25, first.getDouble(AffectSamples.EMOTION), 1e-9);
+		assertTrue(first.isNull(AffectSamples.SCHEDULED_DATE));
+		JSONObject second = samples.getJSONObject(1);
+		assertEquals(AWKWARD, second.getString(AffectSamples.COMMENT));
+		assertEquals(1500L, second.getLong(AffectSamples.SCHEDULED_DATE));
+		assertEquals(1.0, second.getDouble(AffectSamples.INTENSITY), 1e-9);
+		assertEquals("last", samples.getJSONObject(2).getString(
+				AffectSamples.COMMENT));
+		assertEquals(3000L, samples.getJSONObject(2).getLong(
+				AffectSamples.CREATED_DATE));
+	}
+
+	@MediumTest
+	public void testMatchesJSONObject() throws IOException, JSONException {
+		Cursor cursor = getMockContentResolver().query(AffectSamples.CONTENT_URI,
+				AffectSerializer.PROJECTION, null, null,
+				AffectSamples.CREATED_DATE + " ASC");
+		try {
+			SampleJSONWriter writer = new SampleJSONWriter();
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+				StringWriter out = new StringWriter();
+				writer.writeObject(cursor, out);
+				JSONObject streamed = new JSONObject(out.toString());
+				JSONObject built = AffectSerializer.toJSONObject(cursor);
+				// JSONObject drops null values; the stream writes them out
+				if (built.has(AffectSamples.COMMENT)) {
+					assertEquals(built.getString(AffectSamples.COMMENT),
+							streamed.getString(AffectSamples.COMMENT));
+				} else {
+					assertTrue(streamed.isNull(AffectSamples.COMMENT));
+				}
+				assertEquals(built.getLong(AffectSamples.CREATED_DATE), streamed
+						.getLong(AffectSamples.CREATED_DATE));
+				assertEquals(built.getDouble(AffectSamples.EMOTION), streamed
+						.getDouble(AffectSamples.EMOTION), 1e-9);
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@MediumTest
+	public void testStreamingEntity() throws IOException, JSONException {
+		Cursor cursor = getMockContentResolver().query(AffectSamples.CONTENT_URI,
+				AffectSerializer.PROJECTION, null, null,
+				AffectSamples.CREATED_DATE + " ASC");
+		try {
+			JSONEntity entity = new JSONEntity(new CursorJSONProducer(cursor,
+					new SampleJSONWriter()));
+			assertTrue(entity.isChunked());
+			assertEquals(-1, entity.getContentLength());
+
+			// Written twice, as a retried request would be
+			for (int i = 0; i < 2; i++) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				entity.writeTo(out);
+				JSONArray samples = new JSONArray(out.toString("UTF-8"));
+				assertEquals(3, samples.length());
+				assertEquals(AWKWARD, samples.getJSONObject(1).getString(
+						AffectSamples.COMMENT));
+			}
+			// And read back, as EntityUtils would
+			assertEquals(3, new JSONArray(EntityUtils.toString(entity)).length());
+		} finally {
+			cursor.close();
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.util.concurrent.CountDownLatch;
+
+import net.benmoran.provider.AffectSampleStore;
+import net.benmoran.provider.AffectSampleStore.AffectSamples;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+public class SampleWriterTest extends ProviderTestCase2<AffectProvider> {
+
+	public SampleWriterTest() {
+		super(AffectProvider.class, AffectSampleStore.AUTHORITY);
+	}
+
+	/**
+	 * Counts reschedules instead of setting alarms, holding up the first
+	 * until let go.
+	 */
+	private static class CountingWriter extends SampleWriter {
+		final CountDownLatch mStarted = new CountDownLatch(1);
+		final CountDownLatch mRelease = new CountDownLatch(1);
+		volatile int mReschedules;
+
+		CountingWriter(ProviderTestCase2<AffectProvider> test) {
+			super(test.getContext(), test.getMockContentResolver());
+		}
+
+		@Override
+		protected void scheduleNextSample() {
+			if (mReschedules++ == 0) {
+				mStarted.countDown();
+				try {
+					mRelease.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	private static SampleWriter.Sample makeSample(long created) {
+		return new SampleWriter.Sample(0.25, 0.75, "c" + created, 0, created);
+	}
+
+	@MediumTest
+	public void testBatchesWhileBusy() throws InterruptedException {
+		CountingWriter writer = new CountingWriter(this);
+		writer.save(makeSample(1000L));
+		writer.mStarted.await();
+		// These wait for the first write, then go in one more
+		writer.save(makeSample(2000L));
+		writer.reschedule();
+		writer.save(makeSample(3000L));
+		writer.mRelease.countDown();
+		writer.waitUntilWritten();
+
+		assertEquals(2, writer.mReschedules);
+		Cursor cursor = getMockContentResolver().query(AffectSamples.CONTENT_URI,
+				new String[] { AffectSamples.CREATED_DATE, AffectSamples.COMMENT,
+						AffectSamples.SCHEDULED_DATE }, null, null,
+				AffectSamples.CREATED_DATE + " ASC");
+		try {
+			assertEquals(3, cursor.getCount());
+			cursor.moveToLast();
+			// Created when taken, not when written
+			assertEquals(3000L, cursor.getLong(0));
+			assertEquals("c3000", cursor.getString(1));
+			assertTrue(cursor.isNull(2));
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@MediumTest
+	public void testSaveNow() {
+		CountingWriter writer = new CountingWriter(this);
+		writer.mRelease.countDown();
+		writer.saveNow(makeSample(1000L));
+		// Already in, without waiting on the writer's thread
+		assertEquals(1, writer.mReschedules);
+		Cursor cursor = getMockContentResolver().query(AffectSamples.CONTENT_URI,
+				new String[] { AffectSamples.COMMENT }, null, null, null);
+		try {
+			assertEquals(1, cursor.getCount());
+			cursor.moveToFirst();
+			assertEquals("c1000", cursor.getString(0));
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@MediumTest
+	public void testFailedWriteKept() throws InterruptedException {
+		final boolean[] fail = { true };
+		SampleWriter writer = new SampleWriter(getContext(),
+				getMockContentResolver()) {
+			@Override
+			protected void insert(ContentValues[] values) {
+				if (fail[0]) {
+					fail[0] = false;
+					throw new SQLException("disk full");
+				}
+				super.insert(values);
+			}
+
+			@Override
+			protected void scheduleNextSample() {
+				throw new IllegalStateException("no alarms");
+			}
+		};
+		writer.save(makeSample(1000L));
+		writer.waitUntilWritten();
+		// Still queued, and the writer still running, so it goes with the next
+		writer.save(makeSample(2000L));
+		writer.waitUntilWritten();
+		Cursor cursor = getMockContentResolver().query(AffectSamples.CONTENT_URI,
+				new String[] { AffectSamples.COMMENT }, null, null,
+				AffectSamples.CREATED_DATE + " ASC");
+		try {
+			assertEquals(2, cursor.getCount());
+			cursor.moveToFirst();
+			assertEquals("c1000", cursor.getString(0));
+		} finally {
+			cursor.close();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.text.ParseException;
+
+import net.benmoran.affectsampler.SampleScheduler.PrefsVO;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class SchedulePlanTest extends AndroidTestCase {
+	private PrefsVO mPrefs;
+	private long mFrom;
+	private SchedulePlan mPlan;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mPrefs = TestUtils.makePrefs("01-Jan-09 08:00", "01-Jan-09 22:00", 7);
+		mFrom = time("01-Jan-09 08:53");
+		mPlan = SchedulePlan.build(mPrefs, mFrom);
+	}
+
+	private static long time(String dateStr) throws ParseException {
+		return TestUtils.parseDate(dateStr).getTime();
+	}
+
+	@SmallTest
+	public void testNextSlot() throws ParseException {
+		int slot = mPlan.nextSlotAfter(mFrom);
+		assertEquals(time("01-Jan-09 10:00"), mPlan.getSlotStart(slot));
+		assertEquals(time("01-Jan-09 12:00"), mPlan.getSlotEnd(slot));
+		assertEquals(1, mPlan.getSequenceID(slot));
+
+		// A slot starting at the time asked about is not after it
+		assertEquals(slot + 1, mPlan.nextSlotAfter(time("01-Jan-09 10:00")));
+
+		slot = mPlan.nextSlotAfter(time("01-Jan-09 21:53"));
+		assertEquals(time("02-Jan-09 08:00"), mPlan.getSlotStart(slot));
+		assertEquals(time("02-Jan-09 10:00"), mPlan.getSlotEnd(slot));
+		assertEquals(0, mPlan.getSequenceID(slot));
+	}
+
+	@SmallTest
+	public void testSampleTimes() {
+		long probe = mFrom;
+		for (int i = 0; i < 7 * SchedulePlan.DAYS - 1; i++) {
+			int slot = mPlan.nextSlotAfter(probe);
+			long sample = mPlan.nextSampleAfter(probe);
+			assertTrue(sample >= mPlan.getSlotStart(slot));
+			assertTrue(sample < mPlan.getSlotEnd(slot));
+			// Drawn once, when planned
+			assertEquals(sample, mPlan.nextSampleAfter(probe));
+			probe = sample;
+		}
+	}
+
+	@SmallTest
+	public void testCovers() throws ParseException {
+		assertTrue(mPlan.covers(mFrom));
+		assertTrue(mPlan.covers(time("07-Jan-09 19:00")));
+		assertFalse(mPlan.covers(time("01-Jan-09 08:00")));
+		assertFalse(mPlan.covers(time("07-Jan-09 21:00")));
+		assertEquals(-1, mPlan.nextSampleAfter(time("07-Jan-09 21:00")));
+	}
+
+	@SmallTest
+	public void testNoSamples() {
+		mPrefs.samplesPerDay = 0;
+		SchedulePlan plan = SchedulePlan.build(mPrefs, mFrom);
+		assertTrue(plan.isEmpty());
+		assertTrue(plan.covers(mFrom));
+		assertEquals(-1, plan.nextSlotAfter(mFrom));
+		assertEquals(-1, plan.nextSampleAfter(mFrom));
+	}
+}
@@ -0,0 +1,736 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+import net.benmoran.affectsampler.datastore.GzipCompressingEntity;
+import net.benmoran.affectsampler.datastore.GzipDecompressingEntity;
+
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.impl.DefaultHttpServerConnection;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpRequestHandlerRegistry;
+import org.apache.http.protocol.HttpService;
+import org.apache.http.protocol.ResponseConnControl;
+import org.apache.http.protocol.ResponseContent;
+import org.apache.http.protocol.ResponseDate;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.net.Uri;
+
+/**
+ * An in-process stand-in for the App Engine server, answering /Sample/,
+ * /batch, /latest, /digest and /samples the way server/main.py does. Unless told to require
+ * a session, it needs no login. Samples are kept in memory keyed on their
+ * created date, and numbered in the order they arrive for pulls to page
+ * through; the number is also the sample's id. Like App Engine, it takes gzipped request bodies and gzips
+ * responses for clients that ask, unless told not to.
+ */
+public class StandInServer {
+
+	private final TreeMap<Long, JSONObject> mSamples = new TreeMap<Long, JSONObject>();
+	// The created date of each sample held, by arrival
+	private final TreeMap<Long, Long> mArrivals = new TreeMap<Long, Long>();
+	private long mArrived;
+	private final Map<String, Integer> mRequestCounts = new HashMap<String, Integer>();
+	private final boolean mBatchSupported;
+	private final HttpService mService;
+	private ServerSocket mSocket;
+	private Thread mAcceptThread;
+	private boolean mSessionRequired;
+	private long mFailingBatch = -1;
+	private long mRejected = -1;
+	private boolean mUpdatesMissing;
+	private int mFailures;
+	private int mFailureStatus;
+	private String mFailureRetryAfter;
+	private int mSession;
+	private int mPosted;
+	private int mNotModified;
+	private boolean mBinaryAccepted = true;
+	private long mBatchBytes;
+	private boolean mGzipSupported = true;
+	private long mReceivedBytes;
+	private long mSentBytes;
+
+	/**
+	 * @param batchSupported
+	 *            false to answer /batch with 400, like a server from before
+	 *            the batch endpoint
+	 */
+	public StandInServer(boolean batchSupported) {
+		mBatchSupported = batchSupported;
+
+		BasicHttpProcessor processor = new BasicHttpProcessor();
+		GzipContent gzip = new GzipContent();
+		processor.addInterceptor((HttpRequestInterceptor) gzip);
+		// Ahead of ResponseContent, which takes the length from the entity
+		processor.addInterceptor((HttpResponseInterceptor) gzip);
+		processor.addInterceptor(new ResponseDate());
+		processor.addInterceptor(new ResponseContent());
+		processor.addInterceptor(new ResponseConnControl());
+		HttpRequestHandlerRegistry registry = new HttpRequestHandlerRegistry();
+		registry.register("/Sample/", new SampleHandler());
+		registry.register("/batch", new BatchHandler());
+		registry.register("/latest", new LatestHandler());
+		registry.register("/digest", new DigestHandler());
+		registry.register("/samples", new PullHandler());
+		registry.register("/_ah/login*", new LoginHandler());
+		mService = new HttpService(processor,
+				new DefaultConnectionReuseStrategy(),
+				new DefaultHttpResponseFactory());
+		mService.setHandlerResolver(registry);
+	}
+
+	/**
+	 * Starts listening on an ephemeral loopback port.
+	 */
+	public void start() throws IOException {
+		mSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+		mAcceptThread = new Thread("StandInServer") {
+			@Override
+			public void run() {
+				while (!mSocket.isClosed()) {
+					try {
+						serve(mSocket.accept());
+					} catch (IOException e) {
+						// Closed by stop()
+					}
+				}
+			}
+		};
+		mAcceptThread.setDaemon(true);
+		mAcceptThread.start();
+	}
+
+	public void stop() throws IOException {
+		mSocket.close();
+	}
+
+	/**
+	 * The base URI to hand to an AppEngineClientImpl.
+	 */
+	public String getUri() {
+		return "http://127.0.0.1:" + mSocket.getLocalPort();
+	}
+
+	private void serve(final Socket socket) throws IOException {
+		final DefaultHttpServerConnection conn = new DefaultHttpServerConnection();
+		conn.bind(socket, new BasicHttpParams());
+		Thread thread = new Thread("StandInServer connection") {
+			@Override
+			public void run() {
+				try {
+					while (conn.isOpen()) {
+						mService.handleRequest(conn, new BasicHttpContext());
+					}
+				} catch (ConnectionClosedException e) {
+					// Client went away
+				} catch (IOException e) {
+					// Client went away
+				} catch (HttpException e) {
+					// Malformed request
+				} finally {
+					try {
+						conn.shutdown();
+					} catch (IOException e) {
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Makes requests without a current session cookie redirect to
+	 * /_ah/login, which hands one out for any auth token.
+	 */
+	public synchronized void setSessionRequired(boolean required) {
+		mSessionRequired = required;
+	}
+
+	/**
+	 * Makes /batch fail with a 500 for any batch whose first sample has the
+	 * given created date, however the batches are ordered in flight; -1 for
+	 * none.
+	 */
+	public synchronized void setFailingBatch(long firstCreated) {
+		mFailingBatch = firstCreated;
+	}
+
+	private synchronized boolean isFailingBatch(JSONArray samples)
+			throws JSONException {
+		return samples.length() > 0
+				&& samples.getJSONObject(0).optLong("created") == mFailingBatch;
+	}
+
+	/**
+	 * Makes /batch answer "error" for the sample with the given created
+	 * date, as main.py does for an item it can't store; -1 for none.
+	 */
+	public synchronized void setRejected(long created) {
+		mRejected = created;
+	}
+
+	/**
+	 * Makes /batch answer "missing" to updates of samples it doesn't hold,
+	 * as a server that only changes what it has might, instead of creating
+	 * them as main.py does.
+	 */
+	public synchronized void setUpdatesMissing(boolean missing) {
+		mUpdatesMissing = missing;
+	}
+
+	/**
+	 * Sets whether /batch takes and advertises the binary sample format.
+	 */
+	public synchronized void setBinaryAccepted(boolean accepted) {
+		mBinaryAccepted = accepted;
+	}
+
+	/**
+	 * The total size of the bodies posted to /batch.
+	 */
+	public synchronized long getBatchBytes() {
+		return mBatchBytes;
+	}
+
+	/**
+	 * Sets whether gzipped request bodies are taken, and advertised with
+	 * Accept-Encoding, and whether responses are gzipped for clients that
+	 * ask. Gzipped bodies are otherwise turned away with 415.
+	 */
+	public synchronized void setGzipSupported(boolean supported) {
+		mGzipSupported = supported;
+	}
+
+	/**
+	 * The total size of the request bodies received, as sent, so after any
+	 * compression.
+	 */
+	public synchronized long getReceivedBytes() {
+		return mReceivedBytes;
+	}
+
+	/**
+	 * The total size of the response bodies sent, after any compression.
+	 */
+	public synchronized long getSentBytes() {
+		return mSentBytes;
+	}
+
+	/**
+	 * Invalidates every session cookie handed out so far.
+	 */
+	public synchronized void expireSessions() {
+		mSession++;
+	}
+
+	private synchronized String sessionCookie() {
+		return "ACSID=session" + mSession;
+	}
+
+	/**
+	 * Makes the next count requests to /Sample/, /batch or /latest fail
+	 * with the status, and the Retry-After header if that isn't null.
+	 */
+	public synchronized void failRequests(int count, int status,
+			String retryAfter) {
+		mFailures = count;
+		mFailureStatus = status;
+		mFailureRetryAfter = retryAfter;
+	}
+
+	/**
+	 * Counts the request, then fails it if failures are due, or redirects it
+	 * to log in if it needs a session and lacks one.
+	 * 
+	 * @return true if the request may go ahead
+	 */
+	private boolean admit(String path, HttpRequest request,
+			HttpResponse response) {
+		synchronized (this) {
+			countRequest(path);
+			if (mFailures > 0) {
+				mFailures--;
+				response.setStatusCode(mFailureStatus);
+				if (mFailureRetryAfter != null) {
+					response.setHeader("Retry-After", mFailureRetryAfter);
+				}
+				return false;
+			}
+			if (!mGzipSupported && request.containsHeader("Content-Encoding")) {
+				response.setStatusCode(415);
+				return false;
+			}
+		}
+		return checkSession(request, response);
+	}
+
+	/**
+	 * Redirects the request to log in if it needs a session and lacks one.
+	 * 
+	 * @return true if the request may go ahead
+	 */
+	private boolean checkSession(HttpRequest request, HttpResponse response) {
+		synchronized (this) {
+			if (!mSessionRequired) {
+				return true;
+			}
+		}
+		Header cookie = request.getFirstHeader("Cookie");
+		if (cookie != null && cookie.getValue().indexOf(sessionCookie()) >= 0) {
+			return true;
+		}
+		response.setStatusCode(302);
+		response.setHeader("Location", getUri() + "/_ah/login?continue="
+				+ request.getRequestLine().getUri());
+		return false;
+	}
+
+	/**
+	 * Stores a sample as if it had been posted earlier, unless one with its
+	 * created date is already held.
+	 */
+	public synchronized void addSample(JSONObject sample) throws JSONException {
+		Long created = Long.valueOf(sample.getLong("created"));
+		if (!mSamples.containsKey(created)) {
+			Long id = Long.valueOf(++mArrived);
+			mSamples.put(created, sample.put("id", id.longValue()));
+			mArrivals.put(id, created);
+		}
+	}
+
+	public synchronized int getSampleCount() {
+		return mSamples.size();
+	}
+
+	/**
+	 * The sample held with the given created date, or null.
+	 */
+	public synchronized JSONObject getSample(long created) {
+		return mSamples.get(Long.valueOf(created));
+	}
+
+	/**
+	 * Removes the samples created in [from, to), as if the server had lost
+	 * them.
+	 */
+	public synchronized void removeSamples(long from, long to) {
+		mSamples.subMap(Long.valueOf(from), Long.valueOf(to)).clear();
+		mArrivals.values().retainAll(mSamples.keySet());
+	}
+
+	/**
+	 * How many samples have been posted, singly or in batches, whether or
+	 * not they were already held.
+	 */
+	public synchronized int getPostedCount() {
+		return mPosted;
+	}
+
+	/**
+	 * How many requests have been answered 304 Not Modified.
+	 */
+	public synchronized int getNotModifiedCount() {
+		return mNotModified;
+	}
+
+	/**
+	 * How many requests have been made to the handler for path.
+	 */
+	public synchronized int getRequestCount(String path) {
+		Integer count = mRequestCounts.get(path);
+		return (count != null) ? count.intValue() : 0;
+	}
+
+	private synchronized void countRequest(String path) {
+		mRequestCounts.put(path, getRequestCount(path) + 1);
+	}
+
+	/**
+	 * Stores the sample unless one with its created date is already held.
+	 *
+	 * @return true if it was newly stored
+	 */
+	private synchronized boolean store(JSONObject sample) throws JSONException {
+		Long created = Long.valueOf(sample.getLong("created"));
+		mPosted++;
+		if (mSamples.containsKey(created)) {
+			return false;
+		}
+		addSample(sample);
+		return true;
+	}
+
+	/**
+	 * Applies one /batch item the way main.py's BatchSampleResource does:
+	 * created unless held, or updated or deleted as its op says. The sample
+	 * is found by its id if it has one, and otherwise by its created date.
+	 *
+	 * @return the item's result, with the id of the sample held, if any
+	 */
+	private synchronized JSONObject apply(JSONObject sample)
+			throws JSONException {
+		JSONObject result = new JSONObject().put("created", sample
+				.optLong("created"));
+		if (!sample.has("created") || sample.getLong("created") == mRejected) {
+			return result.put("status", Synchronizer.STATUS_ERROR);
+		}
+		String op = (String) sample.remove("op");
+		Long id = sample.has("id") ? Long.valueOf(sample.getLong("id")) : null;
+		sample.remove("id");
+		Long created = Long.valueOf(sample.getLong("created"));
+		Long held = (id != null) ? mArrivals.get(id) : null;
+		if (held == null && mSamples.containsKey(created)) {
+			held = created;
+			id = Long.valueOf(mSamples.get(created).getLong("id"));
+		}
+		if (held == null
+				&& (Synchronizer.OP_DELETE.equals(op) || (mUpdatesMissing
+						&& Synchronizer.OP_UPDATE.equals(op)))) {
+			return result.put("status", Synchronizer.STATUS_MISSING);
+		}
+		if (Synchronizer.OP_DELETE.equals(op)) {
+			mSamples.remove(held);
+			mArrivals.remove(id);
+			return result.put("status", Synchronizer.STATUS_DELETED);
+		}
+		if (held != null) {
+			if (Synchronizer.OP_UPDATE.equals(op)) {
+				// Moved to its new created date, keeping its id and arrival
+				mSamples.remove(held);
+				mSamples.put(created, sample.put("id", id.longValue()));
+				mArrivals.put(id, created);
+				result.put("status", Synchronizer.STATUS_UPDATED);
+			} else {
+				mPosted++;
+				result.put("status", Synchronizer.STATUS_DUPLICATE);
+			}
+			return result.put("id", id.longValue());
+		}
+		store(sample);
+		return result.put("status", Synchronizer.STATUS_CREATED).put("id",
+				mSamples.get(created).getLong("id"));
+	}
+
+	private synchronized long latest() {
+		long latest = -1;
+		for (Long created : mSamples.keySet()) {
+			latest = created.longValue();
+		}
+		return latest;
+	}
+
+	private static String readBody(HttpRequest request) throws IOException {
+		return EntityUtils.toString(((HttpEntityEnclosingRequest) request)
+				.getEntity());
+	}
+
+	private static void sendJSON(HttpResponse response, int status,
+			String json) throws IOException {
+		response.setStatusCode(status);
+		StringEntity entity = new StringEntity(json);
+		entity.setContentType("application/json");
+		response.setEntity(entity);
+	}
+
+	/**
+	 * Reads each request body whole to count it, gunzipping it for the
+	 * handlers if need be, and gzips response bodies for clients that ask.
+	 */
+	private class GzipContent implements HttpRequestInterceptor,
+			HttpResponseInterceptor {
+		public void process(HttpRequest request, HttpContext context)
+				throws IOException {
+			if (!(request instanceof HttpEntityEnclosingRequest)) {
+				return;
+			}
+			HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+			HttpEntity entity = enclosing.getEntity();
+			if (entity == null) {
+				return;
+			}
+			byte[] body = EntityUtils.toByteArray(entity);
+			ByteArrayEntity received = new ByteArrayEntity(body);
+			received.setContentType(entity.getContentType());
+			received.setContentEncoding(entity.getContentEncoding());
+			synchronized (StandInServer.this) {
+				mReceivedBytes += body.length;
+				if (mGzipSupported && GzipDecompressingEntity.isGzipped(received)) {
+					enclosing.setEntity(new GzipDecompressingEntity(received));
+					return;
+				}
+			}
+			enclosing.setEntity(received);
+		}
+
+		public void process(HttpResponse response, HttpContext context)
+				throws IOException {
+			HttpRequest request = (HttpRequest) context
+					.getAttribute(ExecutionContext.HTTP_REQUEST);
+			boolean supported;
+			synchronized (StandInServer.this) {
+				supported = mGzipSupported;
+			}
+			if (supported) {
+				response.setHeader("Accept-Encoding", GzipCompressingEntity.GZIP);
+			}
+			HttpEntity entity = response.getEntity();
+			if (entity == null) {
+				return;
+			}
+			Header accept = request.getFirstHeader("Accept-Encoding");
+			if (supported && accept != null
+					&& accept.getValue().indexOf(GzipCompressingEntity.GZIP) >= 0) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				GZIPOutputStream gzip = new GZIPOutputStream(out);
+				entity.writeTo(gzip);
+				gzip.close();
+				ByteArrayEntity zipped = new ByteArrayEntity(out.toByteArray());
+				zipped.setContentType(entity.getContentType());
+				zipped.setContentEncoding(GzipCompressingEntity.GZIP);
+				response.setEntity(zipped);
+				entity = zipped;
+			}
+			synchronized (StandInServer.this) {
+				mSentBytes += entity.getContentLength();
+			}
+		}
+	}
+
+	private class SampleHandler implements HttpRequestHandler {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			if (!admit("/Sample/", request, response)) {
+				return;
+			}
+			try {
+				JSONObject sample = new JSONObject(readBody(request));
+				if (store(sample)) {
+					sendJSON(response, 201, sample.toString());
+				} else {
+					// Already held: main.py redirects to the existing sample
+					response.setStatusCode(302);
+					response.setHeader("Location", "/Sample/");
+				}
+			} catch (JSONException e) {
+				response.setStatusCode(400);
+			}
+		}
+	}
+
+	private class BatchHandler implements HttpRequestHandler {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			if (!admit("/batch", request, response)) {
+				return;
+			}
+			if (!mBatchSupported) {
+				// What main.py's CrudRestHandler says about an unknown model
+				response.setStatusCode(400);
+				return;
+			}
+			boolean binaryAccepted;
+			synchronized (StandInServer.this) {
+				binaryAccepted = mBinaryAccepted;
+			}
+			if (binaryAccepted) {
+				response.setHeader("Accept-Post", "application/json, "
+						+ SampleBinaryWriter.CONTENT_TYPE);
+			}
+			try {
+				byte[] body = EntityUtils
+						.toByteArray(((HttpEntityEnclosingRequest) request)
+								.getEntity());
+				synchronized (StandInServer.this) {
+					mBatchBytes += body.length;
+				}
+				Header type = request.getFirstHeader("Content-Type");
+				JSONArray samples;
+				if (type != null
+						&& type.getValue().startsWith(SampleBinaryWriter.CONTENT_TYPE)) {
+					if (!binaryAccepted) {
+						response.setStatusCode(415);
+						return;
+					}
+					try {
+						samples = SampleBinaryReader.read(new ByteArrayInputStream(
+								body));
+					} catch (IOException e) {
+						// Malformed, as main.py says
+						response.setStatusCode(400);
+						return;
+					}
+				} else {
+					samples = new JSONArray(new String(body, "UTF-8"));
+				}
+				if (isFailingBatch(samples)) {
+					response.setStatusCode(500);
+					return;
+				}
+				JSONArray results = new JSONArray();
+				for (int i = 0; i < samples.length(); i++) {
+					results.put(apply(samples.getJSONObject(i)));
+				}
+				sendJSON(response, 200, new JSONObject().put("results", results)
+						.toString());
+			} catch (JSONException e) {
+				response.setStatusCode(400);
+			}
+		}
+	}
+
+	private class LatestHandler implements HttpRequestHandler {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			if (!admit("/latest", request, response)) {
+				return;
+			}
+			long latest = latest();
+			try {
+				JSONObject body = new JSONObject();
+				if (latest != -1) {
+					body.put("created", latest);
+				}
+				sendJSON(response, 200, body.toString());
+			} catch (JSONException e) {
+				response.setStatusCode(500);
+			}
+		}
+	}
+
+	private class DigestHandler implements HttpRequestHandler {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			if (!admit("/digest", request, response)) {
+				return;
+			}
+			Uri uri = Uri.parse(request.getRequestLine().getUri());
+			try {
+				long from = Long.parseLong(uri.getQueryParameter("from"));
+				long to = Long.parseLong(uri.getQueryParameter("to"));
+				SampleDigest digest = new SampleDigest(Long.parseLong(uri
+						.getQueryParameter("span")));
+				synchronized (StandInServer.this) {
+					for (Long created : mSamples.subMap(Long.valueOf(from),
+							Long.valueOf(to)).keySet()) {
+						digest.add(created.longValue());
+					}
+				}
+				sendJSON(response, 200, digest.toJSON().toString());
+			} catch (NumberFormatException e) {
+				response.setStatusCode(400);
+			} catch (JSONException e) {
+				response.setStatusCode(500);
+			}
+		}
+	}
+
+	private class PullHandler implements HttpRequestHandler {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			if (!admit("/samples", request, response)) {
+				return;
+			}
+			Uri uri = Uri.parse(request.getRequestLine().getUri());
+			try {
+				// The cursor is the arrival number of the last sample seen
+				String cursor = uri.getQueryParameter("after");
+				long after = (cursor != null) ? Long.parseLong(cursor) : 0;
+				int limit = Integer.parseInt(uri.getQueryParameter("limit"));
+				JSONArray samples = new JSONArray();
+				long digest = 0;
+				boolean more = false;
+				synchronized (StandInServer.this) {
+					for (Map.Entry<Long, Long> entry : mArrivals.tailMap(
+							Long.valueOf(after + 1)).entrySet()) {
+						if (samples.length() == limit) {
+							more = true;
+							break;
+						}
+						samples.put(mSamples.get(entry.getValue()));
+						digest ^= SampleDigest.hash(entry.getValue().longValue());
+						after = entry.getKey().longValue();
+					}
+				}
+				String etag = "\"" + Long.toHexString(digest) + "-"
+						+ samples.length() + "-" + (more ? 1 : 0) + "\"";
+				response.setHeader("ETag", etag);
+				Header seen = request.getFirstHeader("If-None-Match");
+				if (seen != null && seen.getValue().indexOf(etag) >= 0) {
+					synchronized (StandInServer.this) {
+						mNotModified++;
+					}
+					response.setStatusCode(304);
+					return;
+				}
+				sendJSON(response, 200, new JSONObject().put("samples", samples)
+						.put("more", more).put("next", Long.toString(after))
+						.toString());
+			} catch (NumberFormatException e) {
+				response.setStatusCode(400);
+			} catch (JSONException e) {
+				response.setStatusCode(500);
+			}
+		}
+	}
+
+	private class LoginHandler implements HttpRequestHandler {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			countRequest("/_ah/login");
+			if (request.getRequestLine().getUri().indexOf("auth=null") >= 0) {
+				response.setStatusCode(500);
+				return;
+			}
+			response.setStatusCode(302);
+			response.setHeader("Set-Cookie", sessionCookie() + "; Path=/");
+			response.setHeader("Location", "/");
+		}
+	}
+}
@@ -0,0 +1,38 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class StartupTimerTest extends AndroidTestCase {
+
+	@SmallTest
+	public void testPhases() {
+		StartupTimer timer = new StartupTimer("AffectSampler", 1000);
+		timer.mark("layout", 1040);
+		timer.mark("create", 1050);
+		assertEquals(120, timer.finish("shown", 1120));
+		assertEquals("AffectSampler started in 120ms: layout 40ms, create 10ms,"
+				+ " shown 70ms", timer.describe(120));
+
+		// Later focus changes aren't launches
+		assertEquals(-1, timer.finish("shown", 5000));
+		timer.mark("late", 6000);
+		assertEquals("AffectSampler started in 120ms: layout 40ms, create 10ms,"
+				+ " shown 70ms", timer.describe(120));
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * 
+ *  Copyright 2009 (C) Ben Moran
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0 
+ *     
+ *  Unless required by applicable law or agreed to in writing, 
+ *  software distributed under the License is distributed on an 
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ *  either express or implied. See the License for the specific 
+ *  language governing permissions and limitations under the License. 
+ */
+package net.benmoran.affectsampler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+public class SyncCoordinatorTest extends AndroidTestCase {
+
+	private final List<SyncParams> mRuns = Collections
+			.synchronizedList(new ArrayList<SyncParams>());
+	private CountDownLatch mStarted;
+	private CountDownLatch mRelease;
+	private SyncCoordinator mCoordinator;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		mStarted = new CountDownLatch(1);
+		mRelease = new CountDownLatch(1);
+		mCoordinator = new SyncCoordinator() {
+			@Override
+			protected SyncResult runSync(SyncParams params) {
+				mRuns.add(params);
+				mStarted.countDown();
+				try {
+					mRelease.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					return new SyncResult(e);
+				}
+				return new SyncResult(mRuns.size());
+			}
+		};
+	}
+
+	/**
+	 * Counts down once per result.
+	 */
+	private static class CountingCaller implements SyncCaller {
+		final CountDownLatch told;
+		final List<Integer> counts = Collections
+				.synchronizedList(new ArrayList<Integer>());
+
+		CountingCaller(int expected) {
+			told = new CountDownLatch(expected);
+		}
+
+		public void onError(Exception e) {
+			told.countDown();
+		}
+
+		public void onSuccess(int syncCount) {
+			counts.add(Integer.valueOf(syncCount));
+			told.countDown();
+		}
+	}
+
+	private static SyncParams makeParams(String user) {
+		return new SyncParams(user, null, null, null);
+	}
+
+	@MediumTest
+	public void testCoalesces() throws InterruptedException {
+		CountingCaller first = new CountingCaller(2);
+		CountingCaller second = new CountingCaller(2);
+		mCoordinator.addCaller(first);
+		mCoordinator.addCaller(second);
+
+		mCoordinator.requestSync(makeParams("a"));
+		assertTrue(mStarted.await(5, TimeUnit.SECONDS));
+		// While the first runs, these make one follow-up with the last params
+		mCoordinator.requestSync(makeParams("b"));
+		mCoordinator.requestSync(makeParams("c"));
+		mCoordinator.requestSync(makeParams("d"));
+		assertTrue(mCoordinator.isBusy());
+		mRelease.countDown();
+
+		assertTrue(first.told.await(5, TimeUnit.SECONDS));
+		assertTrue(second.told.await(5, TimeUnit.SECONDS));
+		assertEquals(2, mRuns.size());
+		assertEquals("a", mRuns.get(0).username);
+		assertEquals("d", mRuns.get(1).username);
+		assertEquals(first.counts, second.counts);
+		assertFalse(mCoordinator.isBusy());
+	}
+
+	@MediumTest
+	public void testRunsAgainOnceIdle() throws InterruptedException {
+		mRelease.countDown();
+		CountingCaller caller = new CountingCaller(2);
+		mCoordinator.addCaller(caller);
+		mCoordinator.requestSync(makeParams("a"));
+		while (mCoordinator.isBusy()) {
+			Thread.sleep(10);
+		}
+		mCoordinator.requestSync(makeParams("b"));
+		assertTrue(caller.told.await(5, TimeUnit.SECONDS));
+		assertEquals(2, mRuns.size());
+	}
+}
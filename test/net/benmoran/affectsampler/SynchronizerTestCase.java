@@ -20,6 +20,7 @@ import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 
 import net.benmoran.affectsampler.datastore.AppEngineClient;
@@ -27,6 +28,7 @@ import net.benmoran.affectsampler.datastore.AppEngineClientImpl;
 
 import org.apache.http.ProtocolVersion;
 import org.apache.http.StatusLine;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.message.BasicStatusLine;
 import org.json.JSONArray;
@@ -73,6 +75,16 @@ public class SynchronizerTestCase extends InstrumentationTestCase {
 					reason));
 		}
 
+		public static StubHttpResponse newResponse(int status, String body) {
+			StubHttpResponse response = newResponse(status);
+			try {
+				response.setEntity(new StringEntity(body));
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+			return response;
+		}
+
 		public StubHttpResponse(StatusLine statusline) {
 			super(statusline);
 		}